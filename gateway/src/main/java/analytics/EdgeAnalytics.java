@@ -0,0 +1,187 @@
+package analytics;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.servicediscovery.Record;
+import io.vertx.servicediscovery.ServiceDiscoveryOptions;
+import io.vertx.servicediscovery.Status;
+import mqtt.MqttPublisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/*
+  Streaming rule stage on the readings of the devices (before MQTT)
+  - every sensor value is given to the rules of the sensor (ANALYTICS_RULES, see Rules),
+    every rule keeps a constant-size state per device and sensor
+  - an alert is published on ANALYTICS_ALERT_TOPIC ("alerts") when the condition of a rule becomes true ("raised"),
+    and when it becomes false again ("cleared"): no alert per reading while the condition holds
+  - rollups: count, min, max and mean of every sensor of every device, published on ANALYTICS_ROLLUP_TOPIC
+    ("rollups") every ANALYTICS_ROLLUP_INTERVAL ms (0 = no rollup)
+  - ANALYTICS_FORWARD: "all" (default) the raw readings are still published,
+    "alerts": only the alerts and the rollups go upstream
+  - a device announced DOWN or OUT_OF_SERVICE (service discovery announcements) is forgotten: its rule states
+    and its rollup are dropped, its active alerts are "cleared" (with the status of the device as `reason`)
+ */
+public class EdgeAnalytics {
+  private static class Rollup {
+    long count = 0;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    double sum = 0;
+
+    void add(double value) {
+      count++;
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+      sum += value;
+    }
+
+    JsonObject toJson() {
+      return new JsonObject().put("count", count).put("min", min).put("max", max).put("mean", sum / count);
+    }
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(EdgeAnalytics.class);
+  private final MqttPublisher mqttPublisher;
+  private final List<Rule> rules;
+  private final String alertTopic = Optional.ofNullable(System.getenv("ANALYTICS_ALERT_TOPIC")).orElse("alerts");
+  private final String rollupTopic = Optional.ofNullable(System.getenv("ANALYTICS_ROLLUP_TOPIC")).orElse("rollups");
+  private final long rollupInterval = Long.parseLong(Optional.ofNullable(System.getenv("ANALYTICS_ROLLUP_INTERVAL")).orElse("60000"));
+  private final boolean forwardReadings = !Optional.ofNullable(System.getenv("ANALYTICS_FORWARD")).orElse("all").equals("alerts");
+
+  // rules of a sensor name, states of the rules per device and sensor, rollups per device and sensor
+  private final Map<String, Rule[]> sensorRules = new HashMap<>();
+  private final Map<String, Map<String, Rule.State[]>> states = new HashMap<>();
+  private final Map<String, Map<String, Rollup>> rollups = new HashMap<>();
+  private long rollupStart = System.currentTimeMillis();
+  private long raised = 0;
+  private long active = 0;
+
+  public EdgeAnalytics(Vertx vertx, MqttPublisher mqttPublisher) {
+    this(vertx, mqttPublisher, Rules.parse(Optional.ofNullable(System.getenv("ANALYTICS_RULES")).orElse("")));
+  }
+
+  EdgeAnalytics(Vertx vertx, MqttPublisher mqttPublisher, List<Rule> rules) {
+    this.mqttPublisher = mqttPublisher;
+    this.rules = rules;
+    if (rollupInterval > 0) {
+      vertx.setPeriodic(rollupInterval, id -> publishRollups());
+    }
+    vertx.eventBus().<JsonObject>consumer(ServiceDiscoveryOptions.DEFAULT_ANNOUNCE_ADDRESS,
+      message -> apply(new Record(message.body())));
+    logger.info("Edge analytics: {} rule(s) {}, forward {}", rules.size(),
+      rules.stream().map(Rule::getExpression).collect(Collectors.toList()), forwardReadings ? "all" : "alerts");
+  }
+
+  // the reading of a device (same format as the device response)
+  public void accept(Record record, JsonObject data) {
+    var id = record.getName();
+    var now = System.currentTimeMillis();
+    var sensors = data.getJsonArray("sensors");
+    if (sensors != null) {
+      for (int i = 0; i < sensors.size(); i++) {
+        var sensor = sensors.getJsonObject(i);
+        for (var name : sensor.fieldNames()) {
+          var value = sensor.getJsonObject(name).getValue("value");
+          if (value instanceof Number) {
+            evaluate(id, name, ((Number) value).doubleValue(), now);
+          }
+        }
+      }
+    }
+    if (forwardReadings) {
+      mqttPublisher.publish(record, data);
+    }
+  }
+
+  private void evaluate(String id, String sensor, double value, long now) {
+    if (rollupInterval > 0) {
+      rollups.computeIfAbsent(id, key -> new HashMap<>()).computeIfAbsent(sensor, key -> new Rollup()).add(value);
+    }
+    var applicable = sensorRules.computeIfAbsent(sensor,
+      name -> rules.stream().filter(rule -> rule.appliesTo(name)).toArray(Rule[]::new));
+    if (applicable.length == 0) return;
+
+    var ruleStates = states.computeIfAbsent(id, key -> new HashMap<>()).computeIfAbsent(sensor, key -> {
+      var created = new Rule.State[applicable.length];
+      for (int i = 0; i < applicable.length; i++) created[i] = applicable[i].newState();
+      return created;
+    });
+    for (int i = 0; i < applicable.length; i++) {
+      var state = ruleStates[i];
+      var holds = applicable[i].check(state, value, now);
+      if (holds != state.active) {
+        state.active = holds;
+        if (holds) {
+          raised++;
+          active++;
+        } else {
+          active--;
+        }
+        mqttPublisher.publish(alertTopic, new JsonObject()
+          .put("id", id)
+          .put("sensor", sensor)
+          .put("rule", applicable[i].getExpression())
+          .put("state", holds ? "raised" : "cleared")
+          .put("value", value)
+          .put("metric", state.metric)
+          .put("time", now));
+      }
+    }
+  }
+
+  // a device gone (DOWN, OUT_OF_SERVICE): its states and its rollup are dropped, its active alerts cleared
+  void apply(Record record) {
+    if (record.getStatus() != Status.DOWN && record.getStatus() != Status.OUT_OF_SERVICE) return;
+    var id = record.getName();
+    rollups.remove(id);
+    var deviceStates = states.remove(id);
+    if (deviceStates == null) return;
+    var now = System.currentTimeMillis();
+    deviceStates.forEach((sensor, ruleStates) -> {
+      var applicable = sensorRules.get(sensor);
+      for (int i = 0; i < ruleStates.length; i++) {
+        if (!ruleStates[i].active) continue;
+        active--;
+        mqttPublisher.publish(alertTopic, new JsonObject()
+          .put("id", id)
+          .put("sensor", sensor)
+          .put("rule", applicable[i].getExpression())
+          .put("state", "cleared")
+          .put("reason", record.getStatus().name())
+          .put("metric", ruleStates[i].metric)
+          .put("time", now));
+      }
+    });
+  }
+
+  private void publishRollups() {
+    var now = System.currentTimeMillis();
+    rollups.forEach((id, sensors) -> {
+      var values = new JsonObject();
+      sensors.forEach((sensor, rollup) -> values.put(sensor, rollup.toJson()));
+      mqttPublisher.publish(rollupTopic, new JsonObject()
+        .put("id", id)
+        .put("from", rollupStart)
+        .put("to", now)
+        .put("sensors", values));
+    });
+    rollups.clear();
+    rollupStart = now;
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .put("rules", new JsonArray(rules.stream().map(Rule::getExpression).collect(Collectors.toList())))
+      .put("forward", forwardReadings ? "all" : "alerts")
+      .put("raised", raised)
+      .put("active", active);
+  }
+}
@@ -0,0 +1,46 @@
+package analytics;
+
+/*
+  Anomaly score: distance of the value to its exponentially weighted moving average,
+  in exponentially weighted standard deviations (the score is computed before the value is added)
+  - `alpha`: weight of the new value (0.1 by default: ~the last 10 values)
+  - no alert during the warm-up (the first 1/alpha values)
+ */
+public class EwmaRule extends Rule {
+  private static class EwmaState extends State {
+    double mean;
+    double variance;
+    long count = 0;
+  }
+
+  private final double alpha;
+  private final double limit;
+  private final long warmUp;
+
+  public EwmaRule(String sensor, String expression, double alpha, double limit) {
+    super(sensor, expression);
+    this.alpha = alpha;
+    this.limit = limit;
+    this.warmUp = (long) Math.ceil(1 / alpha);
+  }
+
+  @Override
+  public State newState() {
+    return new EwmaState();
+  }
+
+  @Override
+  public boolean check(State state, double value, long time) {
+    var ewma = (EwmaState) state;
+    if (ewma.count++ == 0) {
+      ewma.mean = value;
+      return false;
+    }
+    var difference = value - ewma.mean;
+    var deviation = Math.sqrt(ewma.variance);
+    state.metric = deviation > 0 ? Math.abs(difference) / deviation : 0;
+    ewma.mean += alpha * difference;
+    ewma.variance = (1 - alpha) * (ewma.variance + alpha * difference * difference);
+    return ewma.count > warmUp && state.metric > limit;
+  }
+}
@@ -0,0 +1,246 @@
+package analytics;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.ext.web.RoutingContext;
+import io.vertx.servicediscovery.Record;
+import io.vertx.servicediscovery.ServiceDiscoveryOptions;
+import io.vertx.servicediscovery.Status;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+  Fleet-wide aggregates of the readings, grouped by `position` and by `category` (metadata of the records)
+  - count, mean, min, max and latest value of every sensor of every group
+  - updated incrementally with every reading: the previous value of the device is replaced by the new one
+    (O(log n) per value, no scan of the devices), the sum is compensated (Kahan) so the mean does not drift
+  - a device leaving the fleet (unpublished or OUT_OF_SERVICE) is removed from its groups,
+    a device moved to another position or category changes of groups (announcements of the service discovery,
+    and metadata of the record given with a reading)
+  - a device without a reading for `ttl` ms (UNKNOWN, lease lapsed, ...) is removed by a periodic sweep,
+    its next reading adds it again
+  - GET /aggregates (all the groups), GET /aggregates/:by (by = position or category), GET /aggregates/:by/:group:
+    served from memory, the cost of a read only depends on the number of groups and sensors
+  Not thread safe: use it from the event loop only
+ */
+public class FleetAggregates {
+  public static final String POSITION = "position";
+  public static final String CATEGORY = "category";
+
+  private static class Aggregate {
+    long count = 0;
+    double sum = 0;
+    // lost low-order bits of `sum` (Kahan-Babuska summation)
+    double compensation = 0;
+    // multiset of the values (value -> number of devices): min and max after a removal
+    final TreeMap<Double, Integer> values = new TreeMap<>();
+    Double latest = null;
+    String latestDevice = null;
+    long latestTime = 0;
+
+    void add(double value) {
+      count++;
+      sum(value);
+      values.merge(value, 1, Integer::sum);
+    }
+
+    void remove(double value) {
+      count--;
+      sum(-value);
+      values.computeIfPresent(value, (key, number) -> number == 1 ? null : number - 1);
+      if (count == 0) {
+        sum = 0;
+        compensation = 0;
+      }
+    }
+
+    private void sum(double value) {
+      var total = sum + value;
+      compensation += Math.abs(sum) >= Math.abs(value) ? (sum - total) + value : (value - total) + sum;
+      sum = total;
+    }
+
+    JsonObject toJson() {
+      return new JsonObject()
+        .put("count", count)
+        .put("mean", count == 0 ? null : (sum + compensation) / count)
+        .put("min", values.isEmpty() ? null : values.firstKey())
+        .put("max", values.isEmpty() ? null : values.lastKey())
+        .put("latest", latest)
+        .put("latestDevice", latestDevice)
+        .put("latestTime", latestTime);
+    }
+  }
+
+  // last values of a device, and its groups
+  private static class Device {
+    final String position;
+    final String category;
+    final Map<String, Double> values = new HashMap<>();
+    long time = 0;
+
+    Device(String position, String category) {
+      this.position = position;
+      this.category = category;
+    }
+  }
+
+  private final long ttl;
+  private final Map<String, Device> devices = new HashMap<>();
+  // position or category -> group -> sensor -> aggregate
+  private final Map<String, Map<String, Map<String, Aggregate>>> groups = Map.of(
+    POSITION, new HashMap<>(),
+    CATEGORY, new HashMap<>()
+  );
+
+  public FleetAggregates(long ttl) {
+    this.ttl = ttl;
+  }
+
+  public void start(Vertx vertx) {
+    vertx.setPeriodic(Math.max(1_000, ttl), id -> evict(System.currentTimeMillis()));
+    vertx.eventBus().<JsonObject>consumer(ServiceDiscoveryOptions.DEFAULT_ANNOUNCE_ADDRESS,
+      message -> apply(new Record(message.body())));
+  }
+
+  // the reading of a device (same format as the device response)
+  public void accept(Record record, JsonObject data) {
+    var sensors = data == null ? null : data.getJsonArray("sensors");
+    if (sensors == null) return;
+    var id = record.getName();
+    var now = System.currentTimeMillis();
+    var metadata = record.getMetadata() == null ? new JsonObject() : record.getMetadata();
+    var device = regroup(id, devices.get(id), metadata.getString(POSITION, ""), metadata.getString(CATEGORY, ""));
+    device.time = now;
+
+    for (int i = 0; i < sensors.size(); i++) {
+      var sensor = sensors.getJsonObject(i);
+      for (var name : sensor.fieldNames()) {
+        var value = sensor.getJsonObject(name).getValue("value");
+        if (value instanceof Number) {
+          update(id, device, name, ((Number) value).doubleValue(), now);
+        }
+      }
+    }
+  }
+
+  // announcement of the service discovery: the device left, or changed of groups
+  void apply(Record record) {
+    var id = record.getName();
+    var device = devices.get(id);
+    if (device == null) return;
+    if (record.getStatus() == Status.DOWN || record.getStatus() == Status.OUT_OF_SERVICE) {
+      remove(id, device);
+      devices.remove(id);
+      return;
+    }
+    var metadata = record.getMetadata() == null ? new JsonObject() : record.getMetadata();
+    regroup(id, device, metadata.getString(POSITION, ""), metadata.getString(CATEGORY, ""));
+  }
+
+  // the device in the groups of `position` and `category`: its values are moved if it changed of groups
+  private Device regroup(String id, Device device, String position, String category) {
+    if (device != null && position.equals(device.position) && category.equals(device.category)) return device;
+
+    var moved = new Device(position, category);
+    devices.put(id, moved);
+    if (device != null) {
+      remove(id, device);
+      moved.time = device.time;
+      device.values.forEach((sensor, value) -> update(id, moved, sensor, value, System.currentTimeMillis()));
+    }
+    return moved;
+  }
+
+  // the devices without a reading for `ttl` ms leave their groups
+  void evict(long now) {
+    devices.entrySet().removeIf(entry -> {
+      if (now - entry.getValue().time <= ttl) return false;
+      remove(entry.getKey(), entry.getValue());
+      return true;
+    });
+  }
+
+  private void update(String id, Device device, String sensor, double value, long now) {
+    var previous = device.values.put(sensor, value);
+    for (var aggregate : new Aggregate[]{aggregate(POSITION, device.position, sensor), aggregate(CATEGORY, device.category, sensor)}) {
+      if (previous != null) aggregate.remove(previous);
+      aggregate.add(value);
+      aggregate.latest = value;
+      aggregate.latestDevice = id;
+      aggregate.latestTime = now;
+    }
+  }
+
+  private void remove(String id, Device device) {
+    device.values.forEach((sensor, value) -> {
+      remove(POSITION, device.position, sensor, id, value);
+      remove(CATEGORY, device.category, sensor, id, value);
+    });
+  }
+
+  private void remove(String by, String group, String sensor, String id, double value) {
+    var sensors = groups.get(by).get(group);
+    var aggregate = sensors.get(sensor);
+    aggregate.remove(value);
+    if (id.equals(aggregate.latestDevice)) {
+      aggregate.latest = null;
+      aggregate.latestDevice = null;
+    }
+    if (aggregate.count == 0) {
+      sensors.remove(sensor);
+      if (sensors.isEmpty()) groups.get(by).remove(group);
+    }
+  }
+
+  private Aggregate aggregate(String by, String group, String sensor) {
+    return groups.get(by)
+      .computeIfAbsent(group, key -> new HashMap<>())
+      .computeIfAbsent(sensor, key -> new Aggregate());
+  }
+
+  public JsonObject toJson(String by) {
+    var result = new JsonObject();
+    groups.get(by).forEach((group, sensors) -> result.put(group, toJson(sensors)));
+    return result;
+  }
+
+  public JsonObject toJson(String by, String group) {
+    var sensors = groups.get(by).get(group);
+    return sensors == null ? null : toJson(sensors);
+  }
+
+  private static JsonObject toJson(Map<String, Aggregate> sensors) {
+    var result = new JsonObject();
+    sensors.forEach((sensor, aggregate) -> result.put(sensor, aggregate.toJson()));
+    return result;
+  }
+
+  public void aggregates(RoutingContext routingContext) {
+    var by = routingContext.pathParam("by");
+    var group = routingContext.pathParam("group");
+    if (by == null) {
+      routingContext.json(new JsonObject()
+        .put("devices", devices.size())
+        .put(POSITION, toJson(POSITION))
+        .put(CATEGORY, toJson(CATEGORY)));
+      return;
+    }
+    if (!groups.containsKey(by)) {
+      routingContext.fail(400);
+      return;
+    }
+    if (group == null) {
+      routingContext.json(toJson(by));
+      return;
+    }
+    var result = toJson(by, group);
+    if (result == null) {
+      routingContext.fail(404);
+    } else {
+      routingContext.json(result);
+    }
+  }
+}
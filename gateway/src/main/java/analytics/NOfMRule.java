@@ -0,0 +1,35 @@
+package analytics;
+
+// at least `n` of the last `m` values (m <= 64) are above the limit (the last m values are the bits of a long)
+public class NOfMRule extends Rule {
+  private static class WindowState extends State {
+    long window = 0;
+  }
+
+  private final int n;
+  private final long mask;
+  private final double limit;
+
+  public NOfMRule(String sensor, String expression, int n, int m, double limit) {
+    super(sensor, expression);
+    if (m < 1 || m > 64 || n < 1 || n > m) {
+      throw new IllegalArgumentException("Invalid rule " + expression + ": 1 <= n <= m <= 64");
+    }
+    this.n = n;
+    this.mask = m == 64 ? -1L : (1L << m) - 1;
+    this.limit = limit;
+  }
+
+  @Override
+  public State newState() {
+    return new WindowState();
+  }
+
+  @Override
+  public boolean check(State state, double value, long time) {
+    var windowState = (WindowState) state;
+    windowState.window = ((windowState.window << 1) | (value > limit ? 1 : 0)) & mask;
+    state.metric = Long.bitCount(windowState.window);
+    return state.metric >= n;
+  }
+}
@@ -0,0 +1,33 @@
+package analytics;
+
+// the value changes faster than `limit` units per second (up or down)
+public class RateOfChangeRule extends Rule {
+  private static class RateState extends State {
+    double lastValue;
+    long lastTime = -1;
+  }
+
+  private final double limit;
+
+  public RateOfChangeRule(String sensor, String expression, double limit) {
+    super(sensor, expression);
+    this.limit = limit;
+  }
+
+  @Override
+  public State newState() {
+    return new RateState();
+  }
+
+  @Override
+  public boolean check(State state, double value, long time) {
+    var rateState = (RateState) state;
+    var previousTime = rateState.lastTime;
+    var previousValue = rateState.lastValue;
+    rateState.lastValue = value;
+    rateState.lastTime = time;
+    if (previousTime < 0 || time <= previousTime) return false;
+    state.metric = Math.abs(value - previousValue) * 1000.0 / (time - previousTime);
+    return state.metric > limit;
+  }
+}
@@ -0,0 +1,40 @@
+package analytics;
+
+/*
+  Streaming rule, evaluated on every value of a sensor, with a constant-size state per device and sensor
+  - `newState()` creates the state of a (device, sensor)
+  - `check(state, value, time)` updates the state with the value and returns true while the condition holds,
+    the measured quantity (value, rate, score, count) is stored in `state.metric`
+  The alerts are raised and cleared on the transitions of the condition (see EdgeAnalytics).
+ */
+public abstract class Rule {
+  public static class State {
+    boolean active = false;
+    double metric = 0;
+  }
+
+  private final String sensor;
+  private final String expression;
+
+  protected Rule(String sensor, String expression) {
+    this.sensor = sensor;
+    this.expression = expression;
+  }
+
+  public String getSensor() {
+    return sensor;
+  }
+
+  // the rule as written in ANALYTICS_RULES, e.g. "eCO2:3of5>1200"
+  public String getExpression() {
+    return expression;
+  }
+
+  public boolean appliesTo(String sensorName) {
+    return sensor.equalsIgnoreCase(sensorName);
+  }
+
+  public abstract State newState();
+
+  public abstract boolean check(State state, double value, long time);
+}
@@ -0,0 +1,59 @@
+package analytics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/*
+  Parse the rules of ANALYTICS_RULES (comma separated), the sensor names are not case-sensitive:
+  - "temperature>30", "temperature<10": threshold
+  - "temperature:rate>0.1": rate of change, in units per second
+  - "eCO2:ewma>3", "eCO2:ewma(0.2)>3": EWMA anomaly score (alpha 0.1 by default)
+  - "eCO2:3of5>1200": at least 3 of the last 5 values above 1200
+ */
+public class Rules {
+  private static final Pattern RULE = Pattern.compile("^([^:<>]+)(?::([^<>]+))?([<>])(-?[0-9.]+(?:[eE][-+]?[0-9]+)?)$");
+  private static final Pattern EWMA = Pattern.compile("^ewma(?:\\(([0-9.]+)\\))?$");
+  private static final Pattern N_OF_M = Pattern.compile("^([0-9]+)of([0-9]+)$");
+
+  public static List<Rule> parse(String rules) {
+    var parsed = new ArrayList<Rule>();
+    for (var item : rules.split(",")) {
+      var expression = item.replace(" ", "");
+      if (!expression.isEmpty()) {
+        parsed.add(parseRule(expression));
+      }
+    }
+    return parsed;
+  }
+
+  static Rule parseRule(String expression) {
+    var rule = RULE.matcher(expression);
+    if (!rule.matches()) {
+      throw new IllegalArgumentException("Invalid analytics rule: " + expression);
+    }
+    var sensor = rule.group(1);
+    var kind = rule.group(2);
+    var above = rule.group(3).equals(">");
+    var limit = Double.parseDouble(rule.group(4));
+
+    if (kind == null) {
+      return new ThresholdRule(sensor, expression, limit, above);
+    }
+    if (!above) {
+      throw new IllegalArgumentException("Invalid analytics rule: " + expression + " (only '>' with " + kind + ")");
+    }
+    if (kind.equals("rate")) {
+      return new RateOfChangeRule(sensor, expression, limit);
+    }
+    var ewma = EWMA.matcher(kind);
+    if (ewma.matches()) {
+      return new EwmaRule(sensor, expression, ewma.group(1) == null ? 0.1 : Double.parseDouble(ewma.group(1)), limit);
+    }
+    var nOfM = N_OF_M.matcher(kind);
+    if (nOfM.matches()) {
+      return new NOfMRule(sensor, expression, Integer.parseInt(nOfM.group(1)), Integer.parseInt(nOfM.group(2)), limit);
+    }
+    throw new IllegalArgumentException("Invalid analytics rule: " + expression);
+  }
+}
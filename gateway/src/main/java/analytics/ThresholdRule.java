@@ -0,0 +1,24 @@
+package analytics;
+
+// the value is above (or below) the limit
+public class ThresholdRule extends Rule {
+  private final double limit;
+  private final boolean above;
+
+  public ThresholdRule(String sensor, String expression, double limit, boolean above) {
+    super(sensor, expression);
+    this.limit = limit;
+    this.above = above;
+  }
+
+  @Override
+  public State newState() {
+    return new State();
+  }
+
+  @Override
+  public boolean check(State state, double value, long time) {
+    state.metric = value;
+    return above ? value > limit : value < limit;
+  }
+}
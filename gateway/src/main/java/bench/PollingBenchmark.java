@@ -0,0 +1,119 @@
+package bench;
+
+import discovery.FileBackend;
+import http.DevicesHealth;
+import http.LeaseManager;
+import http.VirtualThreadPoller;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import io.vertx.reactivex.servicediscovery.ServiceDiscovery;
+import io.vertx.servicediscovery.ServiceDiscoveryOptions;
+import io.vertx.servicediscovery.types.HttpEndpoint;
+import mqtt.MqttManager;
+import mqtt.MqttPublisher;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Optional;
+
+/*
+  Benchmark of the polling engines: Rx chains on the event loop vs blocking polls on virtual threads
+  - BENCH_DEVICES fake devices, served by one local HTTP server answering after BENCH_LATENCY ms
+    (every device has its own loopback address 127.0.x.y, so every device has its own connection pool, Linux only)
+  - the records are stored in a temporary FileBackend, the readings go through the real MQTT publish path
+    (encoding included, no broker)
+  - every engine runs 1 warm-up cycle then BENCH_CYCLES measured cycles (all the devices are polled at every cycle)
+  - throughput and latency percentiles of the polls (see PollStats)
+
+  Run (on a Java 21 JVM for the virtual threads):
+  java -cp target/gateway-1.0.0-SNAPSHOT-fat.jar bench.PollingBenchmark
+ */
+public class PollingBenchmark {
+  // a cycle not finished in time (e.g. devices not reachable) stops the benchmark
+  private static final long CYCLE_TIMEOUT = 60_000;
+
+  public static void main(String[] args) throws Exception {
+    var devices = Integer.parseInt(Optional.ofNullable(System.getenv("BENCH_DEVICES")).orElse("2000"));
+    var cycles = Integer.parseInt(Optional.ofNullable(System.getenv("BENCH_CYCLES")).orElse("5"));
+    var latency = Long.parseLong(Optional.ofNullable(System.getenv("BENCH_LATENCY")).orElse("20"));
+    var concurrency = Integer.parseInt(Optional.ofNullable(System.getenv("POLL_CONCURRENCY")).orElse("256"));
+    var port = Integer.parseInt(Optional.ofNullable(System.getenv("BENCH_PORT")).orElse("18080"));
+
+    var vertx = Vertx.vertx();
+
+    // fake devices: a new reading at every request
+    vertx.createHttpServer()
+      .requestHandler(request -> vertx.setTimer(latency, id -> request.response()
+        .putHeader("content-type", "application/json")
+        .end(new JsonObject()
+          .put("id", request.localAddress().host())
+          .put("sensors", new JsonArray().add(new JsonObject()
+            .put("temperature", new JsonObject().put("value", System.nanoTime() % 4000 / 100.0).put("unit", "°C"))))
+          .encode())))
+      .rxListen(port)
+      .blockingGet();
+
+    var log = Files.createTempDirectory("polling-benchmark").resolve("records.log");
+    var discovery = ServiceDiscovery.create(vertx, new ServiceDiscoveryOptions()
+      .setBackendConfiguration(new JsonObject()
+        .put("backend-name", FileBackend.class.getName())
+        .put("path", log.toString())
+        .put("fsync", false)));
+
+    for (var i = 0; i < devices; i++) {
+      var host = "127.0." + (i / 250) + "." + (i % 250 + 1);
+      discovery.rxPublish(HttpEndpoint.createRecord("bench-" + i, host, port, "/",
+          new JsonObject().put("category", "bench").put("position", "lab")))
+        .blockingGet();
+    }
+
+    var mqttPublisher = new MqttPublisher(vertx, new MqttManager());
+    var leaseManager = new LeaseManager(discovery, 15_000, 60_000);
+    var context = vertx.getOrCreateContext();
+
+    var results = new ArrayList<JsonObject>();
+    for (var engine : new String[]{"rx", "virtual"}) {
+      var devicesHealth = new DevicesHealth<>(discovery, WebClient.create(vertx), mqttPublisher, leaseManager)
+        .setPollInterval(1)
+        .setMaxPollInterval(1);
+      Handler<Long> cycle = devicesHealth.handler;
+      VirtualThreadPoller poller = null;
+      if (engine.equals("virtual")) {
+        poller = new VirtualThreadPoller(devicesHealth, concurrency, 5_000);
+        cycle = poller.handler;
+      }
+      var stats = devicesHealth.getPollStats();
+
+      for (var round = 0; round <= cycles; round++) {
+        if (round == 1) stats.reset();
+        var expected = stats.count() + devices;
+        var handler = cycle;
+        Thread.sleep(2);
+        context.runOnContext(v -> handler.handle(0L));
+        var deadline = System.currentTimeMillis() + CYCLE_TIMEOUT;
+        while (stats.count() < expected) {
+          if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Cycle " + round + " of " + engine + ": "
+              + (expected - stats.count()) + " polls not finished after " + CYCLE_TIMEOUT + " ms");
+          }
+          Thread.sleep(1);
+        }
+      }
+      results.add(stats.toJson().put("engine", engine));
+      if (poller != null) poller.stop();
+    }
+
+    System.out.printf("%d devices, %d cycles, %d ms device latency, %d polls in flight max (virtual)%n",
+      devices, cycles, latency, concurrency);
+    System.out.printf("%-8s %10s %10s %10s %10s %10s %8s%n", "engine", "polls/s", "p50 us", "p99 us", "p99.9 us", "max us", "errors");
+    for (var result : results) {
+      System.out.printf("%-8s %10d %10d %10d %10d %10d %8d%n",
+        result.getString("engine"), result.getLong("pollsPerSecond"), result.getLong("p50Micros"),
+        result.getLong("p99Micros"), result.getLong("p999Micros"), result.getLong("maxMicros"), result.getLong("failures"));
+    }
+    vertx.close();
+  }
+}
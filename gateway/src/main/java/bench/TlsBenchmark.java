@@ -0,0 +1,120 @@
+package bench;
+
+import com.sun.management.OperatingSystemMXBean;
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.net.PemKeyCertOptions;
+import io.vertx.core.net.SSLEngineOptions;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.ext.web.client.HttpResponse;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import shared.TlsEngine;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+  Benchmark of the TLS setups of the gateway (HTTPS server) and of its clients (registrations, heartbeats)
+  - engines: "jdk" and "openssl" (when netty-tcnative is on the classpath: `openssl` Maven profile)
+  - client modes:
+    - "new-client": a new WebClient per request, i.e. a full handshake per request
+      (what `createRegisterToGatewayRequest(vertx, ...)` does)
+    - "resumption": one WebClient without keep-alive, i.e. a new connection per request, TLS session resumed
+    - "keep-alive": one WebClient with keep-alive, i.e. the connections (and their TLS sessions) are reused
+  - requests per second, CPU per request (client and server are in the same process), connections (handshakes)
+  The certificate and the key of the gateway are used (GATEWAY_CERTIFICATE, GATEWAY_KEY, see "Run the gateway with HTTPS")
+
+  Run:
+  GATEWAY_CERTIFICATE=./certificates/gateway.home.smart.crt GATEWAY_KEY=./certificates/gateway.home.smart.key \
+  java -cp target/gateway-1.0.0-SNAPSHOT-fat.jar bench.TlsBenchmark
+ */
+public class TlsBenchmark {
+  private static final String[] MODES = {"new-client", "resumption", "keep-alive"};
+
+  public static void main(String[] args) {
+    var requests = Integer.parseInt(Optional.ofNullable(System.getenv("BENCH_REQUESTS")).orElse("2000"));
+    var concurrency = Integer.parseInt(Optional.ofNullable(System.getenv("BENCH_CONCURRENCY")).orElse("32"));
+    var port = Integer.parseInt(Optional.ofNullable(System.getenv("BENCH_PORT")).orElse("18443"));
+    var certificate = Optional.ofNullable(System.getenv("GATEWAY_CERTIFICATE")).orElse("./certificates/gateway.home.smart.crt");
+    var key = Optional.ofNullable(System.getenv("GATEWAY_KEY")).orElse("./certificates/gateway.home.smart.key");
+
+    var vertx = Vertx.vertx();
+    var cpu = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    var engines = new ArrayList<SSLEngineOptions>();
+    engines.add(TlsEngine.create("jdk", true));
+    var openssl = TlsEngine.create("openssl", true);
+    if (TlsEngine.name(openssl).equals("openssl")) engines.add(openssl);
+
+    var results = new ArrayList<String>();
+    for (var engine : engines) {
+      var connections = new AtomicLong();
+      var server = vertx.createHttpServer(new HttpServerOptions()
+          .setSsl(true)
+          .setKeyCertOptions(new PemKeyCertOptions().addCertPath(certificate).addKeyPath(key))
+          .setSslEngineOptions(engine))
+        .connectionHandler(connection -> connections.incrementAndGet())
+        .requestHandler(request -> request.response().setStatusCode(200).end("{}"))
+        .rxListen(port)
+        .blockingGet();
+
+      for (var mode : MODES) {
+        // warm-up
+        run(vertx, engine, mode, port, Math.min(requests, 500), concurrency);
+
+        connections.set(0);
+        var cpuStart = cpu.getProcessCpuTime();
+        var start = System.nanoTime();
+        var failures = run(vertx, engine, mode, port, requests, concurrency);
+        var seconds = (System.nanoTime() - start) / 1e9;
+        var cpuMicros = (cpu.getProcessCpuTime() - cpuStart) / 1_000;
+
+        results.add(String.format("%-8s %-11s %10d %14d %12d %8d",
+          TlsEngine.name(engine), mode, Math.round(requests / seconds), cpuMicros / requests, connections.get(), failures));
+      }
+      server.rxClose().blockingAwait();
+    }
+
+    System.out.printf("%d requests, %d in flight%n", requests, concurrency);
+    System.out.printf("%-8s %-11s %10s %14s %12s %8s%n", "engine", "mode", "req/s", "cpu us/req", "connections", "errors");
+    results.forEach(System.out::println);
+    vertx.close();
+  }
+
+  // number of failed requests
+  private static long run(Vertx vertx, SSLEngineOptions engine, String mode, int port, int requests, int concurrency) {
+    var options = new WebClientOptions()
+      .setSsl(true)
+      .setSslEngineOptions(engine)
+      // benchmark only: the gateway certificate is issued for its domain name, not for localhost
+      .setTrustAll(true)
+      .setVerifyHost(false)
+      .setKeepAlive(mode.equals("keep-alive"))
+      .setMaxPoolSize(concurrency);
+    var shared = mode.equals("new-client") ? null : WebClient.create(vertx, options);
+
+    List<Boolean> outcomes = Observable.range(0, requests)
+      .flatMap(i -> {
+        var client = shared == null ? WebClient.create(vertx, options) : shared;
+        Single<HttpResponse<Buffer>> response = client.post(port, "localhost", "/register").rxSend();
+        return response
+          .map(ok -> ok.statusCode() == 200)
+          .onErrorReturnItem(false)
+          .doFinally(() -> {
+            if (shared == null) client.close();
+          })
+          .toObservable();
+      }, concurrency)
+      .toList()
+      .blockingGet();
+
+    if (shared != null) shared.close();
+    return outcomes.stream().filter(ok -> !ok).count();
+  }
+}
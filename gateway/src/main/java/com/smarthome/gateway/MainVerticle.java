@@ -1,35 +1,97 @@
 package com.smarthome.gateway;
 
+import analytics.EdgeAnalytics;
+import analytics.FleetAggregates;
+import discovery.DeviceQuery;
 import discovery.DiscoveryManager;
+import discovery.RecordIndex;
+import helpers.Drain;
 import helpers.GenericCodec;
 import http.DevicesHealth;
+import http.LeaseManager;
+import http.ReadingCache;
 import http.Registration;
+import http.StateSnapshot;
+import http.VirtualThreadPoller;
 
 import io.reactivex.Completable;
 import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.json.JsonObject;
 import io.vertx.core.net.PemKeyCertOptions;
 import io.vertx.reactivex.core.AbstractVerticle;
 import io.vertx.reactivex.ext.web.Router;
+import io.vertx.ext.web.client.WebClientOptions;
 import io.vertx.reactivex.ext.web.client.WebClient;
 import io.vertx.reactivex.ext.web.handler.BodyHandler;
 import io.vertx.servicediscovery.Record;
 import io.vertx.servicediscovery.rest.ServiceDiscoveryRestEndpoint;
+import mqtt.CommandRouter;
 import mqtt.MqttManager;
+import mqtt.MqttPublisher;
+import mqtt.MqttSpool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import shared.LiveConfig;
+import shared.TlsEngine;
+import tracing.Tracer;
+import udp.UdpIngestion;
 
+import java.nio.file.Path;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 public class MainVerticle extends AbstractVerticle {
 
   final private Logger logger = LoggerFactory.getLogger(MainVerticle.class);
 
   MqttManager mqttManager;
+  MqttPublisher mqttPublisher;
+  MqttSpool mqttSpool;
+  DevicesHealth<?> deviceHealth;
+  LeaseManager leaseManager;
+  StateSnapshot stateSnapshot;
+  VirtualThreadPoller virtualThreadPoller;
+  UdpIngestion udpListener;
+  Tracer tracer;
+  long pollTimer = -1;
+  long drainTimeout = 10_000;
 
+  /*
+    Graceful drain, at most DRAIN_TIMEOUT ms (all the stages share the same deadline):
+    1. no new work: polling cycles, leases, recoveries, snapshots and UDP ingestion are stopped
+    2. the polls in flight are answered (their readings are published, the states of the devices are updated)
+    3. the pending MQTT batches are sent, then the gateway waits for the pending updates of the discovery backend
+       and for the acknowledgements of the QoS 1 messages
+    4. the leftovers are persisted: the MQTT messages not acknowledged (MqttSpool, published again by the next run)
+       and the state of the devices (StateSnapshot: the next run does not poll the whole fleet again)
+   */
   @Override
   public Completable rxStop() {
-    logger.info("Gateway stopped");
-    return mqttManager.getMqttClient().rxDisconnect();
+    logger.info("Gateway stopping (drain: at most {} ms)", drainTimeout);
+    var deadline = System.currentTimeMillis() + drainTimeout;
+    vertx.cancelTimer(pollTimer);
+    leaseManager.stop(vertx);
+    stateSnapshot.stop(vertx);
+    if (deviceHealth != null) {
+      deviceHealth.getRetryCoordinator().stop(vertx);
+    }
+    mqttManager.drain();
+    var udpStopped = udpListener == null ? Completable.complete() : udpListener.rxStop().onErrorComplete();
+    return udpStopped
+      .andThen(Drain.until(vertx, "polls in flight", () -> deviceHealth == null ? 0 : deviceHealth.inFlight(), deadline))
+      .andThen(Completable.fromAction(() -> {
+        if (virtualThreadPoller != null) {
+          virtualThreadPoller.stop();
+        }
+        mqttPublisher.flush();
+      }))
+      .andThen(Drain.until(vertx, "discovery updates", DiscoveryManager::pendingOperations, deadline))
+      .andThen(Drain.until(vertx, "MQTT acknowledgements", mqttManager::unacknowledged, deadline))
+      .andThen(Completable.defer(() -> mqttSpool.rxSave(vertx, mqttManager.leftovers())).onErrorComplete())
+      .andThen(stateSnapshot.rxSave(vertx).onErrorComplete())
+      .andThen(tracer.rxClose().onErrorComplete())
+      .andThen(mqttManager.rxDisconnect())
+      .doOnComplete(() -> logger.info("Gateway stopped"));
   }
 
   @Override
@@ -38,18 +100,82 @@ public class MainVerticle extends AbstractVerticle {
     /*
       Define parameters of the application
       ------------------------------------
+      - Live configuration (CONFIG_FILE, see LiveConfig): the values of the file override the environment,
+        the polling (pollInterval, maxPollInterval, pollTimeout) and the MQTT publishing
+        (MQTT_BATCH_SIZE, MQTT_BATCH_LINGER, MQTT_ENCODING, MQTT_ENCODINGS) follow the changes of the file
       - Redis:
         redisHost, redisPort, redisAuth, redisConnectionString
       - Http Server:
         gatewayHttPort, authenticationToken, gatewayCertificate (path to certificate), gatewayKey (path to key), httpServerOptions
+      - TLS (HTTPS server):
+        tlsEngine (jdk or openssl), tlsSessionCache
+      - Leases (heartbeats of the devices):
+        leaseDuration, leaseGrace
+      - Polling of the devices (adaptive interval):
+        pollInterval, maxPollInterval
+        pollEngine (rx: event loop, virtual: virtual threads), pollConcurrency, pollTimeout
+      - On-demand reading of a device (GET /devices/:id/reading):
+        readingTtl
+      - Warm start (snapshot of the state of the devices):
+        snapshotFile, snapshotInterval
+      - Graceful stop (see rxStop):
+        drainTimeout, mqttSpoolFile
+      - Edge analytics (rules on the readings, alerts and rollups):
+        analyticsRules (no analytics if ANALYTICS_RULES is not set, see EdgeAnalytics)
+      - Fleet aggregates (per position and category, GET /aggregates):
+        aggregatesEnabled, aggregatesTtl
+      - Commands to the devices (MQTT -> device, see CommandRouter):
+        commandTopic (no subscription if MQTT_COMMAND_TOPIC is empty), commandAckTopic, commandTimeout
+      - UDP telemetry of the constrained devices:
+        udpIngestion, udpPort
+      - Tracing of the polls (JFR events are always available, see the `tracing` package):
+        tracing, traceFile, traceSample
       - MQTT Client
      */
+    var config = LiveConfig.create(vertx);
+
     var gatewayHttPort = Integer.parseInt(Optional.ofNullable(System.getenv("GATEWAY_HTTP_PORT")).orElse("9090"));
     var ssl = Boolean.parseBoolean(Optional.ofNullable(System.getenv("GATEWAY_SSL")).orElse("false"));
 
     var gatewayCertificate = Optional.ofNullable(System.getenv("GATEWAY_CERTIFICATE")).orElse("");
     var gatewayKey = Optional.ofNullable(System.getenv("GATEWAY_KEY")).orElse("");
 
+    var tlsEngine = Optional.ofNullable(System.getenv("TLS_ENGINE")).orElse("jdk");
+    var tlsSessionCache = Boolean.parseBoolean(Optional.ofNullable(System.getenv("TLS_SESSION_CACHE")).orElse("true"));
+    var sslEngineOptions = TlsEngine.create(tlsEngine, tlsSessionCache);
+
+    var leaseDuration = Long.parseLong(Optional.ofNullable(System.getenv("LEASE_DURATION")).orElse("15000"));
+    var leaseGrace = Long.parseLong(Optional.ofNullable(System.getenv("LEASE_GRACE")).orElse("60000"));
+
+    var pollInterval = Long.parseLong(config.get("POLL_INTERVAL", "5000"));
+    var maxPollInterval = Long.parseLong(config.get("POLL_MAX_INTERVAL", "20000"));
+    var pollEngine = Optional.ofNullable(System.getenv("POLL_ENGINE")).orElse("rx");
+    var pollConcurrency = Integer.parseInt(Optional.ofNullable(System.getenv("POLL_CONCURRENCY")).orElse("256"));
+    var pollTimeout = Long.parseLong(config.get("POLL_TIMEOUT", "5000"));
+
+    var readingTtl = Long.parseLong(Optional.ofNullable(System.getenv("READING_TTL")).orElse("2000"));
+
+    var analyticsRules = System.getenv("ANALYTICS_RULES");
+    var aggregatesEnabled = Boolean.parseBoolean(Optional.ofNullable(System.getenv("AGGREGATES")).orElse("true"));
+    var aggregatesTtl = Long.parseLong(Optional.ofNullable(System.getenv("AGGREGATES_TTL")).orElse("60000"));
+
+    var commandTopic = Optional.ofNullable(System.getenv("MQTT_COMMAND_TOPIC")).orElse("commands");
+    var commandAckTopic = Optional.ofNullable(System.getenv("MQTT_COMMAND_ACK_TOPIC")).orElse("commands-ack");
+    var commandTimeout = Long.parseLong(Optional.ofNullable(System.getenv("COMMAND_TIMEOUT")).orElse("2000"));
+
+    var udpIngestion = Boolean.parseBoolean(Optional.ofNullable(System.getenv("UDP_INGESTION")).orElse("false"));
+    var udpPort = Integer.parseInt(Optional.ofNullable(System.getenv("UDP_PORT")).orElse("9091"));
+
+    var tracing = Boolean.parseBoolean(Optional.ofNullable(System.getenv("TRACING")).orElse("false"));
+    var traceFile = Optional.ofNullable(System.getenv("TRACE_FILE")).orElse("./data/traces.jsonl");
+    var traceSample = Double.parseDouble(Optional.ofNullable(System.getenv("TRACE_SAMPLE")).orElse("1"));
+
+    var snapshotFile = Optional.ofNullable(System.getenv("SNAPSHOT_FILE")).orElse("./data/gateway_state.bin");
+    var snapshotInterval = Long.parseLong(Optional.ofNullable(System.getenv("SNAPSHOT_INTERVAL")).orElse("30000"));
+
+    drainTimeout = Long.parseLong(Optional.ofNullable(System.getenv("DRAIN_TIMEOUT")).orElse("10000"));
+    var mqttSpoolFile = Optional.ofNullable(System.getenv("MQTT_SPOOL_FILE")).orElse("./data/mqtt_spool.jsonl");
+
     var httpServerOptions = new HttpServerOptions()
       .setSsl(ssl).
         setKeyCertOptions(
@@ -57,6 +183,11 @@ public class MainVerticle extends AbstractVerticle {
             .addCertPath(gatewayCertificate)
             .addKeyPath(gatewayKey)
         );
+    if (ssl) {
+      // the connections of the devices are kept alive (keep-alive is on by default),
+      // a reconnecting device resumes its TLS session (session cache) instead of a full handshake
+      httpServerOptions.setSslEngineOptions(sslEngineOptions);
+    }
 
     var discovery = DiscoveryManager.initializeServiceDiscovery(vertx);
     /*
@@ -69,19 +200,69 @@ public class MainVerticle extends AbstractVerticle {
 
     ServiceDiscoveryRestEndpoint.create(router.getDelegate(), discovery.getDelegate());
 
+    /*
+      Indexed and paginated query API of the devices
+      http://localhost:9090/devices?status=UP&position=kitchen&limit=50
+    */
+    var recordIndex = new RecordIndex();
+    recordIndex.start(vertx, discovery);
+    var deviceQuery = new DeviceQuery(recordIndex);
+    router.get("/devices").handler(deviceQuery::devices);
+    router.get("/devices/facets").handler(deviceQuery::facets);
+
     var registration = new Registration(discovery);
 
     router.post("/register")
       .handler(registration::validateRegistration)
       .handler(registration::registerDevice);
 
+    /*
+      Heartbeats of the devices: liveness with leases
+    */
+    leaseManager = new LeaseManager(discovery, leaseDuration, leaseGrace);
+    leaseManager.start(vertx);
+
+    router.post("/heartbeat/:id")
+      .handler(registration::validateToken)
+      .handler(leaseManager::heartbeat);
+
     /*
       Define and connect the MQTT client
+      The publisher encodes the payloads (encoder per topic, see MqttPublisher)
     */
     mqttManager = new MqttManager();
-    mqttManager.startAndConnectMqttClient(vertx)
+    mqttPublisher = new MqttPublisher(vertx, mqttManager);
+    mqttSpool = new MqttSpool(Path.of(mqttSpoolFile));
+
+    // batching and encodings changed at runtime: the pending batches are sent first
+    Runnable mqttSettings = () -> mqttPublisher
+      .setBatching(Integer.parseInt(config.get("MQTT_BATCH_SIZE", "1")), Long.parseLong(config.get("MQTT_BATCH_LINGER", "1000")))
+      .setEncodings(config.get("MQTT_ENCODING", "json"), config.get("MQTT_ENCODINGS", ""));
+    mqttSettings.run();
+    config.watch(mqttSettings, "MQTT_BATCH_SIZE", "MQTT_BATCH_LINGER", "MQTT_ENCODING", "MQTT_ENCODINGS");
+
+    router.get("/mqtt/stats").handler(routingContext -> routingContext.json(mqttPublisher.stats()));
+    router.get("/mqtt/connections").handler(routingContext -> routingContext.json(mqttManager.status()));
+
+    /*
+      Warm start: the state of the devices saved by the previous run is restored
+      before the first polling cycle
+    */
+    stateSnapshot = new StateSnapshot(Path.of(snapshotFile), snapshotInterval);
+
+    tracer = tracing ? new Tracer(vertx, Path.of(traceFile), traceSample) : Tracer.disabled();
+
+    stateSnapshot.rxLoad(vertx)
+      .flatMap(restoredStates -> mqttManager.startAndConnectMqttClient(vertx).map(ok -> restoredStates))
+      // the MQTT messages left over by the previous run, before the first polling cycle: the messages of a topic
+      // are received in order (the spool is deleted once they are acknowledged, at most `drainTimeout` ms)
+      .flatMap(restoredStates -> mqttSpool.rxReplay(vertx, mqttManager, mqttPublisher)
+        .timeout(drainTimeout, TimeUnit.MILLISECONDS)
+        .doOnError(error -> logger.error("MQTT spool not replayed: {}", error.getMessage()))
+        .onErrorComplete()
+        .toSingleDefault(restoredStates))
       .doOnError(fail -> logger.warn("🤬 enable to connect to broker {}", fail.getMessage()))
-      .doOnSuccess(ok -> {
+      .doOnSuccess(restoredStates -> {
 
         /*
         Create a timer that calls a handler every 5 seconds
@@ -92,13 +273,91 @@ public class MainVerticle extends AbstractVerticle {
               - use the MQTT client to publish the JSON data of the object
             - if you cannot connect to the device
               - set status UNKNOWN and continue trying until OUT_OF_SERVICE
+          (the interval of each device is adaptive, see DeviceState)
        */
-        var webClient = WebClient.create(vertx);
-        var mqttClient = mqttManager.getMqttClient();
-        var deviceHealth = new DevicesHealth(discovery, webClient, mqttClient);
+        // connections kept alive per device
+        var webClient = WebClient.create(vertx, new WebClientOptions().setKeepAlive(true));
+        deviceHealth = new DevicesHealth<>(discovery, webClient, mqttPublisher, leaseManager)
+          .setPollInterval(pollInterval)
+          .setMaxPollInterval(maxPollInterval)
+          .setPollTimeout(pollTimeout)
+          .setTracer(tracer);
+        deviceHealth.restoreStates(restoredStates);
+        deviceHealth.start(vertx);
+
+        /*
+          On-demand reading: cached reading (filled by the polls) or one shared call to the device
+          http://localhost:9090/devices/:id/reading?maxAge=1000
+        */
+        var readingCache = new ReadingCache(webClient, recordIndex, readingTtl, pollTimeout);
+        readingCache.start(vertx);
+        deviceHealth.setReadingCache(readingCache);
+        router.get("/devices/readings/stats").handler(routingContext -> routingContext.json(readingCache.stats()));
+        router.get("/devices/:id/reading").handler(readingCache::read);
+
+        if (analyticsRules != null) {
+          var analytics = new EdgeAnalytics(vertx, mqttPublisher);
+          deviceHealth.setAnalytics(analytics);
+          router.get("/analytics").handler(routingContext -> routingContext.json(analytics.stats()));
+        }
+        if (aggregatesEnabled) {
+          var aggregates = new FleetAggregates(aggregatesTtl);
+          aggregates.start(vertx);
+          deviceHealth.setAggregates(aggregates);
+          router.get("/aggregates").handler(aggregates::aggregates);
+          router.get("/aggregates/:by").handler(aggregates::aggregates);
+          router.get("/aggregates/:by/:group").handler(aggregates::aggregates);
+        }
+        /*
+          Commands to the devices: "commands/<id>" -> POST /command of the device, ack on "commands-ack/<id>"
+          http://localhost:9090/commands/stats
+        */
+        if (!commandTopic.isEmpty()) {
+          var commandRouter = new CommandRouter(discovery, webClient, recordIndex, mqttManager, commandAckTopic, commandTimeout);
+          mqttManager.subscribe(commandTopic + "/+", commandRouter::accept);
+          router.get("/commands/stats").handler(routingContext -> routingContext.json(commandRouter.stats()));
+        }
+        stateSnapshot.start(vertx, deviceHealth);
         vertx.getDelegate().eventBus().registerDefaultCodec(Record.class, new GenericCodec<Record>(Record.class));
-        vertx.setPeriodic(5000, deviceHealth.handler);
+        if (pollEngine.equals("virtual")) {
+          virtualThreadPoller = new VirtualThreadPoller(deviceHealth, pollConcurrency, pollTimeout);
+        }
+        var pollHandler = virtualThreadPoller != null ? virtualThreadPoller.handler : deviceHealth.handler;
+        pollTimer = vertx.setPeriodic(pollInterval, pollHandler);
+
+        /*
+          Live polling settings: the next cycles use the new values, the polls in flight
+          and the state of the devices (intervals, ETags, cached readings) are kept
+        */
+        config.watch(() -> {
+          var newPollInterval = Long.parseLong(config.get("POLL_INTERVAL", "5000"));
+          var newPollTimeout = Long.parseLong(config.get("POLL_TIMEOUT", "5000"));
+          deviceHealth
+            .setPollInterval(newPollInterval)
+            .setMaxPollInterval(Long.parseLong(config.get("POLL_MAX_INTERVAL", "20000")))
+            .setPollTimeout(newPollTimeout);
+          readingCache.setTimeout(newPollTimeout);
+          if (virtualThreadPoller != null) {
+            virtualThreadPoller.setTimeout(newPollTimeout);
+          }
+          vertx.cancelTimer(pollTimer);
+          pollTimer = vertx.setPeriodic(newPollInterval, pollHandler);
+          logger.info("Polling every {} ms", newPollInterval);
+        }, "POLL_INTERVAL", "POLL_MAX_INTERVAL", "POLL_TIMEOUT");
         vertx.eventBus().consumer("device.unhealthy", deviceHealth.retryHandler);
+        deviceHealth.getRetryCoordinator().start(vertx);
+
+        router.get("/devices/recovery").handler(routingContext ->
+          routingContext.json(new JsonObject().put("inRecovery", deviceHealth.getRetryCoordinator().inRecovery())));
+        if (udpIngestion) {
+          udpListener = new UdpIngestion(deviceHealth::ingest);
+          udpListener.rxStart(vertx, udpPort)
+            .subscribe(() -> {}, error -> logger.error("UDP ingestion: {}", error.getMessage()));
+          router.get("/udp/stats").handler(routingContext -> routingContext.json(udpListener.stats()));
+        }
+
+        router.get("/devices/polling").handler(routingContext ->
+          routingContext.json(deviceHealth.getPollStats().toJson().put("engine", pollEngine)));
       })
       .subscribe();
 
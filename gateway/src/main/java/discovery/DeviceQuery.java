@@ -0,0 +1,55 @@
+package discovery;
+
+import io.vertx.reactivex.ext.web.RoutingContext;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/*
+  Query API of the devices (served from the RecordIndex)
+  - GET /devices?status=UP&category=...&position=...&cursor=...&limit=100&fields=id,status
+    returns {"items":[...], "next": <cursor of the next page or null>}
+  - GET /devices/facets
+    returns the number of devices per status, category and position
+ */
+public class DeviceQuery {
+  private static final int DEFAULT_LIMIT = 100;
+  private static final int MAX_LIMIT = 1_000;
+
+  private final RecordIndex index;
+
+  public DeviceQuery(RecordIndex index) {
+    this.index = index;
+  }
+
+  public void devices(RoutingContext routingContext) {
+    var request = routingContext.request();
+
+    var filters = new HashMap<String, String>();
+    filters.put(RecordIndex.STATUS, request.getParam(RecordIndex.STATUS));
+    filters.put(RecordIndex.CATEGORY, request.getParam(RecordIndex.CATEGORY));
+    filters.put(RecordIndex.POSITION, request.getParam(RecordIndex.POSITION));
+
+    int limit;
+    try {
+      limit = Integer.parseInt(Optional.ofNullable(request.getParam("limit")).orElse(String.valueOf(DEFAULT_LIMIT)));
+    } catch (NumberFormatException e) {
+      routingContext.fail(400);
+      return;
+    }
+    limit = Math.max(1, Math.min(MAX_LIMIT, limit));
+
+    List<String> fields = Optional.ofNullable(request.getParam("fields"))
+      .map(value -> Arrays.stream(value.split(",")).map(String::trim).filter(field -> !field.isEmpty()).collect(Collectors.toList()))
+      .orElse(List.of());
+
+    routingContext.json(index.query(filters, request.getParam("cursor"), limit, fields));
+  }
+
+  public void facets(RoutingContext routingContext) {
+    routingContext.json(index.facets());
+  }
+}
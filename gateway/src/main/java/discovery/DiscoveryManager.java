@@ -2,17 +2,24 @@ package discovery;
 
 
 
+import io.reactivex.Maybe;
 import io.reactivex.Single;
 import io.vertx.core.json.JsonObject;
 import io.vertx.reactivex.core.Vertx;
 import io.vertx.reactivex.servicediscovery.ServiceDiscovery;
 import io.vertx.servicediscovery.Record;
 import io.vertx.servicediscovery.ServiceDiscoveryOptions;
+import io.vertx.servicediscovery.backend.redis.RedisBackendService;
+import tracing.DiscoveryEvent;
 
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DiscoveryManager {
 
+  // operations on the backend not completed yet (the gateway waits for them when it stops)
+  private static final AtomicInteger pending = new AtomicInteger();
+
   ServiceDiscovery discovery;
 
   public DiscoveryManager(ServiceDiscovery serviceDiscovery) {
@@ -23,8 +30,26 @@ public class DiscoveryManager {
     Initialize the ServiceDiscovery
     Set the backend configuration
     In the last milestone, check if the Redis Db is connected
+    DISCOVERY_BACKEND selects the backend:
+    - "redis" (default): Redis database (REDIS_HOST, REDIS_PORT, REDIS_PASSWORD)
+    - "file": local log-structured file, for the sites without Redis (DISCOVERY_FILE, DISCOVERY_FSYNC)
    */
   static public ServiceDiscovery initializeServiceDiscovery(Vertx vertx) {
+    var discoveryBackend = Optional.ofNullable(System.getenv("DISCOVERY_BACKEND")).orElse("redis");
+
+    if (discoveryBackend.equals("file")) {
+      var discoveryFile = Optional.ofNullable(System.getenv("DISCOVERY_FILE")).orElse("./data/devices_records.log");
+      var discoveryFsync = Boolean.parseBoolean(Optional.ofNullable(System.getenv("DISCOVERY_FSYNC")).orElse("true"));
+
+      return ServiceDiscovery.create(vertx, new ServiceDiscoveryOptions()
+        .setBackendConfiguration(
+          new JsonObject()
+            .put("backend-name", FileBackend.class.getName())
+            .put("path", discoveryFile)
+            .put("fsync", discoveryFsync)
+        ));
+    }
+
     var redisHost = Optional.ofNullable(System.getenv("REDIS_HOST")).orElse("localhost");
     var redisPort = Integer.parseInt(Optional.ofNullable(System.getenv("REDIS_PORT")).orElse("6379"));
     var redisAuth = Optional.ofNullable(System.getenv("REDIS_PASSWORD")).orElse("");
@@ -40,6 +65,7 @@ public class DiscoveryManager {
     return ServiceDiscovery.create(vertx, new ServiceDiscoveryOptions()
       .setBackendConfiguration(
         new JsonObject()
+          .put("backend-name", RedisBackendService.class.getName())
           .put("connectionString", redisConnectionString)
           .put("key", "devices_records")
       ));
@@ -50,11 +76,46 @@ public class DiscoveryManager {
   }
 
   public Single<Record> publish(Record record) {
-    return getDiscovery().rxPublish(record);
+    return traced(record.getName(), "publish", getDiscovery().rxPublish(record));
   }
 
   public Single<Record> update(Record record) {
-    return getDiscovery().rxUpdate(record);
+    return traced(record.getName(), "update", getDiscovery().rxUpdate(record));
+  }
+
+  public static int pendingOperations() {
+    return pending.get();
+  }
+
+  // JFR event around an operation on the discovery backend
+  public static <T> Single<T> traced(String device, String operation, Single<T> single) {
+    return Single.defer(() -> {
+      var event = new DiscoveryEvent();
+      event.device = device;
+      event.operation = operation;
+      event.begin();
+      pending.incrementAndGet();
+      return single
+        .doOnSuccess(ok -> event.success = true)
+        .doFinally(() -> {
+          pending.decrementAndGet();
+          event.commit();
+        });
+    });
+  }
+
+  // lookup: an empty result is a success
+  public static <T> Maybe<T> traced(String device, String operation, Maybe<T> maybe) {
+    return Maybe.defer(() -> {
+      var event = new DiscoveryEvent();
+      event.device = device;
+      event.operation = operation;
+      event.begin();
+      return maybe
+        .doOnSuccess(ok -> event.success = true)
+        .doOnComplete(() -> event.success = true)
+        .doFinally(event::commit);
+    });
   }
 
 
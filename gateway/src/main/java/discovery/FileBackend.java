@@ -0,0 +1,376 @@
+package discovery;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.servicediscovery.Record;
+import io.vertx.servicediscovery.spi.ServiceDiscoveryBackend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/*
+  Discovery backend stored in a local log-structured file (no Redis needed)
+  - all the records are kept in memory: the lookups never leave the JVM
+  - every change is appended to the log: [int length][int crc32][byte op][short key length][key][JSON]
+    the key is the registration id, the JSON of the record is empty for a DELETE
+  - the appends are done by a single writer thread, in order, with group commit
+    (the pending changes are written together, and forced to the disk once if `fsync` is true)
+  - a change is applied in memory (by the writer thread) only once its entry is written: a failed write
+    is cut from the log (truncated back to the last written entry) and the change is not applied;
+    if the log cannot be truncated, the backend refuses the next writes (a torn entry in the middle of the log
+    would hide the entries after it at the next recovery)
+  - at startup the log is replayed (memory-mapped): the entries are checked and indexed by key first,
+    then only the last version of each live record is kept, and parsed on its first read; a torn or corrupted tail (crash during
+    an append) is detected with the length and the CRC, and cut
+  - when more than half of the log is garbage (old versions of the records), the log is compacted:
+    the live records are written to a new file that atomically replaces the log
+
+  Configuration (backend configuration of the service discovery):
+  - "path": path of the log file, "fsync": force every group of appends to the disk (default true)
+ */
+public class FileBackend implements ServiceDiscoveryBackend {
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final int ENTRY_HEADER = 11;
+  private static final long MIN_COMPACTION_SIZE = 1 << 20;
+
+  private static class PendingWrite {
+    final ByteBuffer entry;
+    // the change of the in-memory records, applied when the entry is written
+    final Runnable apply;
+    final Context context;
+    final Runnable onWritten;
+    final Handler<Throwable> onFailure;
+
+    PendingWrite(ByteBuffer entry, Runnable apply, Context context, Runnable onWritten, Handler<Throwable> onFailure) {
+      this.entry = entry;
+      this.apply = apply;
+      this.context = context;
+      this.onWritten = onWritten;
+      this.onFailure = onFailure;
+    }
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(FileBackend.class);
+  // a record recovered from the log is parsed when it is first read
+  private static class Stored {
+    private final byte[] raw;
+    private volatile JsonObject json;
+
+    Stored(byte[] raw) {
+      this.raw = raw;
+    }
+
+    Stored(JsonObject json) {
+      this.raw = null;
+      this.json = json;
+    }
+
+    JsonObject json() {
+      var parsed = json;
+      if (parsed == null) {
+        parsed = new JsonObject(Buffer.buffer(raw));
+        json = parsed;
+      }
+      return parsed;
+    }
+  }
+
+  private final Map<String, Stored> records = new ConcurrentHashMap<>();
+  private final BlockingQueue<PendingWrite> writes = new LinkedBlockingQueue<>();
+
+  private Vertx vertx;
+  private Path path;
+  private boolean fsync;
+  private FileChannel channel;
+  // size of the log (end of the last written entry), and size of the entries of the live records
+  private long logSize;
+  // the log could not be repaired after a failed write: the writes are refused
+  private IOException broken;
+  private final Map<String, Integer> liveSizes = new ConcurrentHashMap<>();
+  private final AtomicLong liveBytes = new AtomicLong();
+
+  @Override
+  public void init(Vertx vertx, JsonObject config) {
+    this.vertx = vertx;
+    this.path = Path.of(config.getString("path", "devices_records.log"));
+    this.fsync = config.getBoolean("fsync", true);
+    try {
+      if (path.getParent() != null) {
+        Files.createDirectories(path.getParent());
+      }
+      var start = System.nanoTime();
+      recover();
+      logger.info("{} records recovered from {} in {} ms", records.size(), path, (System.nanoTime() - start) / 1_000_000);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to open the discovery log " + path, e);
+    }
+    var writer = new Thread(this::writeLoop, "discovery-file-backend-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  @Override
+  public void store(Record record, Handler<AsyncResult<Record>> resultHandler) {
+    if (record.getRegistration() != null) {
+      resultHandler.handle(Future.failedFuture("The record has already been registered"));
+      return;
+    }
+    record.setRegistration(UUID.randomUUID().toString());
+    put(record, () -> resultHandler.handle(Future.succeededFuture(record)),
+      error -> resultHandler.handle(Future.failedFuture(error)));
+  }
+
+  @Override
+  public void remove(Record record, Handler<AsyncResult<Record>> resultHandler) {
+    remove(record.getRegistration(), resultHandler);
+  }
+
+  @Override
+  public void remove(String uuid, Handler<AsyncResult<Record>> resultHandler) {
+    var stored = records.get(uuid);
+    if (stored == null) {
+      resultHandler.handle(Future.failedFuture("Record '" + uuid + "' not found"));
+      return;
+    }
+    append(entry(DELETE, uuid, new byte[0]),
+      () -> {
+        records.remove(uuid);
+        forget(uuid);
+      },
+      () -> resultHandler.handle(Future.succeededFuture(new Record(stored.json()))),
+      error -> resultHandler.handle(Future.failedFuture(error)));
+  }
+
+  @Override
+  public void update(Record record, Handler<AsyncResult<Void>> resultHandler) {
+    if (record.getRegistration() == null) {
+      resultHandler.handle(Future.failedFuture("No registration id in the record"));
+      return;
+    }
+    put(record, () -> resultHandler.handle(Future.succeededFuture()),
+      error -> resultHandler.handle(Future.failedFuture(error)));
+  }
+
+  @Override
+  public void getRecords(Handler<AsyncResult<List<Record>>> resultHandler) {
+    resultHandler.handle(Future.succeededFuture(
+      records.values().stream().map(stored -> new Record(stored.json())).collect(Collectors.toList())));
+  }
+
+  @Override
+  public void getRecord(String uuid, Handler<AsyncResult<Record>> resultHandler) {
+    var stored = records.get(uuid);
+    resultHandler.handle(Future.succeededFuture(stored == null ? null : new Record(stored.json())));
+  }
+
+  private void put(Record record, Runnable onWritten, Handler<Throwable> onFailure) {
+    var uuid = record.getRegistration();
+    var json = record.toJson();
+    var entry = entry(PUT, uuid, json.toBuffer().getBytes());
+    var entrySize = entry.remaining();
+    append(entry, () -> {
+      records.put(uuid, new Stored(json));
+      track(uuid, entrySize);
+    }, onWritten, onFailure);
+  }
+
+  private void track(String uuid, int entrySize) {
+    var previous = liveSizes.put(uuid, entrySize);
+    liveBytes.addAndGet(entrySize - (previous == null ? 0 : previous));
+  }
+
+  private void forget(String uuid) {
+    var previous = liveSizes.remove(uuid);
+    if (previous != null) liveBytes.addAndGet(-previous);
+  }
+
+  private void append(ByteBuffer entry, Runnable apply, Runnable onWritten, Handler<Throwable> onFailure) {
+    writes.add(new PendingWrite(entry, apply, vertx.getOrCreateContext(), onWritten, onFailure));
+  }
+
+  private static ByteBuffer entry(byte op, String key, byte[] json) {
+    var keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    var entry = ByteBuffer.allocate(ENTRY_HEADER + keyBytes.length + json.length);
+    entry.putInt(entry.capacity() - 8).putInt(0).put(op).putShort((short) keyBytes.length).put(keyBytes).put(json);
+    var crc = new CRC32();
+    crc.update(entry.array(), 8, entry.capacity() - 8);
+    entry.putInt(4, (int) crc.getValue()).flip();
+    return entry;
+  }
+
+  // replay the log, cut the torn tail
+  private void recover() throws IOException {
+    Files.deleteIfExists(compactedPath());
+    channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    var size = channel.size();
+    long position = 0;
+    if (size > 0) {
+      var log = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      // key -> position of the last PUT (the record is live), or absent (deleted)
+      var latest = new HashMap<String, Integer>();
+      var crc = new CRC32();
+      while (position + ENTRY_HEADER <= size) {
+        var start = (int) position;
+        var length = log.getInt(start);
+        if (length < ENTRY_HEADER - 8 || position + 8 + length > size) break;
+        crc.reset();
+        crc.update(log.duplicate().position(start + 8).limit(start + 8 + length));
+        if ((int) crc.getValue() != log.getInt(start + 4)) break;
+
+        var keyBytes = new byte[log.getShort(start + 9)];
+        log.position(start + ENTRY_HEADER).get(keyBytes);
+        var key = new String(keyBytes, StandardCharsets.UTF_8);
+        if (log.get(start + 8) == PUT) {
+          latest.put(key, start);
+        } else {
+          latest.remove(key);
+        }
+        position += 8 + length;
+      }
+      latest.forEach((key, start) -> {
+        var length = log.getInt(start);
+        var offset = ENTRY_HEADER + log.getShort(start + 9);
+        var json = new byte[length + 8 - offset];
+        log.position(start + offset).get(json);
+        records.put(key, new Stored(json));
+        track(key, length + 8);
+      });
+    }
+    if (position < size) {
+      logger.warn("Discovery log: {} bytes of torn or corrupted entries removed", size - position);
+      channel.truncate(position);
+      channel.force(true);
+    }
+    channel.position(position);
+    logSize = position;
+  }
+
+  private Path compactedPath() {
+    return path.resolveSibling(path.getFileName() + ".compact");
+  }
+
+  private void writeLoop() {
+    var batch = new ArrayList<PendingWrite>();
+    while (true) {
+      try {
+        batch.add(writes.take());
+        writes.drainTo(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      try {
+        write(batch);
+      } catch (IOException | RuntimeException e) {
+        logger.error("Discovery log write failed: {}", e.getMessage());
+        cutFailedWrite();
+        batch.forEach(write -> write.context.runOnContext(v -> write.onFailure.handle(e)));
+        batch.clear();
+        continue;
+      }
+      batch.forEach(write -> write.apply.run());
+      batch.forEach(write -> write.context.runOnContext(v -> write.onWritten.run()));
+      batch.clear();
+      try {
+        compactIfNeeded();
+      } catch (IOException | RuntimeException e) {
+        logger.error("Discovery log compaction failed: {}", e.getMessage());
+        reopen();
+      }
+    }
+  }
+
+  private void write(List<PendingWrite> batch) throws IOException {
+    if (broken != null) throw new IOException("Discovery log unavailable after a failed write", broken);
+    var buffers = batch.stream().map(write -> write.entry).toArray(ByteBuffer[]::new);
+    long written = 0;
+    var remaining = batch.stream().mapToLong(write -> write.entry.remaining()).sum();
+    while (written < remaining) {
+      written += channel.write(buffers);
+    }
+    if (fsync) {
+      channel.force(false);
+    }
+    logSize += written;
+  }
+
+  // cut the entries of the failed write (partially written, or not forced to the disk)
+  private void cutFailedWrite() {
+    if (broken != null) return;
+    try {
+      channel.truncate(logSize);
+      channel.position(logSize);
+    } catch (IOException e) {
+      logger.error("Discovery log cannot be repaired, the next writes are refused: {}", e.getMessage());
+      broken = e;
+    }
+  }
+
+  // the compaction failed (the log is kept): the log is opened again if it was closed
+  private void reopen() {
+    try {
+      Files.deleteIfExists(compactedPath());
+      if (!channel.isOpen()) {
+        // the previous log, or the compacted one if it replaced the log before the failure
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        logSize = channel.size();
+        channel.position(logSize);
+      }
+    } catch (IOException e) {
+      logger.error("Discovery log cannot be opened again, the next writes are refused: {}", e.getMessage());
+      broken = e;
+    }
+  }
+
+  // rewrite the live records in a new log when more than half of the log is garbage
+  private void compactIfNeeded() throws IOException {
+    if (logSize < MIN_COMPACTION_SIZE || liveBytes.get() * 2 > logSize) return;
+
+    var compacted = compactedPath();
+    long size = 0;
+    try (var output = new BufferedOutputStream(Files.newOutputStream(compacted), 1 << 16)) {
+      for (var record : Map.copyOf(records).entrySet()) {
+        var stored = record.getValue();
+        var entry = entry(PUT, record.getKey(), stored.raw != null ? stored.raw : stored.json().toBuffer().getBytes());
+        output.write(entry.array(), 0, entry.limit());
+        size += entry.limit();
+      }
+    }
+    try (var output = FileChannel.open(compacted, StandardOpenOption.WRITE)) {
+      output.force(true);
+    }
+    channel.close();
+    Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    channel.position(channel.size());
+    logger.info("Discovery log compacted: {} -> {} bytes", logSize, size);
+    logSize = size;
+  }
+}
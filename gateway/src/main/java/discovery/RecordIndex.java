@@ -0,0 +1,172 @@
+package discovery;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.servicediscovery.ServiceDiscovery;
+import io.vertx.servicediscovery.Record;
+import io.vertx.servicediscovery.ServiceDiscoveryOptions;
+import io.vertx.servicediscovery.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/*
+  In-memory index of the records of the discovery backend
+  - the records are sorted by id (name of the record): the pagination uses the last id of a page as cursor
+  - secondary indexes on the status, the `category` and the `position` (metadata)
+  - the index is loaded once, then it is maintained incrementally with the announcements of the
+    service discovery (every publish / update / unpublish done by Registration, DevicesHealth, ...)
+  Not thread safe: use it from the event loop only
+ */
+public class RecordIndex {
+  public static final String STATUS = "status";
+  public static final String CATEGORY = "category";
+  public static final String POSITION = "position";
+
+  private final Logger logger = LoggerFactory.getLogger(RecordIndex.class);
+  private final TreeMap<String, JsonObject> records = new TreeMap<>();
+  // ids announced while the records are loaded (the announcement is more recent than the loaded record)
+  private Set<String> announcedDuringLoad = new HashSet<>();
+  private final Map<String, Map<String, TreeSet<String>>> indexes = Map.of(
+    STATUS, new HashMap<>(),
+    CATEGORY, new HashMap<>(),
+    POSITION, new HashMap<>()
+  );
+
+  public void start(Vertx vertx, ServiceDiscovery discovery) {
+    vertx.eventBus().<JsonObject>consumer(ServiceDiscoveryOptions.DEFAULT_ANNOUNCE_ADDRESS,
+      message -> {
+        var record = new Record(message.body());
+        if (announcedDuringLoad != null) announcedDuringLoad.add(record.getName());
+        apply(record);
+      });
+
+    discovery.rxGetRecords(record -> true, true)
+      .subscribe(
+        list -> {
+          list.stream()
+            .filter(record -> !announcedDuringLoad.contains(record.getName()))
+            .forEach(this::apply);
+          announcedDuringLoad = null;
+          logger.info("{} records indexed", records.size());
+        },
+        error -> logger.error("Unable to load the records: {}", error.getMessage()));
+  }
+
+  // add, update or remove (unpublished record: status DOWN) a record
+  public void apply(Record record) {
+    var id = record.getName();
+    if (id == null) return;
+    var previous = records.remove(id);
+    if (previous != null) {
+      indexes.forEach((field, index) -> remove(index, valueOf(previous, field), id));
+    }
+    if (record.getStatus() == Status.DOWN) return;
+
+    var view = view(record);
+    records.put(id, view);
+    indexes.forEach((field, index) ->
+      index.computeIfAbsent(valueOf(view, field), key -> new TreeSet<>()).add(id));
+  }
+
+  public int size() {
+    return records.size();
+  }
+
+  public JsonObject get(String id) {
+    return records.get(id);
+  }
+
+  /*
+    Page of the records matching the filters (`filters`: field -> value, null values are ignored)
+    - `cursor`: id of the last record of the previous page (null for the first page)
+    - `fields`: projection (null or empty: all the fields)
+   */
+  public JsonObject query(Map<String, String> filters, String cursor, int limit, List<String> fields) {
+    // iterate over the smallest candidate set
+    NavigableSet<String> candidates = records.navigableKeySet();
+    var checks = new ArrayList<Map.Entry<String, String>>();
+    for (var filter : filters.entrySet()) {
+      if (filter.getValue() == null) continue;
+      checks.add(filter);
+      var ids = indexes.get(filter.getKey()).getOrDefault(filter.getValue(), new TreeSet<>());
+      if (ids.size() < candidates.size()) {
+        candidates = ids;
+      }
+    }
+    if (cursor != null) {
+      candidates = candidates.tailSet(cursor, false);
+    }
+
+    var items = new JsonArray();
+    String last = null;
+    var more = false;
+    for (var id : candidates) {
+      var view = records.get(id);
+      if (!checks.stream().allMatch(check -> check.getValue().equals(valueOf(view, check.getKey())))) continue;
+      if (items.size() == limit) {
+        more = true;
+        break;
+      }
+      items.add(project(view, fields));
+      last = id;
+    }
+    return new JsonObject()
+      .put("items", items)
+      .put("next", more ? last : null);
+  }
+
+  // number of records per status, category and position
+  public JsonObject facets() {
+    var json = new JsonObject().put("total", records.size());
+    indexes.forEach((field, index) -> {
+      var counts = new JsonObject();
+      new TreeMap<>(index).forEach((value, ids) -> counts.put(value, ids.size()));
+      json.put(field, counts);
+    });
+    return json;
+  }
+
+  private static JsonObject project(JsonObject view, List<String> fields) {
+    if (fields == null || fields.isEmpty()) return view;
+    var json = new JsonObject();
+    fields.forEach(field -> {
+      if (view.containsKey(field)) json.put(field, view.getValue(field));
+    });
+    return json;
+  }
+
+  private static JsonObject view(Record record) {
+    var metadata = record.getMetadata() == null ? new JsonObject() : record.getMetadata();
+    var location = record.getLocation() == null ? new JsonObject() : record.getLocation();
+    return new JsonObject()
+      .put("id", record.getName())
+      .put(STATUS, record.getStatus().name())
+      .put(CATEGORY, metadata.getString(CATEGORY, ""))
+      .put(POSITION, metadata.getString(POSITION, ""))
+      .put("host", location.getString("host"))
+      .put("port", location.getInteger("port"))
+      .put("registration", record.getRegistration());
+  }
+
+  private static String valueOf(JsonObject view, String field) {
+    return view.getString(field, "");
+  }
+
+  private static void remove(Map<String, TreeSet<String>> index, String value, String id) {
+    Set<String> ids = index.get(value);
+    if (ids == null) return;
+    ids.remove(id);
+    if (ids.isEmpty()) index.remove(value);
+  }
+}
@@ -0,0 +1,77 @@
+package encoding;
+
+import io.vertx.core.buffer.Buffer;
+
+// CBOR (RFC 8949), definite lengths only
+public class CborEncoder extends TreeEncoder {
+  private static final int UNSIGNED = 0;
+  private static final int NEGATIVE = 1;
+  private static final int TEXT = 3;
+  private static final int ARRAY = 4;
+  private static final int MAP = 5;
+
+  @Override
+  public String name() {
+    return "cbor";
+  }
+
+  @Override
+  public String contentType() {
+    return "application/cbor";
+  }
+
+  @Override
+  void writeNull(Buffer buffer) {
+    buffer.appendByte((byte) 0xF6);
+  }
+
+  @Override
+  void writeBoolean(Buffer buffer, boolean value) {
+    buffer.appendByte((byte) (value ? 0xF5 : 0xF4));
+  }
+
+  @Override
+  void writeLong(Buffer buffer, long value) {
+    if (value >= 0) {
+      writeHeader(buffer, UNSIGNED, value);
+    } else {
+      writeHeader(buffer, NEGATIVE, -1 - value);
+    }
+  }
+
+  @Override
+  void writeDouble(Buffer buffer, double value) {
+    buffer.appendByte((byte) 0xFB).appendDouble(value);
+  }
+
+  @Override
+  void writeStringHeader(Buffer buffer, int length) {
+    writeHeader(buffer, TEXT, length);
+  }
+
+  @Override
+  void writeArrayHeader(Buffer buffer, int size) {
+    writeHeader(buffer, ARRAY, size);
+  }
+
+  @Override
+  void writeMapHeader(Buffer buffer, int size) {
+    writeHeader(buffer, MAP, size);
+  }
+
+  // `value` is an unsigned 64 bits value
+  private void writeHeader(Buffer buffer, int majorType, long value) {
+    var major = majorType << 5;
+    if (value >= 0 && value < 24) {
+      buffer.appendByte((byte) (major | value));
+    } else if (value >= 0 && value < 0x100) {
+      buffer.appendByte((byte) (major | 24)).appendByte((byte) value);
+    } else if (value >= 0 && value < 0x10000) {
+      buffer.appendByte((byte) (major | 25)).appendShort((short) value);
+    } else if (value >= 0 && value < 0x100000000L) {
+      buffer.appendByte((byte) (major | 26)).appendInt((int) value);
+    } else {
+      buffer.appendByte((byte) (major | 27)).appendLong(value);
+    }
+  }
+}
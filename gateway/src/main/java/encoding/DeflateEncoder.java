@@ -0,0 +1,38 @@
+package encoding;
+
+import io.vertx.core.buffer.Buffer;
+
+import java.util.zip.Deflater;
+
+/*
+  Deflate (zlib format) compression of the payloads of another encoder
+  Useful for batches: the keys and the strings are repeated in every reading of a batch
+ */
+public class DeflateEncoder implements PayloadEncoder {
+  private final PayloadEncoder encoder;
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final byte[] chunk = new byte[8192];
+
+  public DeflateEncoder(PayloadEncoder encoder) {
+    this.encoder = encoder;
+  }
+
+  @Override
+  public String name() {
+    return encoder.name() + "+deflate";
+  }
+
+  @Override
+  public synchronized Buffer encode(Object value) {
+    var input = encoder.encode(value).getBytes();
+    var output = Buffer.buffer(input.length / 2 + 16);
+    deflater.reset();
+    deflater.setInput(input);
+    deflater.finish();
+    while (!deflater.finished()) {
+      var length = deflater.deflate(chunk);
+      output.appendBytes(chunk, 0, length);
+    }
+    return output;
+  }
+}
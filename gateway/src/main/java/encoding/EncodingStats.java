@@ -0,0 +1,27 @@
+package encoding;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Size and encoding cost of the messages of an encoder
+public class EncodingStats {
+  private final LongAdder messages = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder nanos = new LongAdder();
+
+  public void record(int size, long encodingNanos) {
+    messages.increment();
+    bytes.add(size);
+    nanos.add(encodingNanos);
+  }
+
+  public JsonObject toJson() {
+    var count = messages.sum();
+    return new JsonObject()
+      .put("messages", count)
+      .put("bytes", bytes.sum())
+      .put("averageBytes", count == 0 ? 0.0 : (double) bytes.sum() / count)
+      .put("averageEncodingMicros", count == 0 ? 0.0 : nanos.sum() / 1_000.0 / count);
+  }
+}
@@ -0,0 +1,22 @@
+package encoding;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+
+// the historical encoding: JSON text
+public class JsonEncoder implements PayloadEncoder {
+  @Override
+  public String name() {
+    return "json";
+  }
+
+  @Override
+  public Buffer encode(Object value) {
+    return Json.CODEC.toBuffer(value, false);
+  }
+
+  @Override
+  public String contentType() {
+    return "application/json";
+  }
+}
@@ -0,0 +1,96 @@
+package encoding;
+
+import io.vertx.core.buffer.Buffer;
+
+// MessagePack (https://github.com/msgpack/msgpack/blob/master/spec.md)
+public class MessagePackEncoder extends TreeEncoder {
+
+  @Override
+  public String name() {
+    return "msgpack";
+  }
+
+  @Override
+  public String contentType() {
+    return "application/msgpack";
+  }
+
+  @Override
+  void writeNull(Buffer buffer) {
+    buffer.appendByte((byte) 0xC0);
+  }
+
+  @Override
+  void writeBoolean(Buffer buffer, boolean value) {
+    buffer.appendByte((byte) (value ? 0xC3 : 0xC2));
+  }
+
+  @Override
+  void writeLong(Buffer buffer, long value) {
+    if (value >= 0) {
+      if (value < 0x80) {
+        buffer.appendByte((byte) value); // positive fixint
+      } else if (value < 0x100) {
+        buffer.appendByte((byte) 0xCC).appendByte((byte) value);
+      } else if (value < 0x10000) {
+        buffer.appendByte((byte) 0xCD).appendShort((short) value);
+      } else if (value < 0x100000000L) {
+        buffer.appendByte((byte) 0xCE).appendInt((int) value);
+      } else {
+        buffer.appendByte((byte) 0xCF).appendLong(value);
+      }
+    } else {
+      if (value >= -32) {
+        buffer.appendByte((byte) value); // negative fixint
+      } else if (value >= Byte.MIN_VALUE) {
+        buffer.appendByte((byte) 0xD0).appendByte((byte) value);
+      } else if (value >= Short.MIN_VALUE) {
+        buffer.appendByte((byte) 0xD1).appendShort((short) value);
+      } else if (value >= Integer.MIN_VALUE) {
+        buffer.appendByte((byte) 0xD2).appendInt((int) value);
+      } else {
+        buffer.appendByte((byte) 0xD3).appendLong(value);
+      }
+    }
+  }
+
+  @Override
+  void writeDouble(Buffer buffer, double value) {
+    buffer.appendByte((byte) 0xCB).appendDouble(value);
+  }
+
+  @Override
+  void writeStringHeader(Buffer buffer, int length) {
+    if (length < 32) {
+      buffer.appendByte((byte) (0xA0 | length));
+    } else if (length < 0x100) {
+      buffer.appendByte((byte) 0xD9).appendByte((byte) length);
+    } else if (length < 0x10000) {
+      buffer.appendByte((byte) 0xDA).appendShort((short) length);
+    } else {
+      buffer.appendByte((byte) 0xDB).appendInt(length);
+    }
+  }
+
+  @Override
+  void writeArrayHeader(Buffer buffer, int size) {
+    if (size < 16) {
+      buffer.appendByte((byte) (0x90 | size));
+    } else if (size < 0x10000) {
+      buffer.appendByte((byte) 0xDC).appendShort((short) size);
+    } else {
+      buffer.appendByte((byte) 0xDD).appendInt(size);
+    }
+  }
+
+  @Override
+  void writeMapHeader(Buffer buffer, int size) {
+    if (size < 16) {
+      buffer.appendByte((byte) (0x80 | size));
+    } else if (size < 0x10000) {
+      buffer.appendByte((byte) 0xDE).appendShort((short) size);
+    } else {
+      buffer.appendByte((byte) 0xDF).appendInt(size);
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package encoding;
+
+import io.vertx.core.buffer.Buffer;
+
+/*
+  Encoder of the MQTT payloads
+  `value` is a JsonObject (a reading) or a JsonArray (a batch of readings)
+ */
+public interface PayloadEncoder {
+  String name();
+  Buffer encode(Object value);
+
+  // Content type of the payloads (informative, e.g. for the stats)
+  default String contentType() {
+    return "application/octet-stream";
+  }
+}
@@ -0,0 +1,162 @@
+package encoding;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+  Schema-based binary layout of the device readings
+  {"id":..,"location":..,"category":..,"sensors":[{"<name>":{"unit":..,"value":<number>}}, ...]}
+
+  The strings (device ids, locations, categories, sensor names, units) are interned:
+  a string is sent once, then it is replaced by its index in the dictionary
+  (one dictionary for all the topics: a string may be defined by a payload of another topic)
+
+  payload  = 0x01 dictId version reading | 0x02 dictId version varint(count) reading* | 0x00 cbor (anything else)
+  dictId   = int32 (big endian): random id of the dictionary, drawn once per encoder (a new one at every run)
+  version  = varint(size of the dictionary before the payload): the payload needs these entries
+  reading  = ref(id) ref(location) ref(category) varint(sensorCount) (ref(name) ref(unit) float64(value))*
+  ref      = varint(index << 2 | 0)                        known string
+           | varint(index << 2 | 1) varint(length) utf8    new string (added to the dictionary at index)
+           | varint(length << 2 | 2) utf8                  literal (the dictionary is full)
+  varint   = unsigned LEB128
+
+  A consumer decodes a payload with a dictionary of the same `dictId` and of at least `version` entries
+  (the dictionary published by the gateway, see MqttPublisher), the new strings of the payload are added to it.
+  With an older dictionary, the payload waits for the next dictionary (MQTT does not order the messages of
+  different topics). With another `dictId` (the gateway restarted: the indexes start again from 0), the consumer
+  drops its dictionary and waits for the dictionary of this id.
+  `dictionary()` returns the whole dictionary: {"id": dictId, "strings": [...]}
+ */
+public class SchemaEncoder implements PayloadEncoder {
+  private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+  private final CborEncoder fallback = new CborEncoder();
+  private final Map<String, Integer> indexes = new HashMap<>();
+  private final List<String> strings = new ArrayList<>();
+  private final int dictionaryId = ThreadLocalRandom.current().nextInt();
+
+  @Override
+  public String name() {
+    return "schema";
+  }
+
+  @Override
+  public synchronized Buffer encode(Object value) {
+    var buffer = Buffer.buffer(64);
+    if (value instanceof JsonObject && isReading((JsonObject) value)) {
+      buffer.appendByte((byte) 0x01);
+      buffer.appendInt(dictionaryId);
+      writeVarint(buffer, strings.size());
+      writeReading(buffer, (JsonObject) value);
+    } else if (value instanceof JsonArray && isBatch((JsonArray) value)) {
+      var batch = (JsonArray) value;
+      buffer.appendByte((byte) 0x02);
+      buffer.appendInt(dictionaryId);
+      writeVarint(buffer, strings.size());
+      writeVarint(buffer, batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+        writeReading(buffer, batch.getJsonObject(i));
+      }
+    } else {
+      buffer.appendByte((byte) 0x00);
+      fallback.write(buffer, value);
+    }
+    return buffer;
+  }
+
+  public synchronized JsonObject dictionary() {
+    return new JsonObject()
+      .put("id", dictionaryId)
+      .put("strings", new JsonArray(new ArrayList<>(strings)));
+  }
+
+  public int dictionaryId() {
+    return dictionaryId;
+  }
+
+  public synchronized int dictionarySize() {
+    return strings.size();
+  }
+
+  private void writeReading(Buffer buffer, JsonObject reading) {
+    writeRef(buffer, reading.getString("id"));
+    writeRef(buffer, reading.getString("location"));
+    writeRef(buffer, reading.getString("category"));
+    var sensors = reading.getJsonArray("sensors");
+    writeVarint(buffer, sensors.size());
+    for (int i = 0; i < sensors.size(); i++) {
+      var sensor = sensors.getJsonObject(i);
+      var name = sensor.fieldNames().iterator().next();
+      var measure = sensor.getJsonObject(name);
+      writeRef(buffer, name);
+      writeRef(buffer, measure.getString("unit"));
+      buffer.appendDouble(((Number) measure.getValue("value")).doubleValue());
+    }
+  }
+
+  private void writeRef(Buffer buffer, String value) {
+    var index = indexes.get(value);
+    if (index != null) {
+      writeVarint(buffer, (long) index << 2);
+      return;
+    }
+    var bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (strings.size() < MAX_DICTIONARY_SIZE) {
+      index = strings.size();
+      strings.add(value);
+      indexes.put(value, index);
+      writeVarint(buffer, (long) index << 2 | 1);
+      writeVarint(buffer, bytes.length);
+    } else {
+      writeVarint(buffer, (long) bytes.length << 2 | 2);
+    }
+    buffer.appendBytes(bytes);
+  }
+
+  private static void writeVarint(Buffer buffer, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.appendByte((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.appendByte((byte) value);
+  }
+
+  private static boolean isBatch(JsonArray batch) {
+    for (int i = 0; i < batch.size(); i++) {
+      var item = batch.getValue(i);
+      if (!(item instanceof JsonObject) || !isReading((JsonObject) item)) return false;
+    }
+    return true;
+  }
+
+  // check that the reading fits the schema (else the CBOR fallback is used)
+  private static boolean isReading(JsonObject reading) {
+    if (reading.size() != 4
+      || !(reading.getValue("id") instanceof String)
+      || !(reading.getValue("location") instanceof String)
+      || !(reading.getValue("category") instanceof String)
+      || !(reading.getValue("sensors") instanceof JsonArray)) {
+      return false;
+    }
+    for (var item : reading.getJsonArray("sensors")) {
+      if (!(item instanceof JsonObject) || ((JsonObject) item).size() != 1) return false;
+      var name = ((JsonObject) item).fieldNames().iterator().next();
+      var measure = ((JsonObject) item).getValue(name);
+      if (!(measure instanceof JsonObject)
+        || ((JsonObject) measure).size() != 2
+        || !(((JsonObject) measure).getValue("unit") instanceof String)
+        || !(((JsonObject) measure).getValue("value") instanceof Number)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
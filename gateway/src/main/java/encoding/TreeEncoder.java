@@ -0,0 +1,80 @@
+package encoding;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/*
+  Base of the binary encoders of a JSON tree (CBOR, MessagePack)
+  The subclasses only write the headers and the scalar values
+ */
+abstract class TreeEncoder implements PayloadEncoder {
+
+  @Override
+  public Buffer encode(Object value) {
+    var buffer = Buffer.buffer(256);
+    write(buffer, value);
+    return buffer;
+  }
+
+  void write(Buffer buffer, Object value) {
+    if (value == null) {
+      writeNull(buffer);
+    } else if (value instanceof JsonObject) {
+      writeMap(buffer, ((JsonObject) value).getMap());
+    } else if (value instanceof Map) {
+      writeMap(buffer, (Map<?, ?>) value);
+    } else if (value instanceof JsonArray) {
+      writeList(buffer, ((JsonArray) value).getList());
+    } else if (value instanceof List) {
+      writeList(buffer, (List<?>) value);
+    } else if (value instanceof String) {
+      writeString(buffer, (String) value);
+    } else if (value instanceof Boolean) {
+      writeBoolean(buffer, (Boolean) value);
+    } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+      writeLong(buffer, ((Number) value).longValue());
+    } else if (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64) {
+      writeLong(buffer, ((BigInteger) value).longValue());
+    } else if (value instanceof BigDecimal || value instanceof BigInteger || value instanceof Number) {
+      writeDouble(buffer, ((Number) value).doubleValue());
+    } else {
+      writeString(buffer, value.toString());
+    }
+  }
+
+  private void writeMap(Buffer buffer, Map<?, ?> map) {
+    writeMapHeader(buffer, map.size());
+    for (var entry : map.entrySet()) {
+      writeString(buffer, String.valueOf(entry.getKey()));
+      write(buffer, entry.getValue());
+    }
+  }
+
+  private void writeList(Buffer buffer, List<?> list) {
+    writeArrayHeader(buffer, list.size());
+    for (var item : list) {
+      write(buffer, item);
+    }
+  }
+
+  void writeString(Buffer buffer, String value) {
+    var bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeStringHeader(buffer, bytes.length);
+    buffer.appendBytes(bytes);
+  }
+
+  abstract void writeNull(Buffer buffer);
+  abstract void writeBoolean(Buffer buffer, boolean value);
+  abstract void writeLong(Buffer buffer, long value);
+  abstract void writeDouble(Buffer buffer, double value);
+  abstract void writeStringHeader(Buffer buffer, int length);
+  abstract void writeArrayHeader(Buffer buffer, int size);
+  abstract void writeMapHeader(Buffer buffer, int size);
+}
@@ -0,0 +1,39 @@
+package helpers;
+
+import io.reactivex.Completable;
+import io.vertx.reactivex.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.IntSupplier;
+
+/*
+  Drain phase of the gateway when it stops: wait (on the event loop, without blocking it) until
+  a count of pending work is 0, at most until the deadline shared by all the stages of the drain
+  (DRAIN_TIMEOUT). A stage that times out is logged, and the next stages still run.
+ */
+public class Drain {
+  private static final Logger logger = LoggerFactory.getLogger(Drain.class);
+  private static final long CHECK_INTERVAL = 10;
+
+  private Drain() {
+  }
+
+  public static Completable until(Vertx vertx, String stage, IntSupplier pending, long deadline) {
+    return Completable.create(emitter -> check(vertx, stage, pending, deadline, System.currentTimeMillis(), emitter::onComplete));
+  }
+
+  private static void check(Vertx vertx, String stage, IntSupplier pending, long deadline, long start, Runnable done) {
+    var count = pending.getAsInt();
+    var now = System.currentTimeMillis();
+    if (count == 0) {
+      if (now - start >= CHECK_INTERVAL) logger.info("Drain: {} done in {} ms", stage, now - start);
+      done.run();
+    } else if (now >= deadline) {
+      logger.warn("Drain: {} {} left after the timeout", count, stage);
+      done.run();
+    } else {
+      vertx.setTimer(CHECK_INTERVAL, id -> check(vertx, stage, pending, deadline, start, done));
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package helpers;
+
+import io.vertx.reactivex.core.Vertx;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/*
+  Aggregated logging of the repeated per-device events (e.g. "Unable to connect" for every device of a room, on every tick)
+  - an event is a fixed message (the key) and the id of a device
+  - per key, the first `rateLimit` events of a window are logged as usual ("<event>: <id> (<detail>)"),
+    the next ones are only counted
+  - at the end of the window, one summary per key with suppressed events:
+    "<event>: 1250 times (250 devices) in the last 10 s, e.g. [a, b, c, d, e], 1245 not logged"
+  - the window timer is only armed while events happen
+  LOG_SUMMARY_INTERVAL: window (ms, default 10000), LOG_RATE_LIMIT: events logged per key and per window (default 5)
+  Not thread safe: use it from the event loop only
+ */
+public class LogAggregator {
+  private static final int SAMPLES = 5;
+
+  private static class Summary {
+    final boolean warn;
+    long count = 0;
+    final Set<String> ids = new HashSet<>();
+    final List<String> samples = new ArrayList<>(SAMPLES);
+
+    Summary(boolean warn) {
+      this.warn = warn;
+    }
+  }
+
+  private final Logger logger;
+  private final long window;
+  private final int rateLimit;
+  private final Map<String, Summary> summaries = new HashMap<>();
+  private long windowStart = 0;
+  private boolean flushScheduled = false;
+
+  public LogAggregator(Logger logger) {
+    this(logger,
+      Long.parseLong(Optional.ofNullable(System.getenv("LOG_SUMMARY_INTERVAL")).orElse("10000")),
+      Integer.parseInt(Optional.ofNullable(System.getenv("LOG_RATE_LIMIT")).orElse("5")));
+  }
+
+  public LogAggregator(Logger logger, long window, int rateLimit) {
+    this.logger = logger;
+    this.window = window;
+    this.rateLimit = rateLimit;
+  }
+
+  public void warn(String event, String id) {
+    event(event, id, null, true);
+  }
+
+  // `detail` (e.g. the error message) is logged with the event, the events are still aggregated per `event`
+  public void warn(String event, String id, String detail) {
+    event(event, id, detail, true);
+  }
+
+  public void info(String event, String id) {
+    event(event, id, null, false);
+  }
+
+  private void event(String event, String id, String detail, boolean warn) {
+    var now = System.currentTimeMillis();
+    // no timer outside the event loop: the window is closed by the next event
+    if (!summaries.isEmpty() && now - windowStart >= window) {
+      flush();
+    }
+    if (summaries.isEmpty()) {
+      windowStart = now;
+      scheduleFlush();
+    }
+
+    var summary = summaries.computeIfAbsent(event, key -> new Summary(warn));
+    summary.count++;
+    summary.ids.add(id);
+    if (summary.count <= rateLimit) {
+      var message = detail == null ? id : id + " (" + detail + ")";
+      if (warn) {
+        logger.warn("{}: {}", event, message);
+      } else {
+        logger.info("{}: {}", event, message);
+      }
+      return;
+    }
+    if (summary.samples.size() < SAMPLES && !summary.samples.contains(id)) {
+      summary.samples.add(id);
+    }
+  }
+
+  private void scheduleFlush() {
+    if (flushScheduled) return;
+    var context = Vertx.currentContext();
+    if (context == null) return;
+    flushScheduled = true;
+    context.owner().setTimer(window, timerId -> {
+      flushScheduled = false;
+      flush();
+    });
+  }
+
+  // log the summaries of the current window
+  public void flush() {
+    var seconds = Math.max(1, (System.currentTimeMillis() - windowStart) / 1_000);
+    summaries.forEach((event, summary) -> {
+      var suppressed = summary.count - Math.min(summary.count, rateLimit);
+      if (suppressed == 0) return;
+      if (summary.warn) {
+        logger.warn("{}: {} times ({} devices) in the last {} s, e.g. {}, {} not logged",
+          event, summary.count, summary.ids.size(), seconds, summary.samples, suppressed);
+      } else {
+        logger.info("{}: {} times ({} devices) in the last {} s, e.g. {}, {} not logged",
+          event, summary.count, summary.ids.size(), seconds, summary.samples, suppressed);
+      }
+    });
+    summaries.clear();
+  }
+}
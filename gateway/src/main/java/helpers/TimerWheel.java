@@ -0,0 +1,100 @@
+package helpers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/*
+  Hashed timer wheel: one timer per key, driven by a single periodic timer
+  - `schedule(key, delay)` arms (or re-arms) the timer of the key, `cancel(key)` removes it
+  - the owner calls `advance(now)` periodically (e.g. every `tickMillis` with `vertx.setPeriodic`)
+    and the expired keys are given to the `onExpired` callback
+  - schedule, cancel and expiry are O(1), the cost of a tick only depends on the number of timers of its slot
+  Not thread safe: use it from the event loop only
+ */
+public class TimerWheel<K> {
+  private static class Entry<K> {
+    final K key;
+    final long deadlineTick;
+
+    Entry(K key, long deadlineTick) {
+      this.key = key;
+      this.deadlineTick = deadlineTick;
+    }
+  }
+
+  private final List<Set<Entry<K>>> slots;
+  private final Map<K, Entry<K>> timers = new HashMap<>();
+  private final long tickMillis;
+  private final Consumer<K> onExpired;
+  private long currentTick;
+
+  public TimerWheel(int slotCount, long tickMillis, Consumer<K> onExpired) {
+    this.slots = new ArrayList<>(slotCount);
+    for (int i = 0; i < slotCount; i++) {
+      slots.add(new HashSet<>());
+    }
+    this.tickMillis = tickMillis;
+    this.onExpired = onExpired;
+    this.currentTick = System.currentTimeMillis() / tickMillis;
+  }
+
+  public long getTickMillis() {
+    return tickMillis;
+  }
+
+  public void schedule(K key, long delayMillis) {
+    cancel(key);
+    // at least one tick, a timer never expires in the current tick
+    var deadline = currentTick + Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+    var entry = new Entry<>(key, deadline);
+    timers.put(key, entry);
+    slots.get(slot(deadline)).add(entry);
+  }
+
+  public boolean cancel(K key) {
+    var entry = timers.remove(key);
+    if (entry == null) return false;
+    slots.get(slot(entry.deadlineTick)).remove(entry);
+    return true;
+  }
+
+  public boolean contains(K key) {
+    return timers.containsKey(key);
+  }
+
+  public int size() {
+    return timers.size();
+  }
+
+  public void advance(long nowMillis) {
+    var targetTick = nowMillis / tickMillis;
+    if (targetTick <= currentTick) return;
+
+    var expired = new ArrayList<K>();
+    // after a full turn, every slot has been visited
+    var steps = Math.min(targetTick - currentTick, slots.size());
+    for (long step = 1; step <= steps; step++) {
+      var iterator = slots.get(slot(currentTick + step)).iterator();
+      while (iterator.hasNext()) {
+        var entry = iterator.next();
+        if (entry.deadlineTick <= targetTick) {
+          iterator.remove();
+          timers.remove(entry.key);
+          expired.add(entry.key);
+        }
+      }
+    }
+    currentTick = targetTick;
+    // the callbacks can schedule new timers
+    expired.forEach(onExpired);
+  }
+
+  private int slot(long tick) {
+    return (int) Math.floorMod(tick, (long) slots.size());
+  }
+}
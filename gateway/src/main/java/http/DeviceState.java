@@ -0,0 +1,99 @@
+package http;
+
+import io.vertx.servicediscovery.Status;
+
+/*
+  Runtime state of a polled device (kept by DevicesHealth, saved by StateSnapshot)
+  - status: result of the last poll (UP or UNKNOWN)
+  - failures: consecutive failed polls, unchanged: consecutive polls with the same reading
+  - interval: adaptive polling interval
+    - the reading changed: `pollInterval`
+    - the reading did not change, or the poll failed: doubled every time, up to `maxPollInterval`
+      (a dead device is not polled on every cycle)
+  - readingHash / etag: last reading (ETag of the device, CRC32 of the body for the devices without ETag)
+ */
+public class DeviceState {
+  private Status status = Status.UP;
+  private int failures = 0;
+  private int unchanged = 0;
+  private long interval = 0;
+  private long lastPoll = 0;
+  private long readingHash = 0;
+  private String etag = null;
+
+  public DeviceState() {
+  }
+
+  public DeviceState(Status status, int failures, int unchanged, long interval, long lastPoll, long readingHash, String etag) {
+    this.status = status;
+    this.failures = failures;
+    this.unchanged = unchanged;
+    this.interval = interval;
+    this.lastPoll = lastPoll;
+    this.readingHash = readingHash;
+    this.etag = etag;
+  }
+
+  public Status getStatus() {
+    return status;
+  }
+
+  public int getFailures() {
+    return failures;
+  }
+
+  public int getUnchanged() {
+    return unchanged;
+  }
+
+  public long getInterval() {
+    return interval;
+  }
+
+  public long getLastPoll() {
+    return lastPoll;
+  }
+
+  public long getReadingHash() {
+    return readingHash;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  // `tolerance`: a poll planned a bit after the current cycle is done now (the cycles are periodic)
+  public boolean isDue(long now, long tolerance) {
+    return now + tolerance >= lastPoll + interval;
+  }
+
+  public void changed(long now, long pollInterval, long readingHash, String etag) {
+    this.status = Status.UP;
+    this.failures = 0;
+    this.unchanged = 0;
+    this.interval = pollInterval;
+    this.lastPoll = now;
+    this.readingHash = readingHash;
+    this.etag = etag;
+  }
+
+  public void unchanged(long now, long pollInterval, long maxPollInterval) {
+    this.status = Status.UP;
+    this.failures = 0;
+    this.unchanged++;
+    this.interval = backoff(unchanged, pollInterval, maxPollInterval);
+    this.lastPoll = now;
+  }
+
+  public void failed(long now, long pollInterval, long maxPollInterval) {
+    this.status = Status.UNKNOWN;
+    this.failures++;
+    this.unchanged = 0;
+    this.interval = backoff(failures, pollInterval, maxPollInterval);
+    this.lastPoll = now;
+  }
+
+  private static long backoff(int count, long pollInterval, long maxPollInterval) {
+    return Math.min(maxPollInterval, pollInterval << Math.min(count, 16));
+  }
+}
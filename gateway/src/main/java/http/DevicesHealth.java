@@ -1,131 +1,329 @@
 package http;
 
+import analytics.EdgeAnalytics;
+import analytics.FleetAggregates;
 import discovery.DiscoveryManager;
-import io.netty.handler.codec.mqtt.MqttQoS;
+import helpers.LogAggregator;
 import io.reactivex.Observable;
-import io.vertx.circuitbreaker.CircuitBreakerOptions;
 import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.JsonObject;
-import io.vertx.reactivex.circuitbreaker.CircuitBreaker;
 import io.vertx.reactivex.core.Vertx;
-import io.vertx.reactivex.core.buffer.Buffer;
 import io.vertx.reactivex.core.eventbus.Message;
 import io.vertx.reactivex.ext.web.client.WebClient;
-import io.vertx.reactivex.mqtt.MqttClient;
 import io.vertx.reactivex.servicediscovery.ServiceDiscovery;
 import io.vertx.servicediscovery.Record;
+import io.vertx.servicediscovery.ServiceDiscoveryOptions;
 import io.vertx.servicediscovery.Status;
+import mqtt.MqttPublisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import tracing.ParseEvent;
+import tracing.Tracer;
 
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Optional;
+import java.util.zip.CRC32;
 
 public class DevicesHealth<T> {
 
   private final Logger logger = LoggerFactory.getLogger(DevicesHealth.class);
+  // a room going offline fails every poll of every cycle: aggregated logs
+  private final LogAggregator logs = new LogAggregator(logger);
   private DiscoveryManager discoveryManager;
   private WebClient webClient;
-  private MqttClient mqttClient;
-  private CircuitBreaker breaker;
-  private Map<String, CircuitBreaker> map = new HashMap<>();
+  private MqttPublisher mqttPublisher;
+  // runtime state of each device: last reading (ETag), failures, adaptive polling interval
+  private Map<String, DeviceState> states = new HashMap<>();
+  private long pollInterval = 5_000;
+  // below the watchdog of the devices (GATEWAY_POLL_TIMEOUT of the device, 30 s by default):
+  // a device not polled during its watchdog registers again
+  private long maxPollInterval = 20_000;
+  private long pollTimeout = 5_000;
+  // polls started and not answered yet (a cycle starting with polls still in flight is an overrun)
+  private int inFlight = 0;
+  private final PollStats pollStats = new PollStats();
+  private EdgeAnalytics analytics;
+  private FleetAggregates aggregates;
+  private ReadingCache readingCache;
+  private LeaseManager leaseManager;
+  private Tracer tracer = Tracer.disabled();
+  private RetryCoordinator retryCoordinator;
 
-  public DevicesHealth(ServiceDiscovery discovery, WebClient webClient, MqttClient mqttClient) {
+  public DevicesHealth(ServiceDiscovery discovery, WebClient webClient, MqttPublisher mqttPublisher, LeaseManager leaseManager) {
     this.discoveryManager = new DiscoveryManager(discovery);
     this.webClient = webClient;
-    this.mqttClient = mqttClient;
-  }
-
-  private CircuitBreaker getBreaker(Vertx vertx, String id) {
-    if(!map.containsKey(id)) {
-      breaker = CircuitBreaker.create("device-circuit-breaker-" + id, vertx,
-        new CircuitBreakerOptions()
-          .setMaxFailures(3) // number of failure before opening the circuit
-          .setMaxRetries(20) // number of retry before a failure
-          .setTimeout(5_000) // consider a failure if the operation does not succeed in time
-          .setResetTimeout(10_000) // time spent in open state before attempting to re-try
-      ).retryPolicy(retryCount -> retryCount * 100L); // time to retry scaled linearly
-      map.put(id, breaker);
-      return breaker;
-    }
-    return map.get(id);
+    this.mqttPublisher = mqttPublisher;
+    this.leaseManager = leaseManager;
+    this.retryCoordinator = new RetryCoordinator(discovery, webClient, this::recovered);
+  }
+
+  // the state of a device leaving the fleet (unpublished or OUT_OF_SERVICE) is dropped
+  public void start(Vertx vertx) {
+    vertx.eventBus().<JsonObject>consumer(ServiceDiscoveryOptions.DEFAULT_ANNOUNCE_ADDRESS, message -> {
+      var record = new Record(message.body());
+      if (record.getStatus() == Status.DOWN || record.getStatus() == Status.OUT_OF_SERVICE) {
+        states.remove(record.getName());
+      }
+    });
+  }
+
+  public RetryCoordinator getRetryCoordinator() {
+    return retryCoordinator;
+  }
+
+  public DevicesHealth<T> setPollInterval(long value) {
+    pollInterval = value;
+    return this;
+  }
+
+  public DevicesHealth<T> setMaxPollInterval(long value) {
+    maxPollInterval = value;
+    return this;
+  }
+
+  // a device not answering in time is a failed poll
+  public DevicesHealth<T> setPollTimeout(long value) {
+    pollTimeout = value;
+    return this;
+  }
+
+  // rule stage between the readings and MQTT (see EdgeAnalytics)
+  public DevicesHealth<T> setAnalytics(EdgeAnalytics value) {
+    analytics = value;
+    return this;
+  }
+
+  // trace of the polls (the trace context is sent to the devices, see Tracer)
+  public DevicesHealth<T> setTracer(Tracer value) {
+    tracer = value;
+    return this;
+  }
+
+  // running aggregates per position and category (every reading)
+  public DevicesHealth<T> setAggregates(FleetAggregates value) {
+    aggregates = value;
+    return this;
+  }
+
+  // last readings for the on-demand reads (filled by every poll)
+  public DevicesHealth<T> setReadingCache(ReadingCache value) {
+    readingCache = value;
+    return this;
+  }
+
+  // warm start: states restored from the last snapshot (see StateSnapshot)
+  public void restoreStates(Map<String, DeviceState> restored) {
+    states.putAll(restored);
+  }
+
+  public Map<String, DeviceState> copyStates() {
+    var copy = new HashMap<String, DeviceState>();
+    states.forEach((id, state) -> copy.put(id, new DeviceState(state.getStatus(), state.getFailures(), state.getUnchanged(),
+      state.getInterval(), state.getLastPoll(), state.getReadingHash(), state.getEtag())));
+    return copy;
+  }
+
+  public PollStats getPollStats() {
+    return pollStats;
+  }
+
+  DeviceState stateOf(String id) {
+    return states.computeIfAbsent(id, key -> new DeviceState());
   }
 
   // This handler is executed periodically by this line:
-  // vertx.setPeriodic(5000, new DevicesHealth(discovery, webClient, mqttClient).handler);
+  // vertx.setPeriodic(5000, new DevicesHealth(discovery, webClient, mqttPublisher, leaseManager).handler);
   // in the MainVerticle
 
   // 1- search all record with a "category" in the discovery backend
   // 2- for each record, create a web client to do a get request to the device
   // 3- if the device is disconnected then unpublish its associated record
-  // 4- if the device responds, MQTT publish the data of the device on the mqttTopic
+  // 4- if the device responds, MQTT publish the data of the device on the topic(s) of the device
+  //    (conditional GET: the ETag of the last reading is sent with If-None-Match,
+  //    a 304 response means "alive, unchanged")
+  // The devices sending heartbeats are handled by the LeaseManager:
+  // - a device with a lapsed lease is not polled
+  // - a failed poll doesn't change the status of the device (only the lease does)
+  // Adaptive polling (see DeviceState): a device is polled only when its interval has elapsed,
+  // the interval grows while the reading doesn't change or while the device doesn't answer
+  // (the same cycle runs on virtual threads with POLL_ENGINE=virtual, see VirtualThreadPoller)
   public Handler<Long> handler = aLong -> {
-    var mqttTopic = Optional.ofNullable(System.getenv("MQTT_TOPIC")).orElse("house");
-
-    discoveryManager.getDiscovery().rxGetRecords(rec -> !rec.getMetadata().getString("category").isEmpty())
-      .doOnError(error -> {
-        logger.error("Discovery error: {}", error.getMessage());
-      })
-      .toObservable().flatMap(Observable::fromIterable)
+    var now = System.currentTimeMillis();
+    cycleStarted();
+    dueRecords(now)
       .subscribe(record -> {
+          var state = stateOf(record.getName());
           var location = record.getLocation();
-          webClient.get(location.getInteger("port"), location.getString("host"), "/")
+          var request = webClient.get(location.getInteger("port"), location.getString("host"), "/")
+            .timeout(pollTimeout);
+          var etag = state.getEtag();
+          if (etag != null) {
+            request.putHeader("If-None-Match", etag);
+          }
+          var poll = startPoll(record, now, "rx");
+          if (poll.span != null) {
+            request.putHeader("traceparent", poll.traceparent());
+          }
+          request
             .rxSend()
-            .subscribe(data ->{
-              publishMqttMessage(mqttTopic, data.bodyAsJsonObject());
-            }, error -> {
-              logger.warn("Unable to connect: {}", record.getName());
-              record.setStatus(Status.UNKNOWN);
-              discoveryManager.update(record)
-                .subscribe(
-                  ok -> logger.warn("Change {} status to UNKNOWN", record.getName()),
-                  err -> logger.error("Update status failed"));
-              Vertx.currentContext().owner().eventBus().publish("device.unhealthy", record);
-            });
+            .subscribe(
+              data -> received(poll, data.statusCode(), data.getHeader("ETag"),
+                data.body() == null ? null : data.body().getDelegate()),
+              error -> failed(poll));
       });
   };
 
+  // polls started and not answered yet (the gateway waits for them when it stops)
+  public int inFlight() {
+    return inFlight;
+  }
+
+  // the previous cycle is not finished (slow or hanging devices)
+  void cycleStarted() {
+    if (inFlight > 0) pollStats.overrun();
+  }
+
+  Poll startPoll(Record record, long now, String engine) {
+    inFlight++;
+    return new Poll(record, now, engine, tracer.start("poll"));
+  }
+
+  // the records to poll in this cycle
+  Observable<Record> dueRecords(long now) {
+    return discoveryManager.getDiscovery().rxGetRecords(rec -> !rec.getMetadata().getString("category").isEmpty())
+      .doOnError(error -> {
+        logger.error("Discovery error: {}", error.getMessage());
+      })
+      .toObservable().flatMap(Observable::fromIterable)
+      .filter(record -> !leaseManager.isTracked(record.getName()) || leaseManager.isAlive(record.getName()))
+      .filter(record -> !retryCoordinator.isRecovering(record.getName()))
+      .filter(record -> stateOf(record.getName()).isDue(now, pollInterval / 2));
+  }
+
+  // response of a device (called on the event loop, whatever the polling engine)
+  // stages (JFR events, and span attributes when the poll is traced): request, parse, publish
+  void received(Poll poll, int statusCode, String newEtag, Buffer body) {
+    // an error status (e.g. the 503 of an overloaded device) is a failed poll: no reading
+    if (!isReading(statusCode)) {
+      poll.responded(statusCode, false);
+      failed(poll);
+      return;
+    }
+    var record = poll.record;
+    var now = poll.now;
+    var state = stateOf(record.getName());
+    // 304: the device is alive and the reading did not change (no parsing, no MQTT message)
+    if (statusCode == 304) {
+      succeeded(poll, statusCode);
+      state.unchanged(now, pollInterval, maxPollInterval);
+      if (readingCache != null) readingCache.touch(record.getName(), now);
+      tracer.end(poll.span);
+      return;
+    }
+    var parseStart = System.nanoTime();
+    var parseEvent = new ParseEvent();
+    parseEvent.begin();
+    parseEvent.device = record.getName();
+    parseEvent.bytes = body == null ? 0 : body.length();
+    var crc = new CRC32();
+    if (body != null) crc.update(body.getBytes());
+    var readingHash = crc.getValue();
+    if (state.getEtag() == null && readingHash == state.getReadingHash()) {
+      parseEvent.commit();
+      succeeded(poll, statusCode);
+      state.unchanged(now, pollInterval, maxPollInterval);
+      if (readingCache != null) readingCache.touch(record.getName(), now);
+      tracer.end(poll.span);
+      return;
+    }
+    JsonObject data;
+    try {
+      data = body == null ? null : body.toJsonObject();
+    } catch (DecodeException e) {
+      // not a reading (e.g. a truncated body): a failed poll
+      parseEvent.commit();
+      poll.responded(statusCode, false);
+      failed(poll);
+      return;
+    }
+    succeeded(poll, statusCode);
+    parseEvent.changed = true;
+    parseEvent.commit();
+    poll.stage("parse", parseStart);
+
+    state.changed(now, pollInterval, readingHash, newEtag);
+    if (readingCache != null && body != null) readingCache.put(record.getName(), body, now);
+    if (data != null) {
+      var publishStart = System.nanoTime();
+      publishMqttMessage(record, data);
+      poll.stage("publish", publishStart);
+    }
+    tracer.end(poll.span);
+  }
+
+  private void succeeded(Poll poll, int statusCode) {
+    inFlight--;
+    poll.responded(statusCode, true);
+    pollStats.record(System.nanoTime() - poll.start, true);
+  }
+
+  // a reading (2xx) or "alive, unchanged" (304): any other status is a failed poll
+  static boolean isReading(int statusCode) {
+    return statusCode == 304 || statusCode >= 200 && statusCode < 300;
+  }
+
+  // the device did not answer, or answered an error (called on the event loop, whatever the polling engine)
+  void failed(Poll poll) {
+    var record = poll.record;
+    var now = poll.now;
+    inFlight--;
+    poll.responded(0, false);
+    tracer.end(poll.span);
+    pollStats.record(System.nanoTime() - poll.start, false);
+    logs.warn("Unable to connect", record.getName());
+    stateOf(record.getName()).failed(now, pollInterval, maxPollInterval);
+    if (leaseManager.isTracked(record.getName()) || retryCoordinator.isRecovering(record.getName())) return;
+    record.setStatus(Status.UNKNOWN);
+    discoveryManager.update(record)
+      .subscribe(
+        ok -> logs.warn("Change status to UNKNOWN", record.getName()),
+        err -> logs.warn("Update status failed", record.getName()));
+    Vertx.currentContext().owner().eventBus().publish("device.unhealthy", record);
+  }
+
+  // The recovery of the unhealthy devices is done by the RetryCoordinator
+  // (at most one recovery per device, even if the device is reported on every tick)
   public Handler<Message<Record>> retryHandler = message -> {
-    var mqttTopic = Optional.ofNullable(System.getenv("MQTT_TOPIC")).orElse("house");
-    var record = message.body();
-    var location = record.getLocation();
-    var id = record.getName();
-    getBreaker(Vertx.currentContext().owner(), id).rxExecute(promise -> {
-      webClient.get(location.getInteger("port"), location.getString("host"), "/")
-        .rxSend()
-        .subscribe(data -> {
-          record.setStatus(Status.UP);
-          discoveryManager.update(record)
-            .subscribe(
-              ok -> logger.info("Change {} status to UP", id),
-              err -> logger.error("Update status failed"));
-          publishMqttMessage(mqttTopic, data.bodyAsJsonObject());
-          promise.complete();
-        },
-          fail -> logger.warn("{} Wait for connection retry...", id)
-        );
-    }).subscribe(
-      ok -> {}, fail -> {
-        record.setStatus(Status.OUT_OF_SERVICE);
-        discoveryManager.update(record)
-          .subscribe(
-            ok -> logger.info("Change {} status to OUT_OF_SERVICE", id),
-            err -> logger.error("Update status failed"));
-      }
-    );
+    retryCoordinator.recover(message.body());
   };
 
-  private void publishMqttMessage(String topic, JsonObject data) {
-    // send MQTT Message
-    if(mqttClient!=null && mqttClient.isConnected()) {
-      mqttClient.publish(topic,
-        Buffer.buffer(data.encode()),
-        MqttQoS.AT_LEAST_ONCE, // AT_LEAST_ONCE
-        false,
-        false
-      );
+  // readings pushed by the devices (e.g. UDP telemetry): same publish pipeline as the polled readings
+  public void ingest(Record record, JsonObject data) {
+    if (readingCache != null) readingCache.put(record.getName(), data.toBuffer(), System.currentTimeMillis());
+    publishMqttMessage(record, data);
+  }
+
+  // called by the RetryCoordinator with the reading of a recovered device
+  // (the backoff of the failed polls is reset: the device is polled again every `pollInterval`)
+  public void recovered(Record record, JsonObject data) {
+    stateOf(record.getName()).changed(System.currentTimeMillis(), pollInterval, 0, null);
+    if (data != null) publishMqttMessage(record, data);
+  }
+
+  private void publishMqttMessage(Record record, JsonObject data) {
+    if (aggregates != null) {
+      aggregates.accept(record, data);
+    }
+    // with the edge analytics, the reading goes through the rules first
+    // (and is forwarded or not, depending on ANALYTICS_FORWARD)
+    if (analytics != null) {
+      analytics.accept(record, data);
+      return;
     }
+    // send MQTT Message(s) (topics of the device, encoded with the encoder of the topic)
+    mqttPublisher.publish(record, data);
   }
 }
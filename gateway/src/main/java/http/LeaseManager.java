@@ -0,0 +1,117 @@
+package http;
+
+import discovery.DiscoveryManager;
+import helpers.LogAggregator;
+import helpers.TimerWheel;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.ext.web.RoutingContext;
+import io.vertx.reactivex.servicediscovery.ServiceDiscovery;
+import io.vertx.servicediscovery.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+  Liveness of the devices with leases
+  - a device sends a tiny heartbeat (POST /heartbeat/:id, no body) every few seconds
+  - every heartbeat renews the lease of the device for `leaseDuration` ms
+  - if the lease lapses, the device status is UNKNOWN
+  - if there is still no heartbeat after `graceDuration` ms, the device status is OUT_OF_SERVICE
+    and the lease is dropped (the device has to register again)
+  The expiries are handled by a single TimerWheel, so the health of the devices doesn't use
+  the data polls (`GET /`) anymore.
+  A device that never sent a heartbeat is not tracked: its health is still checked with the data polls.
+ */
+public class LeaseManager {
+  private enum LeaseState { ALIVE, LAPSED }
+
+  private final Logger logger = LoggerFactory.getLogger(LeaseManager.class);
+  private final LogAggregator logs = new LogAggregator(logger);
+  private final DiscoveryManager discoveryManager;
+  private final Map<String, LeaseState> leases = new HashMap<>();
+  private final TimerWheel<String> wheel;
+  private final long leaseDuration;
+  private final long graceDuration;
+  private long wheelTimer = -1;
+
+  public LeaseManager(ServiceDiscovery discovery, long leaseDuration, long graceDuration) {
+    this.discoveryManager = new DiscoveryManager(discovery);
+    this.leaseDuration = leaseDuration;
+    this.graceDuration = graceDuration;
+    this.wheel = new TimerWheel<>(512, 1_000, this::expired);
+  }
+
+  public void start(Vertx vertx) {
+    wheelTimer = vertx.setPeriodic(wheel.getTickMillis(), id -> wheel.advance(System.currentTimeMillis()));
+  }
+
+  public void stop(Vertx vertx) {
+    vertx.cancelTimer(wheelTimer);
+  }
+
+  // the device sends heartbeats: its liveness is handled by the lease
+  public boolean isTracked(String id) {
+    return leases.containsKey(id);
+  }
+
+  public boolean isAlive(String id) {
+    return leases.get(id) == LeaseState.ALIVE;
+  }
+
+  // this is the handler triggered by the heartbeat route
+  public void heartbeat(RoutingContext routingContext) {
+    var id = routingContext.pathParam("id");
+    var state = leases.get(id);
+
+    if (state == LeaseState.ALIVE) {
+      wheel.schedule(id, leaseDuration);
+      routingContext.response().setStatusCode(204).end();
+      return;
+    }
+
+    // first heartbeat, or heartbeat after a lapse: the record must exist
+    discoveryManager.getDiscovery().rxGetRecord(rec -> rec.getName().equals(id), true)
+      .subscribe(record -> {
+          leases.put(id, LeaseState.ALIVE);
+          wheel.schedule(id, leaseDuration);
+          if (record.getStatus() != Status.UP) {
+            record.setStatus(Status.UP);
+            discoveryManager.update(record)
+              .subscribe(
+                ok -> logger.info("Change {} status to UP", id),
+                err -> logger.error("Update status failed"));
+          }
+          routingContext.response().setStatusCode(204).end();
+        },
+        error -> {
+          logger.error("Error when fetching the records {}", error.getMessage());
+          routingContext.fail(500);
+        },
+        // unknown device: it has to register
+        () -> routingContext.fail(404));
+  }
+
+  private void expired(String id) {
+    if (leases.get(id) == LeaseState.ALIVE) {
+      leases.put(id, LeaseState.LAPSED);
+      wheel.schedule(id, graceDuration);
+      changeStatus(id, Status.UNKNOWN);
+    } else {
+      leases.remove(id);
+      changeStatus(id, Status.OUT_OF_SERVICE);
+    }
+  }
+
+  private void changeStatus(String id, Status status) {
+    discoveryManager.getDiscovery().rxGetRecord(rec -> rec.getName().equals(id), true)
+      .subscribe(record -> {
+        record.setStatus(status);
+        discoveryManager.update(record)
+          .subscribe(
+            ok -> logs.warn("Lease lapsed, change status to " + status, id),
+            err -> logs.warn("Update status failed", id));
+      }, error -> logger.error("Error when fetching the records {}", error.getMessage()));
+  }
+}
@@ -0,0 +1,58 @@
+package http;
+
+import io.vertx.servicediscovery.Record;
+import tracing.PollEvent;
+import tracing.Tracer;
+
+/*
+  One poll of a device, whatever the polling engine
+  - start time (PollStats), JFR event of the HTTP exchange (PollEvent)
+  - span of the trace (null without tracing): its `traceparent` header is sent to the device,
+    the time of every stage of the poll is added to the span
+ */
+class Poll {
+  final Record record;
+  // start of the polling cycle (ms)
+  final long now;
+  final long start = System.nanoTime();
+  final PollEvent event = new PollEvent();
+  final Tracer.Span span;
+  private long responded = 0;
+
+  Poll(Record record, long now, String engine, Tracer.Span span) {
+    this.record = record;
+    this.now = now;
+    this.span = span;
+    event.device = record.getName();
+    event.engine = engine;
+    if (span != null) {
+      event.traceId = span.getTraceId();
+      span.put("device", record.getName()).put("engine", engine);
+    }
+    event.begin();
+  }
+
+  String traceparent() {
+    return span == null ? null : span.traceparent();
+  }
+
+  // end of the HTTP exchange (on the thread of the engine, before the hand-off to the event loop)
+  void responded(int statusCode, boolean success) {
+    if (responded != 0) return;
+    responded = System.nanoTime();
+    event.end();
+    event.statusCode = statusCode;
+    event.success = success;
+    event.commit();
+    if (span != null) {
+      span.put("statusCode", statusCode).put("requestMicros", (responded - start) / 1_000);
+    }
+  }
+
+  // duration of a stage since the end of the HTTP exchange
+  void stage(String name, long stageStart) {
+    if (span != null) {
+      span.put(name + "Micros", (System.nanoTime() - stageStart) / 1_000);
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package http;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Arrays;
+
+/*
+  Latency of the device polls (response or failure)
+  - fixed-size log-linear histogram (8 sub-buckets per power of 2, ~12% precision), no allocation per poll
+  - `percentile(p)` returns the upper bound of the bucket of the percentile, in microseconds
+ */
+public class PollStats {
+  private static final int SUB_BUCKETS = 8;
+  private final long[] buckets = new long[64 * SUB_BUCKETS];
+  private long count = 0;
+  private long failures = 0;
+  private long maxMicros = 0;
+  // cycles started while polls of the previous cycle were still in flight
+  private long overruns = 0;
+  private long started = System.nanoTime();
+
+  public synchronized void record(long nanos, boolean success) {
+    var micros = Math.max(1, nanos / 1_000);
+    buckets[bucket(micros)]++;
+    count++;
+    if (!success) failures++;
+    maxMicros = Math.max(maxMicros, micros);
+  }
+
+  public synchronized void overrun() {
+    overruns++;
+  }
+
+  public synchronized long count() {
+    return count;
+  }
+
+  public synchronized void reset() {
+    Arrays.fill(buckets, 0);
+    count = 0;
+    failures = 0;
+    maxMicros = 0;
+    overruns = 0;
+    started = System.nanoTime();
+  }
+
+  public synchronized long percentile(double p) {
+    var rank = (long) Math.ceil(count * p / 100.0);
+    long seen = 0;
+    for (var i = 0; i < buckets.length; i++) {
+      seen += buckets[i];
+      if (seen >= rank && seen > 0) return Math.min(upperBound(i), maxMicros);
+    }
+    return 0;
+  }
+
+  public synchronized JsonObject toJson() {
+    var seconds = (System.nanoTime() - started) / 1e9;
+    return new JsonObject()
+      .put("polls", count)
+      .put("failures", failures)
+      .put("pollsPerSecond", seconds > 0 ? Math.round(count / seconds) : 0)
+      .put("p50Micros", percentile(50))
+      .put("p99Micros", percentile(99))
+      .put("p999Micros", percentile(99.9))
+      .put("maxMicros", maxMicros)
+      .put("overruns", overruns);
+  }
+
+  private static int bucket(long micros) {
+    var exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent < 3) return (int) micros;
+    var sub = (int) ((micros >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+    return exponent * SUB_BUCKETS + sub;
+  }
+
+  private static long upperBound(int bucket) {
+    var exponent = bucket / SUB_BUCKETS;
+    if (exponent < 3) return bucket;
+    var sub = bucket % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+  }
+}
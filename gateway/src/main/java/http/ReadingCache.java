@@ -0,0 +1,182 @@
+package http;
+
+import discovery.RecordIndex;
+import helpers.LogAggregator;
+import io.reactivex.Single;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.ext.web.RoutingContext;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import io.vertx.servicediscovery.Record;
+import io.vertx.servicediscovery.ServiceDiscoveryOptions;
+import io.vertx.servicediscovery.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+
+/*
+  On-demand reading of a device: GET /devices/:id/reading
+  - the last reading of every device is kept `ttl` ms, the cache is filled by the polls
+    (DevicesHealth), by the pushed readings (UDP) and by the on-demand reads
+  - the expired readings are evicted when they are read and by a periodic sweep, the reading of a device
+    leaving the fleet (unpublished or OUT_OF_SERVICE) is removed (announcements of the service discovery)
+  - a cached reading younger than `maxAge` (query parameter, `ttl` by default, 0 to force a device call)
+    is returned without calling the device
+  - otherwise the device is called (location of its record in the RecordIndex), and the concurrent
+    requests for the same device share this call (single flight): N requests = 1 device call
+  - response headers: `X-Cache` (HIT, MISS or COALESCED) and `Age` (seconds)
+  Not thread safe: use it from the event loop only
+ */
+public class ReadingCache {
+  private static class Entry {
+    final Buffer reading;
+    long time;
+
+    Entry(Buffer reading, long time) {
+      this.reading = reading;
+      this.time = time;
+    }
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(ReadingCache.class);
+  private final LogAggregator logs = new LogAggregator(logger);
+  private final WebClient webClient;
+  private final RecordIndex recordIndex;
+  private final long ttl;
+  private long timeout;
+  private final Map<String, Entry> readings = new HashMap<>();
+  // device calls in flight, shared by the concurrent requests
+  private final Map<String, Single<Buffer>> inFlight = new HashMap<>();
+
+  private long hits = 0;
+  private long misses = 0;
+  private long coalesced = 0;
+  private long failures = 0;
+
+  public ReadingCache(WebClient webClient, RecordIndex recordIndex, long ttl, long timeout) {
+    this.webClient = webClient;
+    this.recordIndex = recordIndex;
+    this.ttl = ttl;
+    this.timeout = timeout;
+  }
+
+  // timeout of the device calls (live POLL_TIMEOUT): the calls in flight keep their timeout
+  public ReadingCache setTimeout(long value) {
+    timeout = value;
+    return this;
+  }
+
+  public void start(Vertx vertx) {
+    vertx.setPeriodic(Math.max(1_000, ttl), id -> evict(System.currentTimeMillis()));
+    vertx.eventBus().<JsonObject>consumer(ServiceDiscoveryOptions.DEFAULT_ANNOUNCE_ADDRESS, message -> {
+      var record = new Record(message.body());
+      if (record.getStatus() == Status.DOWN || record.getStatus() == Status.OUT_OF_SERVICE) {
+        readings.remove(record.getName());
+      }
+    });
+  }
+
+  private void evict(long now) {
+    readings.values().removeIf(entry -> now - entry.time > ttl);
+  }
+
+  // new reading of a device
+  public void put(String id, Buffer reading, long now) {
+    readings.put(id, new Entry(reading, now));
+  }
+
+  // the reading of the device did not change (304 or same body): the cached reading is still fresh
+  public void touch(String id, long now) {
+    var entry = readings.get(id);
+    if (entry != null) entry.time = now;
+  }
+
+  public void read(RoutingContext routingContext) {
+    var id = routingContext.pathParam("id");
+    var now = System.currentTimeMillis();
+
+    long maxAge;
+    try {
+      maxAge = Math.min(ttl, Long.parseLong(Optional.ofNullable(routingContext.request().getParam("maxAge")).orElse(String.valueOf(ttl))));
+    } catch (NumberFormatException e) {
+      routingContext.fail(400);
+      return;
+    }
+
+    var entry = readings.get(id);
+    if (entry != null && now - entry.time <= maxAge) {
+      hits++;
+      reply(routingContext, entry.reading, "HIT", now - entry.time);
+      return;
+    }
+    if (entry != null && now - entry.time > ttl) {
+      readings.remove(id);
+    }
+
+    var call = inFlight.get(id);
+    var cacheStatus = "COALESCED";
+    if (call == null) {
+      var record = recordIndex.get(id);
+      if (record == null) {
+        routingContext.response().setStatusCode(404).end();
+        return;
+      }
+      call = fetch(id, record);
+      inFlight.put(id, call);
+      cacheStatus = "MISS";
+      misses++;
+    } else {
+      coalesced++;
+    }
+
+    var status = cacheStatus;
+    call.subscribe(
+      reading -> reply(routingContext, reading, status, 0),
+      error -> routingContext.response().setStatusCode(error instanceof TimeoutException ? 504 : 502).end());
+  }
+
+  // one call to the device, cached until it completes
+  private Single<Buffer> fetch(String id, JsonObject record) {
+    return webClient.get(record.getInteger("port"), record.getString("host"), "/")
+      .timeout(timeout)
+      .rxSend()
+      .map(response -> {
+        if (response.statusCode() != 200 || response.body() == null) {
+          throw new IllegalStateException("Status " + response.statusCode());
+        }
+        var reading = response.body().getDelegate();
+        put(id, reading, System.currentTimeMillis());
+        return reading;
+      })
+      .doOnError(error -> {
+        failures++;
+        logs.warn("On-demand reading failed", id, error.getMessage());
+      })
+      .doFinally(() -> inFlight.remove(id))
+      .cache();
+  }
+
+  private void reply(RoutingContext routingContext, Buffer reading, String cacheStatus, long ageMillis) {
+    routingContext.response().getDelegate()
+      .putHeader("content-type", "application/json")
+      .putHeader("X-Cache", cacheStatus)
+      .putHeader("Age", String.valueOf(ageMillis / 1_000))
+      .end(reading);
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .put("cached", readings.size())
+      .put("ttl", ttl)
+      .put("hits", hits)
+      .put("misses", misses)
+      .put("coalesced", coalesced)
+      .put("failures", failures)
+      .put("inFlight", inFlight.size());
+  }
+}
@@ -10,6 +10,7 @@ import io.vertx.reactivex.servicediscovery.types.HttpEndpoint;
 import io.vertx.servicediscovery.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import tracing.RegistrationEvent;
 
 import java.util.Optional;
 
@@ -36,6 +37,15 @@ public class Registration {
     }
   }
 
+  // Handler that only checks the authentication token (routes without registration payload)
+  public void validateToken(RoutingContext routingContext) {
+    if (!checkAuthenticationToken(routingContext)) {
+      routingContext.fail(401);
+    } else {
+      routingContext.next();
+    }
+  }
+
   // Check if the authentication token in the "smart-token" header is the good token
   public boolean checkAuthenticationToken(RoutingContext routingContext) {
     var optionalToken = Optional.ofNullable(routingContext.request().getHeader("smart-token")) ;
@@ -58,8 +68,16 @@ public class Registration {
 
 
   // this is the handler triggered by the registration route
+  // (JFR: RegistrationEvent for the whole registration, DiscoveryEvent for every backend operation)
   public void registerDevice(RoutingContext routingContext) {
     var payload = routingContext.getBodyAsJson();
+    var event = new RegistrationEvent();
+    event.device = payload.getString("id");
+    event.begin();
+    routingContext.addBodyEndHandler(v -> {
+      event.statusCode = routingContext.response().getStatusCode();
+      event.commit();
+    });
     RegistrationData registrationData = new RegistrationData(
       payload.getString("id"),
       payload.getString("category"),
@@ -82,19 +100,22 @@ public class Registration {
     );
 
     // search if the record exists in the backend discovery
-    discoveryManager.getDiscovery().rxGetRecord(rec -> rec.getName().equals(registrationData.getId()), true)
+    DiscoveryManager.traced(registrationData.getId(), "lookup",
+        discoveryManager.getDiscovery().rxGetRecord(rec -> rec.getName().equals(registrationData.getId()), true))
       .subscribe(okRecord -> {
-          if (okRecord.getStatus().equals(Status.OUT_OF_SERVICE)){
-            // The record exists
-            // Update the record
-            okRecord.setStatus(Status.UP);
-            okRecord.setMetadata(
-              new JsonObject()
-                .put("category", registrationData.getCategory())
-                .put("position", registrationData.getPosition()));
+          // The record exists: update it if the device is back (OUT_OF_SERVICE)
+          // or if its identity changed (metadata: position, category, location: host, port)
+          var outOfService = okRecord.getStatus().equals(Status.OUT_OF_SERVICE);
+          if (outOfService || !record.getMetadata().equals(okRecord.getMetadata()) || !record.getLocation().equals(okRecord.getLocation())) {
+            if (outOfService) okRecord.setStatus(Status.UP);
+            okRecord.setMetadata(record.getMetadata());
+            okRecord.setLocation(record.getLocation());
             discoveryManager.update(okRecord).subscribe(
               ok -> routingContext.json(new JsonObject().put("registration updated","ok")),
-              error -> logger.error("Error when updating {}", error.getMessage())
+              error -> {
+                routingContext.fail(500);
+                logger.error("Error when updating {}", error.getMessage());
+              }
             );
           } else {
             routingContext.fail(409);
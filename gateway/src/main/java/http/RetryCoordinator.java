@@ -0,0 +1,146 @@
+package http;
+
+import discovery.DiscoveryManager;
+import helpers.LogAggregator;
+import helpers.TimerWheel;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import io.vertx.reactivex.servicediscovery.ServiceDiscovery;
+import io.vertx.servicediscovery.Record;
+import io.vertx.servicediscovery.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tracing.RecoveryEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/*
+  Recovery of the unhealthy devices
+  - at most one recovery per device: `recover(record)` is ignored if the device is already in recovery
+  - every attempt is a GET request with a timeout of `attemptTimeout` ms,
+    the next attempt is scheduled `attempt * retryDelay` ms later (linear backoff)
+  - all the attempts of all the devices are driven by a single TimerWheel (no timer per retry)
+  - success (2xx response with a JSON body): the device status is UP and the reading is given to `onRecovered`,
+    an error status (e.g. 503) or a malformed body is a failed attempt
+  - after `maxRetries` failed attempts: the device status is OUT_OF_SERVICE (once)
+ */
+public class RetryCoordinator {
+  private static class Recovery {
+    final Record record;
+    int attempt = 0;
+
+    Recovery(Record record) {
+      this.record = record;
+    }
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(RetryCoordinator.class);
+  private final LogAggregator logs = new LogAggregator(logger);
+  private final DiscoveryManager discoveryManager;
+  private final WebClient webClient;
+  private final BiConsumer<Record, JsonObject> onRecovered;
+  private final Map<String, Recovery> recoveries = new HashMap<>();
+  private final TimerWheel<String> wheel = new TimerWheel<>(1024, 100, this::attempt);
+
+  private int maxRetries = 20;
+  private long retryDelay = 100;
+  private long attemptTimeout = 5_000;
+  private long wheelTimer = -1;
+
+  public RetryCoordinator(ServiceDiscovery discovery, WebClient webClient, BiConsumer<Record, JsonObject> onRecovered) {
+    this.discoveryManager = new DiscoveryManager(discovery);
+    this.webClient = webClient;
+    this.onRecovered = onRecovered;
+  }
+
+  public RetryCoordinator setMaxRetries(int value) {
+    maxRetries = value;
+    return this;
+  }
+
+  public RetryCoordinator setRetryDelay(long value) {
+    retryDelay = value;
+    return this;
+  }
+
+  public RetryCoordinator setAttemptTimeout(long value) {
+    attemptTimeout = value;
+    return this;
+  }
+
+  public void start(Vertx vertx) {
+    wheelTimer = vertx.setPeriodic(wheel.getTickMillis(), id -> wheel.advance(System.currentTimeMillis()));
+  }
+
+  public void stop(Vertx vertx) {
+    vertx.cancelTimer(wheelTimer);
+  }
+
+  // start the recovery of the device, return false if the device is already in recovery
+  public boolean recover(Record record) {
+    var id = record.getName();
+    if (recoveries.containsKey(id)) return false;
+    recoveries.put(id, new Recovery(record));
+    wheel.schedule(id, 0);
+    return true;
+  }
+
+  public boolean isRecovering(String id) {
+    return recoveries.containsKey(id);
+  }
+
+  // number of devices in recovery
+  public int inRecovery() {
+    return recoveries.size();
+  }
+
+  private void attempt(String id) {
+    var recovery = recoveries.get(id);
+    if (recovery == null) return;
+    var record = recovery.record;
+    var location = record.getLocation();
+    var event = new RecoveryEvent();
+    event.device = id;
+    event.attempt = recovery.attempt + 1;
+    event.begin();
+
+    webClient.get(location.getInteger("port"), location.getString("host"), "/")
+      .timeout(attemptTimeout)
+      .rxSend()
+      // an error status (e.g. 503) or a body that is not a reading (DecodeException) is a failed attempt,
+      // the device stays in recovery
+      .map(data -> {
+        if (data.statusCode() < 200 || data.statusCode() >= 300) throw new IllegalStateException("Status " + data.statusCode());
+        return Optional.ofNullable(data.bodyAsJsonObject());
+      })
+      .subscribe(data -> {
+        event.success = true;
+        event.commit();
+        recoveries.remove(id);
+        record.setStatus(Status.UP);
+        discoveryManager.update(record)
+          .subscribe(
+            ok -> logs.info("Change status to UP", id),
+            err -> logs.warn("Update status failed", id));
+        onRecovered.accept(record, data.orElse(null));
+      }, fail -> {
+        event.commit();
+        recovery.attempt++;
+        if (recovery.attempt >= maxRetries) {
+          recoveries.remove(id);
+          record.setStatus(Status.OUT_OF_SERVICE);
+          discoveryManager.update(record)
+            .subscribe(
+              ok -> logs.info("Change status to OUT_OF_SERVICE", id),
+              err -> logs.warn("Update status failed", id));
+        } else {
+          logs.warn("Wait for connection retry", id);
+          wheel.schedule(id, recovery.attempt * retryDelay);
+        }
+      });
+  }
+}
@@ -0,0 +1,144 @@
+package http;
+
+import io.reactivex.Completable;
+import io.reactivex.Single;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.servicediscovery.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+  Warm start of the gateway: snapshot of the runtime state of the polled devices
+  - the state of every device (DeviceState) is written every `interval` ms to a binary file,
+    and when the gateway stops
+  - the file is written to a temporary file, then atomically renamed (never a half-written snapshot)
+  - the snapshot is loaded in `rxStart`: the first polling cycle picks up where the old one stopped
+    (a dead device keeps its long polling interval, the known readings keep their ETag)
+  - a missing, or unreadable snapshot is ignored: the gateway starts cold
+
+  Format: [int magic "GWSS"][short version][long time][int count]
+  then per device: [UTF id][byte status][int failures][int unchanged][long interval][long lastPoll][long readingHash][UTF etag]
+ */
+public class StateSnapshot {
+  private static final int MAGIC = 0x47575353;
+  private static final short VERSION = 1;
+
+  private final Logger logger = LoggerFactory.getLogger(StateSnapshot.class);
+  private final Path path;
+  private final long interval;
+  private DevicesHealth<?> devicesHealth;
+  private long timer = -1;
+
+  public StateSnapshot(Path path, long interval) {
+    this.path = path;
+    this.interval = interval;
+  }
+
+  public Single<Map<String, DeviceState>> rxLoad(Vertx vertx) {
+    return vertx.<Map<String, DeviceState>>rxExecuteBlocking(promise -> {
+        try {
+          var start = System.nanoTime();
+          var states = read();
+          logger.info("{} device states restored from {} in {} ms", states.size(), path, (System.nanoTime() - start) / 1_000_000);
+          promise.complete(states);
+        } catch (IOException | RuntimeException e) {
+          promise.fail(e);
+        }
+      })
+      .toSingle()
+      .onErrorReturn(error -> {
+        logger.warn("Unable to restore the snapshot {}: {}", path, error.getMessage());
+        return new HashMap<>();
+      });
+  }
+
+  // save the states of the devices periodically
+  public void start(Vertx vertx, DevicesHealth<?> devicesHealth) {
+    this.devicesHealth = devicesHealth;
+    if (interval > 0) {
+      timer = vertx.setPeriodic(interval, id -> rxSave(vertx).subscribe(() -> {}, error -> {}));
+    }
+  }
+
+  public void stop(Vertx vertx) {
+    vertx.cancelTimer(timer);
+  }
+
+  public Completable rxSave(Vertx vertx) {
+    if (devicesHealth == null) return Completable.complete();
+    // copy on the event loop, write on a worker
+    var states = devicesHealth.copyStates();
+    return vertx.rxExecuteBlocking(promise -> {
+        try {
+          write(states);
+          promise.complete();
+        } catch (IOException e) {
+          promise.fail(e);
+        }
+      }, false)
+      .ignoreElement()
+      .doOnError(error -> logger.error("Unable to save the snapshot {}: {}", path, error.getMessage()));
+  }
+
+  private void write(Map<String, DeviceState> states) throws IOException {
+    if (path.getParent() != null) {
+      Files.createDirectories(path.getParent());
+    }
+    var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+      output.writeInt(MAGIC);
+      output.writeShort(VERSION);
+      output.writeLong(System.currentTimeMillis());
+      output.writeInt(states.size());
+      for (var entry : states.entrySet()) {
+        var state = entry.getValue();
+        output.writeUTF(entry.getKey());
+        output.writeByte(state.getStatus().ordinal());
+        output.writeInt(state.getFailures());
+        output.writeInt(state.getUnchanged());
+        output.writeLong(state.getInterval());
+        output.writeLong(state.getLastPoll());
+        output.writeLong(state.getReadingHash());
+        output.writeUTF(state.getEtag() == null ? "" : state.getEtag());
+      }
+    }
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private Map<String, DeviceState> read() throws IOException {
+    var states = new HashMap<String, DeviceState>();
+    if (!Files.exists(path)) return states;
+
+    try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+      if (input.readInt() != MAGIC || input.readShort() != VERSION) {
+        throw new IOException("unknown snapshot format");
+      }
+      input.readLong();
+      var count = input.readInt();
+      var statuses = Status.values();
+      for (var i = 0; i < count; i++) {
+        var id = input.readUTF();
+        var status = statuses[input.readByte()];
+        var failures = input.readInt();
+        var unchanged = input.readInt();
+        var interval = input.readLong();
+        var lastPoll = input.readLong();
+        var readingHash = input.readLong();
+        var etag = input.readUTF();
+        states.put(id, new DeviceState(status, failures, unchanged, interval, lastPoll, readingHash, etag.isEmpty() ? null : etag));
+      }
+    }
+    return states;
+  }
+}
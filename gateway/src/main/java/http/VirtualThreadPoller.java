@@ -0,0 +1,127 @@
+package http;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.reactivex.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/*
+  Polling engine with virtual threads (POLL_ENGINE=virtual)
+  - same cycle as DevicesHealth.handler (same due records, same states, same MQTT publish path),
+    but every poll is simple blocking code (java.net.http) running on its own virtual thread
+  - at most `concurrency` polls in flight (semaphore), a device is never polled twice at the same time
+  - the results are handed back to the event loop (DevicesHealth.received / failed)
+  - `timeout` bounds a whole poll (connection included), a new value (`setTimeout`, live POLL_TIMEOUT) applies to the next polls
+  The virtual threads need a Java 21 JVM: the executor is looked up at runtime (the gateway is built for Java 11),
+  so on an older JVM the polls run on a fixed pool of `concurrency` platform threads instead.
+ */
+public class VirtualThreadPoller {
+  private final Logger logger = LoggerFactory.getLogger(VirtualThreadPoller.class);
+  private final DevicesHealth<?> devicesHealth;
+  private final Semaphore permits;
+  private final ExecutorService executor;
+  private final HttpClient httpClient;
+  private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+  private volatile Duration timeout;
+  private Context context;
+
+  public VirtualThreadPoller(DevicesHealth<?> devicesHealth, int concurrency, long timeoutMillis) {
+    this.devicesHealth = devicesHealth;
+    this.permits = new Semaphore(concurrency);
+    this.executor = createExecutor(concurrency);
+    this.timeout = Duration.ofMillis(timeoutMillis);
+    this.httpClient = HttpClient.newBuilder()
+      .version(HttpClient.Version.HTTP_1_1)
+      .build();
+  }
+
+  public VirtualThreadPoller setTimeout(long timeoutMillis) {
+    this.timeout = Duration.ofMillis(timeoutMillis);
+    return this;
+  }
+
+  private ExecutorService createExecutor(int concurrency) {
+    try {
+      var executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      logger.info("Polling engine: virtual threads, {} polls in flight max", concurrency);
+      return executor;
+    } catch (ReflectiveOperationException e) {
+      logger.warn("Virtual threads are not available on Java {}: polling with {} platform threads",
+        Runtime.version().feature(), concurrency);
+      return Executors.newFixedThreadPool(concurrency);
+    }
+  }
+
+  public Handler<Long> handler = this::cycle;
+
+  private void cycle(Long timerId) {
+    if (context == null) {
+      context = Vertx.currentContext().getDelegate();
+    }
+    var now = System.currentTimeMillis();
+    devicesHealth.cycleStarted();
+    devicesHealth.dueRecords(now)
+      .filter(record -> inFlight.add(record.getName()))
+      .subscribe(record -> {
+        var etag = devicesHealth.stateOf(record.getName()).getEtag();
+        var poll = devicesHealth.startPoll(record, now, "virtual");
+        executor.execute(() -> poll(poll, etag));
+      });
+  }
+
+  // runs on a virtual thread
+  private void poll(Poll poll, String etag) {
+    var record = poll.record;
+    try {
+      permits.acquire();
+      try {
+        var location = record.getLocation();
+        var request = HttpRequest.newBuilder(URI.create("http://" + location.getString("host") + ":" + location.getInteger("port") + "/"))
+          .timeout(timeout)
+          .GET();
+        if (etag != null) {
+          request.header("If-None-Match", etag);
+        }
+        if (poll.span != null) {
+          request.header("traceparent", poll.traceparent());
+        }
+        var response = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        poll.responded(response.statusCode(), DevicesHealth.isReading(response.statusCode()));
+        var newEtag = response.headers().firstValue("ETag").orElse(null);
+        var body = response.body().length == 0 ? null : Buffer.buffer(response.body());
+        context.runOnContext(v -> {
+          inFlight.remove(record.getName());
+          devicesHealth.received(poll, response.statusCode(), newEtag, body);
+        });
+      } finally {
+        permits.release();
+      }
+    } catch (Exception e) {
+      poll.responded(0, false);
+      context.runOnContext(v -> {
+        inFlight.remove(record.getName());
+        devicesHealth.failed(poll);
+      });
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public void stop() {
+    executor.shutdownNow();
+  }
+}
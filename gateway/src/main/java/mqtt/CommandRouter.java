@@ -0,0 +1,249 @@
+package mqtt;
+
+import discovery.DiscoveryManager;
+import discovery.RecordIndex;
+import helpers.LogAggregator;
+import http.PollStats;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import io.vertx.reactivex.mqtt.messages.MqttPublishMessage;
+import io.vertx.reactivex.servicediscovery.ServiceDiscovery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+  Commands to the devices: MQTT -> gateway -> device
+  - the gateway subscribes to "<MQTT_COMMAND_TOPIC>/+" (QoS 1) on the first connection of the pool,
+    the last level of the topic is the id of the device, the payload a JSON command:
+    {"command": "setPosition", "value": "kitchen", "time": <epoch ms when the command was issued, optional>}
+    a payload that is not such a JSON object (no command name, non-numeric time) is dropped (logged)
+  - the commands are sent to the device (POST /command {"commands": [...]}) on the kept-alive connection
+    of the polls (same WebClient)
+  - coalescing: one request in flight per device, the commands received meanwhile wait for its response
+    and only the last command of each kind is sent (10 setSampleRate while the device answers = 1 command)
+  - the result of every command is published on "<MQTT_COMMAND_ACK_TOPIC>/<id>" (QoS 1):
+    {"command", "value", "status" (applied, rejected, superseded, failed, unknown device), "reason"}
+  - an applied setPosition also updates the metadata of the record (index, topics, aggregates)
+  - latency (`stats()`): `gateway` from the MQTT message to the response of the device,
+    `endToEnd` from the `time` of the command to the response of the device (clocks of the sender and the gateway)
+  The devices pushing their readings over UDP have no command channel (no server): their commands fail
+  Not thread safe: use it from the event loop only
+ */
+public class CommandRouter {
+  private static class Command {
+    final JsonObject command;
+    final long received = System.nanoTime();
+
+    Command(JsonObject command) {
+      this.command = command;
+    }
+
+    String name() {
+      return command.getString("command");
+    }
+  }
+
+  // pending commands of a device (last command of each kind), and its request in flight
+  private static class Channel {
+    final Map<String, Command> pending = new LinkedHashMap<>();
+    boolean inFlight = false;
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(CommandRouter.class);
+  private final LogAggregator logs = new LogAggregator(logger);
+  private final DiscoveryManager discoveryManager;
+  private final WebClient webClient;
+  private final RecordIndex recordIndex;
+  private final MqttManager mqttManager;
+  private final String ackTopic;
+  private final long timeout;
+  private final Map<String, Channel> channels = new HashMap<>();
+  private final PollStats gatewayLatency = new PollStats();
+  private final PollStats endToEndLatency = new PollStats();
+
+  private long received = 0;
+  private long requests = 0;
+  private long superseded = 0;
+  private long failures = 0;
+
+  public CommandRouter(ServiceDiscovery discovery, WebClient webClient, RecordIndex recordIndex,
+                       MqttManager mqttManager, String ackTopic, long timeout) {
+    this.discoveryManager = new DiscoveryManager(discovery);
+    this.webClient = webClient;
+    this.recordIndex = recordIndex;
+    this.mqttManager = mqttManager;
+    this.ackTopic = ackTopic;
+    this.timeout = timeout;
+  }
+
+  // MQTT message on "<MQTT_COMMAND_TOPIC>/<id>"
+  public void accept(MqttPublishMessage message) {
+    var topic = message.topicName();
+    var id = topic.substring(topic.lastIndexOf('/') + 1);
+    JsonObject command;
+    try {
+      command = message.payload().toJsonObject();
+    } catch (RuntimeException e) {
+      command = null;
+    }
+    accept(id, command);
+  }
+
+  public void accept(String id, JsonObject command) {
+    if (!isValid(command)) {
+      logs.warn("Invalid command", id);
+      return;
+    }
+    received++;
+    if (recordIndex.get(id) == null) {
+      ack(id, new Command(command), "unknown device", null);
+      return;
+    }
+    var channel = channels.computeIfAbsent(id, key -> new Channel());
+    var next = new Command(command);
+    var previous = channel.pending.remove(next.name());
+    if (previous != null) {
+      superseded++;
+      ack(id, previous, "superseded", null);
+    }
+    channel.pending.put(next.name(), next);
+    if (!channel.inFlight) send(id, channel);
+  }
+
+  private static boolean isValid(JsonObject command) {
+    return command != null
+      && command.getValue("command") instanceof String
+      && (command.getValue("time") == null || command.getValue("time") instanceof Number);
+  }
+
+  private void send(String id, Channel channel) {
+    var record = recordIndex.get(id);
+    if (record == null) {
+      channel.pending.values().forEach(command -> ack(id, command, "unknown device", null));
+      channels.remove(id);
+      return;
+    }
+    List<Command> batch = new ArrayList<>(channel.pending.values());
+    channel.pending.clear();
+    channel.inFlight = true;
+    requests++;
+
+    var commands = new JsonArray();
+    batch.forEach(command -> commands.add(command.command));
+    webClient.post(record.getInteger("port"), record.getString("host"), "/command")
+      .timeout(timeout)
+      .rxSendJsonObject(new JsonObject().put("commands", commands))
+      .map(response -> {
+        var body = response.statusCode() == 200 ? response.bodyAsJsonObject() : null;
+        if (body == null) throw new IllegalStateException("Status " + response.statusCode());
+        return body;
+      })
+      // the next request of the device, whatever the outcome of this one
+      .doFinally(() -> next(id, channel))
+      .subscribe(
+        body -> applied(id, batch, body),
+        error -> failed(id, batch, error.getMessage()));
+  }
+
+  // the commands received while the request was in flight
+  private void next(String id, Channel channel) {
+    channel.inFlight = false;
+    if (channel.pending.isEmpty()) {
+      channels.remove(id);
+    } else {
+      send(id, channel);
+    }
+  }
+
+  // the response of the device: {"applied": [names], "rejected": [{"command", "reason"}]},
+  // a command missing from the response (or a malformed entry) is rejected without reason
+  private void applied(String id, List<Command> batch, JsonObject body) {
+    var applied = body.getValue("applied") instanceof JsonArray ? body.getJsonArray("applied") : new JsonArray();
+    var reasons = new HashMap<String, String>();
+    if (body.getValue("rejected") instanceof JsonArray) {
+      body.getJsonArray("rejected").forEach(rejected -> {
+        if (!(rejected instanceof JsonObject)) return;
+        var json = (JsonObject) rejected;
+        if (json.getValue("command") instanceof String) {
+          reasons.put(json.getString("command"), json.getValue("reason") instanceof String ? json.getString("reason") : null);
+        }
+      });
+    }
+    for (var command : batch) {
+      var success = applied.contains(command.name());
+      record(command, success);
+      ack(id, command, success ? "applied" : "rejected", reasons.get(command.name()));
+      if (success && command.name().equals("setPosition")) {
+        updatePosition(id, command.command.getString("value"));
+      }
+    }
+  }
+
+  private void failed(String id, List<Command> batch, String reason) {
+    failures++;
+    logs.warn("Command not delivered", id);
+    batch.forEach(command -> {
+      record(command, false);
+      ack(id, command, "failed", reason);
+    });
+  }
+
+  private void record(Command command, boolean success) {
+    gatewayLatency.record(System.nanoTime() - command.received, success);
+    // checked when the command is accepted: absent or a number
+    var time = (Number) command.command.getValue("time");
+    if (time != null) {
+      endToEndLatency.record(Math.max(0, System.currentTimeMillis() - time.longValue()) * 1_000_000, success);
+    }
+  }
+
+  // the record follows the device: index, topics and aggregates (announcement of the update)
+  private void updatePosition(String id, String position) {
+    discoveryManager.getDiscovery().rxGetRecord(rec -> rec.getName().equals(id), true)
+      .flatMapSingle(record -> {
+        record.getMetadata().put("position", position);
+        return discoveryManager.update(record);
+      })
+      .subscribe(
+        ok -> logger.info("{} moved to {}", id, position),
+        error -> logs.warn("Update position failed", id));
+  }
+
+  private void ack(String id, Command command, String status, String reason) {
+    var ack = new JsonObject()
+      .put("command", command.name())
+      .put("value", command.command.getValue("value"))
+      .put("status", status)
+      .put("reason", reason);
+    mqttManager.publish(ackTopic + "/" + id, Buffer.newInstance(ack.toBuffer()));
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .put("received", received)
+      .put("requests", requests)
+      .put("superseded", superseded)
+      .put("failures", failures)
+      .put("inFlight", channels.values().stream().filter(channel -> channel.inFlight).count())
+      .put("gateway", latency(gatewayLatency))
+      .put("endToEnd", latency(endToEndLatency));
+  }
+
+  private static JsonObject latency(PollStats stats) {
+    var json = stats.toJson();
+    return new JsonObject()
+      .put("commands", json.getLong("polls"))
+      .put("failures", json.getLong("failures"))
+      .put("p50Micros", json.getLong("p50Micros"))
+      .put("p99Micros", json.getLong("p99Micros"))
+      .put("maxMicros", json.getLong("maxMicros"));
+  }
+}
@@ -2,31 +2,213 @@ package mqtt;
 
 
 
+import io.reactivex.Completable;
+import io.reactivex.Maybe;
+import io.reactivex.Observable;
 import io.reactivex.Single;
 import io.vertx.circuitbreaker.CircuitBreakerOptions;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.mqtt.MqttClientOptions;
 import io.vertx.reactivex.circuitbreaker.CircuitBreaker;
 import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
 import io.vertx.reactivex.mqtt.MqttClient;
 import io.vertx.reactivex.mqtt.messages.MqttConnAckMessage;
+import io.vertx.reactivex.mqtt.messages.MqttPublishMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import tracing.MqttConnectEvent;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
 
+/*
+  Pool of MQTT connections to the broker
+  - MQTT_POOL_SIZE connections (1 by default), the client id of a connection is "<MQTT_CLIENT_ID>-<index>"
+    (MQTT_CLIENT_ID alone with a single connection)
+  - a topic is always published on the same connection (hash of the topic): the order of the messages
+    of a topic is kept, and the QoS 1 traffic is spread over the in-flight windows of all the connections
+  - every connection has its own circuit breaker, and reconnects alone when it is lost; the gateway starts
+    with the connections established, and a connection is retried forever (when its breaker gives up,
+    next attempt after a delay doubled every time, at most 30 s)
+  - the subscription (e.g. commands to the devices) is made on the first connection of the pool,
+    and made again when this connection is restored (clean session)
+  - the QoS 1 messages published with `publish` are kept until the broker acknowledges them:
+    the messages not acknowledged when a connection is lost are published again when it is restored,
+    the gateway waits for the acknowledgements when it stops (`unacknowledged`) and spools the leftovers
+  - at most MQTT_MAX_INFLIGHT messages in flight per connection (the client rejects the publishes beyond
+    its in-flight window): the other ones wait in the queue of the connection, and an acknowledgement
+    of the broker (or an expiration) releases the next one
+  - a message published while its connection is down is dropped, unless the gateway is stopping
+    (then it is kept for the spool)
+ */
 public class MqttManager {
-  private MqttClient mqttClient;
-  private CircuitBreaker breaker;
+  private static final long MAX_RECONNECT_DELAY = 30_000;
+  private final int poolSize = Integer.parseInt(Optional.ofNullable(System.getenv("MQTT_POOL_SIZE")).orElse("1"));
+  private final int maxInflight = Integer.parseInt(Optional.ofNullable(System.getenv("MQTT_MAX_INFLIGHT")).orElse("10"));
+  private final MqttClient[] mqttClients = new MqttClient[poolSize];
+  private final CircuitBreaker[] breakers = new CircuitBreaker[poolSize];
+  private boolean stopping = false;
+  private String subscriptionTopic = null;
+  private Handler<MqttPublishMessage> subscriptionHandler = null;
+  // QoS 1 messages not acknowledged yet, per connection (packet id -> message)
+  private final List<Map<Integer, MqttSpool.Message>> unacknowledged = new ArrayList<>();
+  // messages handed to the client and not acknowledged (or expired) yet, per connection:
+  // the packet id of a message is only known once the client sent it
+  private final int[] inFlight = new int[poolSize];
+  // messages waiting for a slot in the in-flight window (or for the connection when the gateway stops)
+  private final List<Deque<MqttSpool.Message>> queued = new ArrayList<>();
+  // messages to publish again when the connection is restored
+  private final List<List<MqttSpool.Message>> resend = new ArrayList<>();
+  private boolean draining = false;
+
+  public MqttManager() {
+    for (var index = 0; index < poolSize; index++) {
+      unacknowledged.add(new HashMap<>());
+      queued.add(new ArrayDeque<>());
+      resend.add(new ArrayList<>());
+    }
+  }
   final private Logger logger = LoggerFactory.getLogger(MqttManager.class);
 
+  // first connection of the pool
   public MqttClient getMqttClient() {
-    return mqttClient;
+    return mqttClients[0];
+  }
+
+  // connection of a topic
+  public MqttClient getMqttClient(String topic) {
+    return mqttClients[indexOf(topic)];
+  }
+
+  private int indexOf(String topic) {
+    return Math.floorMod(topic.hashCode(), poolSize);
   }
 
-  // get a circuit breaker
-  private CircuitBreaker getBreaker(Vertx vertx) {
-    if(breaker==null) {
-      breaker = CircuitBreaker.create("gateway-circuit-breaker", vertx,
+  // publish a QoS 1 message on the connection of the topic, kept until it is acknowledged
+  // (false: dropped, the connection is down)
+  public boolean publish(String topic, Buffer payload) {
+    return publish(topic, payload, false);
+  }
+
+  // retained message: kept by the broker for the next subscribers of the topic
+  public boolean publish(String topic, Buffer payload, boolean retain) {
+    return enqueue(new MqttSpool.Message(topic, payload, retain, null));
+  }
+
+  // payload encoded by the MqttPublisher from `data`: spooled as `data` (encoded again by the next run),
+  // null `data`: not spooled (a message tied to the state of this run, e.g. the dictionary of the `schema` encoder)
+  public boolean publishEncoded(String topic, Buffer payload, boolean retain, Object data) {
+    return enqueue(new MqttSpool.Message(topic, payload, retain, true, data, null));
+  }
+
+  // publish a QoS 1 message, completes when the broker acknowledges it (error if it is dropped)
+  public Completable rxPublish(String topic, Buffer payload, boolean retain) {
+    return rxEnqueue(acknowledged -> new MqttSpool.Message(topic, payload, retain, acknowledged));
+  }
+
+  public Completable rxPublishEncoded(String topic, Buffer payload, Object data) {
+    return rxEnqueue(acknowledged -> new MqttSpool.Message(topic, payload, false, true, data, acknowledged));
+  }
+
+  private Completable rxEnqueue(Function<Runnable, MqttSpool.Message> message) {
+    return Completable.create(emitter -> {
+      var created = message.apply(emitter::onComplete);
+      if (!enqueue(created)) {
+        emitter.onError(new IllegalStateException("MQTT connection of " + created.topic + " is down"));
+      }
+    });
+  }
+
+  private boolean enqueue(MqttSpool.Message message) {
+    var index = indexOf(message.topic);
+    var mqttClient = mqttClients[index];
+    if (!draining && (mqttClient == null || !mqttClient.isConnected())) return false;
+    queued.get(index).add(message);
+    sendQueued(index);
+    return true;
+  }
+
+  // hand the queued messages to the client while the in-flight window of the connection has room
+  private void sendQueued(int index) {
+    var mqttClient = mqttClients[index];
+    var queue = queued.get(index);
+    while (mqttClient != null && mqttClient.isConnected() && inFlight[index] < maxInflight && !queue.isEmpty()) {
+      var message = queue.poll();
+      inFlight[index]++;
+      mqttClient.publish(message.topic, message.payload, MqttQoS.AT_LEAST_ONCE, false, message.retain, packetId -> {
+        if (packetId.succeeded()) {
+          unacknowledged.get(index).put(packetId.result(), message);
+        } else {
+          // not sent (connection lost): published again with the next connection
+          inFlight[index]--;
+          resend.get(index).add(message);
+        }
+      });
+    }
+  }
+
+  // number of QoS 1 messages waiting for an acknowledgement of the broker (in flight, or queued on a connection)
+  public int unacknowledged() {
+    var count = 0;
+    for (var index = 0; index < poolSize; index++) {
+      var mqttClient = mqttClients[index];
+      count += inFlight[index];
+      if (mqttClient != null && mqttClient.isConnected()) count += queued.get(index).size();
+    }
+    return count;
+  }
+
+  // the gateway stops: the messages that cannot be published are kept (see `leftovers`)
+  public void drain() {
+    draining = true;
+  }
+
+  // messages not acknowledged, not published again or not published at all (spooled by the gateway)
+  public List<MqttSpool.Message> leftovers() {
+    var leftovers = new ArrayList<MqttSpool.Message>();
+    for (var index = 0; index < poolSize; index++) {
+      leftovers.addAll(resend.get(index));
+      leftovers.addAll(unacknowledged.get(index).values());
+      leftovers.addAll(queued.get(index));
+    }
+    return leftovers;
+  }
+
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  // subscribe (QoS 1) to a topic filter on the first connection, now if it is connected and after every reconnection
+  public void subscribe(String topicFilter, Handler<MqttPublishMessage> handler) {
+    subscriptionTopic = topicFilter;
+    subscriptionHandler = handler;
+    if (mqttClients[0] != null && mqttClients[0].isConnected()) {
+      subscribe(mqttClients[0]);
+    }
+  }
+
+  private void subscribe(MqttClient mqttClient) {
+    mqttClient.publishHandler(subscriptionHandler)
+      .rxSubscribe(subscriptionTopic, MqttQoS.AT_LEAST_ONCE.value())
+      .subscribe(
+        packetId -> logger.info("Subscribed to {}", subscriptionTopic),
+        error -> logger.error("MQTT subscription to {} failed: {}", subscriptionTopic, error.getMessage()));
+  }
+
+  // get the circuit breaker of a connection
+  private CircuitBreaker getBreaker(Vertx vertx, int index) {
+    if(breakers[index]==null) {
+      breakers[index] = CircuitBreaker.create("gateway-circuit-breaker-" + index, vertx,
         new CircuitBreakerOptions()
           .setMaxFailures(3) // number of failure before opening the circuit
           .setMaxRetries(20) // number of retry before a failure
@@ -34,30 +216,89 @@ public class MqttManager {
           .setResetTimeout(10_000) // time spent in open state before attempting to re-try
       ).retryPolicy(retryCount -> retryCount * 100L); // time to retry scaled linearly
     }
-    return breaker;
+    return breakers[index];
   }
 
-  // create and connect the MQTT client "in" a Circuit Breaker
+  // create and connect all the MQTT clients of the pool: the gateway starts with the connections established,
+  // the other ones are connected again in the background (fails only if no connection is established)
   public Single<MqttConnAckMessage> startAndConnectMqttClient(Vertx vertx) {
+    stopping = false;
+    draining = false;
+    return Observable.range(0, poolSize)
+      .flatMapMaybe(index -> startAndConnectMqttClient(vertx, index)
+        .toMaybe()
+        .onErrorResumeNext(error -> {
+          scheduleReconnect(vertx, index, 0, error);
+          return Maybe.empty();
+        }))
+      .toList()
+      .flatMap(acks -> acks.isEmpty()
+        ? Single.error(new IllegalStateException("no connection to the broker"))
+        : Single.just(acks.get(0)));
+  }
+
+  // connect again (circuit breaker included) until it succeeds or the gateway stops
+  private void reconnect(Vertx vertx, int index, int attempt) {
+    if (stopping) return;
+    startAndConnectMqttClient(vertx, index)
+      .subscribe(ok -> {}, error -> scheduleReconnect(vertx, index, attempt + 1, error));
+  }
+
+  // the breaker gave up (or is open): next attempt after a delay doubled every time, at most MAX_RECONNECT_DELAY ms
+  private void scheduleReconnect(Vertx vertx, int index, int attempt, Throwable error) {
+    if (stopping) return;
+    var delay = Math.min(MAX_RECONNECT_DELAY, 1_000L << Math.min(attempt, 10));
+    logger.error("MQTT connection {} not established: {}, next attempt in {} ms", index, error.getMessage(), delay);
+    vertx.setTimer(delay, id -> reconnect(vertx, index, attempt));
+  }
+
+  // create and connect one MQTT client "in" its Circuit Breaker
+  private Single<MqttConnAckMessage> startAndConnectMqttClient(Vertx vertx, int index) {
 
     var mqttClientId = Optional.ofNullable(System.getenv("MQTT_CLIENT_ID")).orElse("gateway");
 
     var mqttPort = Integer.parseInt(Optional.ofNullable(System.getenv("MQTT_PORT")).orElse("1883"));
     var mqttHost = Optional.ofNullable(System.getenv("MQTT_HOST")).orElse("mqtt.home.smart");
 
-    return getBreaker(vertx).rxExecute(promise -> {
+    return getBreaker(vertx, index).<MqttConnAckMessage>rxExecute(promise -> {
 
-      mqttClient = MqttClient.create(vertx, new MqttClientOptions()
-        .setClientId(mqttClientId)
-      ).exceptionHandler(throwable -> {
+      var mqttClient = MqttClient.create(vertx, new MqttClientOptions()
+        .setClientId(poolSize == 1 ? mqttClientId : mqttClientId + "-" + index)
+        .setMaxInflightQueue(maxInflight)
+      );
+      mqttClient.publishCompletionHandler(packetId -> {
+        var message = unacknowledged.get(index).remove(packetId);
+        if (message == null) return;
+        inFlight[index]--;
+        if (message.acknowledged != null) message.acknowledged.run();
+        sendQueued(index);
+      }).publishCompletionExpirationHandler(packetId -> {
+        // no acknowledgement in time: published again with the next connection
+        var message = unacknowledged.get(index).remove(packetId);
+        if (message == null) return;
+        inFlight[index]--;
+        resend.get(index).add(message);
+        sendQueued(index);
+      }).exceptionHandler(throwable -> {
         // Netty ?
         logger.error(throwable.getMessage());
       }).closeHandler(voidValue -> {
+        // a previous client of this index (already replaced): its messages and its slot are not its own anymore
+        if (mqttClients[index] != mqttClient) return;
+        // the messages in flight are lost with the connection
+        resend.get(index).addAll(unacknowledged.get(index).values());
+        inFlight[index] -= unacknowledged.get(index).size();
+        unacknowledged.get(index).clear();
+        if (stopping) return;
         // Connection with broker is lost
-        logger.warn("Connection with broker is lost");
-        // try to connect again
-        startAndConnectMqttClient(vertx);
+        logger.warn("Connection {} with broker is lost", index);
+        // try to connect again (only this connection)
+        reconnect(vertx, index, 0);
       });
+      mqttClients[index] = mqttClient;
+      var event = new MqttConnectEvent();
+      event.clientId = mqttClient.clientId();
+      event.begin();
 
       // some code executing with the breaker
       // the code reports failures or success on the given promise.
@@ -66,11 +307,25 @@ public class MqttManager {
 
       mqttClient.rxConnect(mqttPort, mqttHost)
         .subscribe(
-          ok -> {
-            logger.info("Connection to the broker is ok");
-            promise.complete();
+          ack -> {
+            event.success = true;
+            event.commit();
+            logger.info("Connection {} to the broker is ok", index);
+            if (index == 0 && subscriptionTopic != null) {
+              subscribe(mqttClient);
+            }
+            // the messages of the lost connection first, then the queued ones, through the in-flight window
+            var messages = resend.get(index);
+            if (!messages.isEmpty()) logger.info("Connection {}: {} messages published again", index, messages.size());
+            for (var i = messages.size() - 1; i >= 0; i--) {
+              queued.get(index).addFirst(messages.get(i));
+            }
+            messages.clear();
+            sendQueued(index);
+            promise.complete(ack);
           },
           error -> {
+            event.commit();
             logger.error("MQTT {}", error.getMessage());
             promise.fail("[" + error.getMessage() + "]");
           }
@@ -78,5 +333,26 @@ public class MqttManager {
     });
 
   }
-}
 
+  // disconnect all the clients (no reconnection)
+  public Completable rxDisconnect() {
+    stopping = true;
+    return Observable.range(0, poolSize)
+      .filter(index -> mqttClients[index] != null && mqttClients[index].isConnected())
+      .flatMapCompletable(index -> mqttClients[index].rxDisconnect());
+  }
+
+  public JsonObject status() {
+    var connections = new JsonArray();
+    for (var index = 0; index < poolSize; index++) {
+      var mqttClient = mqttClients[index];
+      connections.add(new JsonObject()
+        .put("clientId", mqttClient == null ? null : mqttClient.clientId())
+        .put("connected", mqttClient != null && mqttClient.isConnected())
+        .put("breaker", breakers[index] == null ? null : breakers[index].state().name())
+        .put("unacknowledged", unacknowledged.get(index).size())
+        .put("queued", queued.get(index).size()));
+    }
+    return new JsonObject().put("poolSize", poolSize).put("connections", connections);
+  }
+}
@@ -0,0 +1,239 @@
+package mqtt;
+
+import encoding.CborEncoder;
+import encoding.DeflateEncoder;
+import encoding.EncodingStats;
+import encoding.JsonEncoder;
+import encoding.MessagePackEncoder;
+import encoding.PayloadEncoder;
+import encoding.SchemaEncoder;
+import io.reactivex.Completable;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.servicediscovery.Record;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tracing.PublishEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+  Publish the data of the devices on the MQTT broker
+  - the topic of a reading is computed by the TopicRouter from MQTT_TOPIC_TEMPLATE
+    (e.g. "house/{position}/{category}/{id}/{sensor}"), MQTT_TOPIC ("house") by default
+  - the payload encoder is chosen per topic:
+    MQTT_ENCODING: default encoder (json, cbor, msgpack, schema), `json` by default
+    MQTT_ENCODINGS: encoder per topic filter, e.g. "house/+/kitchen/#=cbor,alerts=json" (MQTT wildcards allowed)
+  - MQTT_BATCH_SIZE > 1: the readings of a topic are sent by batches (JSON array) of this size,
+    a batch is sent after MQTT_BATCH_LINGER ms even if it is not full
+  - MQTT_DEFLATE=true: the batches are compressed with deflate
+  - with the `schema` encoder, the dictionary of the interned strings (one for all the topics) is published
+    as a retained message on MQTT_DICTIONARY_TOPIC ("schema/dictionary", outside the topics of the readings),
+    before the first payload sent after it grew: a payload gives the id (new at every run) and the size of the
+    dictionary it needs (see SchemaEncoder)
+  - the encodings and the batching can be changed at runtime (`setEncodings`, `setBatching`)
+  - the size and the encoding cost of the messages are measured per encoder
+    (`stats()`, logged every MQTT_STATS_INTERVAL ms, 0 = no log)
+ */
+public class MqttPublisher {
+  private final Logger logger = LoggerFactory.getLogger(MqttPublisher.class);
+  private final Vertx vertx;
+  private final MqttManager mqttManager;
+  private final TopicRouter topicRouter;
+
+  private final Map<String, PayloadEncoder> encoders = new HashMap<>();
+  private final Map<String, PayloadEncoder> batchEncoders = new HashMap<>();
+  private volatile Map<String, PayloadEncoder> topicEncoders = Map.of();
+  private final Map<String, PayloadEncoder> resolvedEncoders = new ConcurrentHashMap<>();
+  private final Map<String, EncodingStats> stats = new ConcurrentHashMap<>();
+  private volatile PayloadEncoder defaultEncoder;
+
+  private int batchSize = 1;
+  private long batchLinger = 1_000;
+  private long batchTimer = -1;
+  private final boolean deflate = Boolean.parseBoolean(Optional.ofNullable(System.getenv("MQTT_DEFLATE")).orElse("false"));
+  private final long statsInterval = Long.parseLong(Optional.ofNullable(System.getenv("MQTT_STATS_INTERVAL")).orElse("60000"));
+  private final Map<String, List<JsonObject>> batches = new HashMap<>();
+  private final String dictionaryTopic = Optional.ofNullable(System.getenv("MQTT_DICTIONARY_TOPIC")).orElse("schema/dictionary");
+  private int publishedDictionarySize = 0;
+
+  public MqttPublisher(Vertx vertx, MqttManager mqttManager) {
+    this.vertx = vertx;
+    this.mqttManager = mqttManager;
+
+    var mqttTopic = Optional.ofNullable(System.getenv("MQTT_TOPIC")).orElse("house");
+    this.topicRouter = new TopicRouter(Optional.ofNullable(System.getenv("MQTT_TOPIC_TEMPLATE")).orElse(mqttTopic));
+
+    List.of(new JsonEncoder(), new CborEncoder(), new MessagePackEncoder(), new SchemaEncoder())
+      .forEach(encoder -> {
+        encoders.put(encoder.name(), encoder);
+        batchEncoders.put(encoder.name(), deflate ? new DeflateEncoder(encoder) : encoder);
+      });
+
+    setEncodings(
+      Optional.ofNullable(System.getenv("MQTT_ENCODING")).orElse("json"),
+      Optional.ofNullable(System.getenv("MQTT_ENCODINGS")).orElse(""));
+    setBatching(
+      Integer.parseInt(Optional.ofNullable(System.getenv("MQTT_BATCH_SIZE")).orElse("1")),
+      Long.parseLong(Optional.ofNullable(System.getenv("MQTT_BATCH_LINGER")).orElse("1000")));
+
+    if (statsInterval > 0) {
+      vertx.setPeriodic(statsInterval, id -> logger.info("MQTT encoding stats {}", stats().encode()));
+    }
+  }
+
+  // default encoder, and encoders per topic filter ("house/+/kitchen/#=cbor,alerts=json")
+  public MqttPublisher setEncodings(String encoding, String topicEncodings) {
+    var newDefaultEncoder = encoder(encoding);
+    var newTopicEncoders = new LinkedHashMap<String, PayloadEncoder>();
+    for (var item : topicEncodings.split(",")) {
+      var parts = item.split("=");
+      if (parts.length == 2) {
+        newTopicEncoders.put(parts[0].trim(), encoder(parts[1].trim()));
+      }
+    }
+    defaultEncoder = newDefaultEncoder;
+    topicEncoders = newTopicEncoders;
+    resolvedEncoders.clear();
+    return this;
+  }
+
+  // size of the batches (1 = no batching) and linger (ms): the pending batches are sent first
+  public MqttPublisher setBatching(int size, long linger) {
+    if (size < 1 || linger < 1) throw new IllegalArgumentException("Invalid MQTT batching: " + size + ", " + linger);
+    flush();
+    vertx.cancelTimer(batchTimer);
+    batchTimer = -1;
+    batchSize = size;
+    batchLinger = linger;
+    if (batchSize > 1) {
+      batchTimer = vertx.setPeriodic(batchLinger, id -> flush());
+    }
+    return this;
+  }
+
+  private PayloadEncoder encoder(String name) {
+    return Optional.ofNullable(encoders.get(name))
+      .orElseThrow(() -> new IllegalArgumentException("Unknown MQTT encoding: " + name));
+  }
+
+  public PayloadEncoder encoderOf(String topic) {
+    return resolvedEncoders.computeIfAbsent(topic, key -> topicEncoders.entrySet().stream()
+      .filter(entry -> matches(entry.getKey(), key))
+      .map(Map.Entry::getValue)
+      .findFirst()
+      .orElse(defaultEncoder));
+  }
+
+  public TopicRouter getTopicRouter() {
+    return topicRouter;
+  }
+
+  // publish the reading of a device on the topic(s) of the device
+  public void publish(Record record, JsonObject data) {
+    topicRouter.route(record, data, this::publish);
+  }
+
+  public void publish(String topic, JsonObject data) {
+    if (batchSize <= 1) {
+      send(topic, encoderOf(topic), data);
+      return;
+    }
+    var batch = batches.computeIfAbsent(topic, key -> new ArrayList<>(batchSize));
+    batch.add(data);
+    if (batch.size() >= batchSize) {
+      batches.remove(topic);
+      sendBatch(topic, batch);
+    }
+  }
+
+  // publish again a value left over by the previous run (see MqttSpool): encoded with the current encoder
+  // of the topic (and its dictionary), without batching, completes when the broker acknowledges it
+  public Completable rxPublish(String topic, Object data) {
+    return Completable.defer(() -> {
+      var encoder = data instanceof JsonArray ? batchEncoders.get(encoderOf(topic).name()) : encoderOf(topic);
+      publishDictionary(topic);
+      return mqttManager.rxPublishEncoded(topic, Buffer.newInstance(encode(encoder, data)), data);
+    });
+  }
+
+  // send the pending batches
+  public void flush() {
+    var pending = new ArrayList<>(batches.entrySet());
+    batches.clear();
+    pending.forEach(entry -> sendBatch(entry.getKey(), entry.getValue()));
+  }
+
+  public JsonObject stats() {
+    var json = new JsonObject();
+    stats.forEach((name, value) -> json.put(name, value.toJson()));
+    return json;
+  }
+
+  private void sendBatch(String topic, List<JsonObject> batch) {
+    send(topic, batchEncoders.get(encoderOf(topic).name()), new JsonArray(new ArrayList<>(batch)));
+  }
+
+  private void send(String topic, PayloadEncoder encoder, Object value) {
+    // connection of the topic (see MqttManager: the messages of a topic are kept in order)
+    var mqttClient = mqttManager.getMqttClient(topic);
+    // send MQTT Message: always through the manager (queued by the in-flight window, kept for the spool
+    // when the gateway stops, dropped by the manager if the connection is down)
+    publishDictionary(topic);
+    var event = new PublishEvent();
+    event.begin();
+    var payload = encode(encoder, value);
+    // QoS 1, kept by the manager until the broker acknowledges it (spooled as `value` when the gateway stops)
+    mqttManager.publishEncoded(topic, Buffer.newInstance(payload), false, value);
+    if (event.shouldCommit()) {
+      event.topic = topic;
+      event.encoding = encoder.name();
+      event.bytes = payload.length();
+      event.clientId = mqttClient == null ? null : mqttClient.clientId();
+      event.commit();
+    }
+  }
+
+  private io.vertx.core.buffer.Buffer encode(PayloadEncoder encoder, Object value) {
+    var start = System.nanoTime();
+    var payload = encoder.encode(value);
+    stats.computeIfAbsent(encoder.name(), name -> new EncodingStats())
+      .record(payload.length(), System.nanoTime() - start);
+    return payload;
+  }
+
+  // the dictionary grew since it was published (new strings of the previous payloads): published again
+  // before the payload, the payload needs the entries known before its encoding
+  private void publishDictionary(String topic) {
+    var encoder = encoderOf(topic);
+    if (!(encoder instanceof SchemaEncoder)) return;
+    var schemaEncoder = (SchemaEncoder) encoder;
+    if (schemaEncoder.dictionarySize() == publishedDictionarySize) return;
+    var dictionary = schemaEncoder.dictionary();
+    // dropped (connection down): published again before the next payload,
+    // not spooled (the next run publishes its own dictionary)
+    if (mqttManager.publishEncoded(dictionaryTopic, Buffer.newInstance(dictionary.toBuffer()), true, null)) {
+      publishedDictionarySize = dictionary.getJsonArray("strings").size();
+    }
+  }
+
+  // MQTT topic filter matching (`+` one level, `#` all the remaining levels)
+  static boolean matches(String filter, String topic) {
+    var filterLevels = filter.split("/", -1);
+    var topicLevels = topic.split("/", -1);
+    for (int i = 0; i < filterLevels.length; i++) {
+      if (filterLevels[i].equals("#")) return true;
+      if (i >= topicLevels.length) return false;
+      if (!filterLevels[i].equals("+") && !filterLevels[i].equals(topicLevels[i])) return false;
+    }
+    return filterLevels.length == topicLevels.length;
+  }
+}
@@ -0,0 +1,105 @@
+package mqtt;
+
+import io.reactivex.Completable;
+import io.reactivex.Observable;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/*
+  MQTT messages left over when the gateway stops (not acknowledged by the broker in time, or not published)
+  - saved to MQTT_SPOOL_FILE (./data/mqtt_spool.jsonl): one JSON line per message, topic and retain flag, and
+    - the readings encoded by the MqttPublisher: the JSON value before encoding (`data`), encoded again by the
+      next run (a payload of the `schema` encoder refers to the dictionary of its run)
+    - the messages published as is (e.g. the acks of the commands): the payload (`payload`, base64)
+    - the messages tied to the state of the run (the dictionary of the `schema` encoder) are not spooled:
+      the next run publishes its own dictionary
+  - published again by the next run once it is connected to the broker, before the first polling cycle
+    (the messages of a topic are received in order), through the in-flight window of the connections
+    (see MqttManager), the file is deleted when the broker acknowledged all of them
+    (QoS 1: a message acknowledged but not seen as such can be received twice)
+ */
+public class MqttSpool {
+  private final Logger logger = LoggerFactory.getLogger(MqttSpool.class);
+
+  public static class Message {
+    final String topic;
+    final Buffer payload;
+    final boolean retain;
+    // payload encoded by the MqttPublisher from `data` (JsonObject or JsonArray): spooled as `data`,
+    // not spooled without `data` (state of the run)
+    final boolean encoded;
+    final Object data;
+    // called when the broker acknowledges the message (null: nothing to do)
+    final Runnable acknowledged;
+
+    Message(String topic, Buffer payload, boolean retain, Runnable acknowledged) {
+      this(topic, payload, retain, false, null, acknowledged);
+    }
+
+    Message(String topic, Buffer payload, boolean retain, boolean encoded, Object data, Runnable acknowledged) {
+      this.topic = topic;
+      this.payload = payload;
+      this.retain = retain;
+      this.encoded = encoded;
+      this.data = data;
+      this.acknowledged = acknowledged;
+    }
+  }
+
+  private final Path path;
+
+  public MqttSpool(Path path) {
+    this.path = path;
+  }
+
+  public Completable rxSave(Vertx vertx, List<Message> leftovers) {
+    var messages = leftovers.stream()
+      .filter(message -> !message.encoded || message.data != null)
+      .collect(Collectors.toList());
+    if (messages.isEmpty()) return Completable.complete();
+    var buffer = Buffer.buffer();
+    var encoder = Base64.getEncoder();
+    messages.forEach(message -> {
+      var line = new JsonObject().put("topic", message.topic).put("retain", message.retain);
+      if (message.encoded) {
+        line.put("data", message.data);
+      } else {
+        line.put("payload", encoder.encodeToString(message.payload.getBytes()));
+      }
+      buffer.appendString(line.encode()).appendString("\n");
+    });
+    var parent = path.getParent() == null ? Completable.complete() : vertx.fileSystem().rxMkdirs(path.getParent().toString());
+    return parent
+      .andThen(vertx.fileSystem().rxWriteFile(path.toString(), buffer))
+      .doOnComplete(() -> logger.info("{} MQTT messages spooled to {}", messages.size(), path))
+      .doOnError(error -> logger.error("MQTT spool not saved: {}", error.getMessage()));
+  }
+
+  // publish the spooled messages again (the connections must be established), the readings are encoded again
+  // by the publisher, completes when they are all acknowledged and the file is deleted (the file is kept if one is dropped)
+  public Completable rxReplay(Vertx vertx, MqttManager mqttManager, MqttPublisher mqttPublisher) {
+    var decoder = Base64.getDecoder();
+    return vertx.fileSystem().rxExists(path.toString())
+      .flatMapCompletable(exists -> !exists ? Completable.complete() : vertx.fileSystem().rxReadFile(path.toString())
+        .flatMapObservable(buffer -> Observable.fromArray(buffer.toString().split("\n")))
+        .filter(line -> !line.isBlank())
+        .map(JsonObject::new)
+        .toList()
+        .flatMapCompletable(lines -> Observable.fromIterable(lines)
+          // subscribed in order: the messages are queued on their connections in the order of the file
+          .flatMapCompletable(line -> line.containsKey("data")
+            ? mqttPublisher.rxPublish(line.getString("topic"), line.getValue("data"))
+            : mqttManager.rxPublish(line.getString("topic"),
+                Buffer.buffer(decoder.decode(line.getString("payload"))), line.getBoolean("retain", false)))
+          .andThen(vertx.fileSystem().rxDelete(path.toString()))
+          .doOnComplete(() -> logger.info("{} spooled MQTT messages published again", lines.size()))));
+  }
+}
@@ -0,0 +1,94 @@
+package mqtt;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.servicediscovery.Record;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/*
+  Compute the MQTT topics of the readings from a template, e.g. "house/{position}/{category}/{id}/{sensor}"
+  - {id}: name of the record, {position} and {category}: metadata of the record, {sensor}: name of the sensor
+  - without {sensor}, the whole reading is sent on the topic of the device
+  - with {sensor}, the reading is split: one message per sensor, on the topic of the sensor
+  - the topics are computed once per device (and per sensor) and cached,
+    they are computed again when the position or the category of the device change
+  - the MQTT reserved characters of the values ('/', '+', '#') are replaced by '_'
+  The subscribers can then use wildcard subscriptions, e.g. "house/kitchen/#" or "house/+/+/+/eCO2"
+ */
+public class TopicRouter {
+  private static class DeviceTopics {
+    final String position;
+    final String category;
+    final String deviceTopic;
+    final Map<String, String> sensorTopics = new HashMap<>();
+
+    DeviceTopics(String position, String category, String deviceTopic) {
+      this.position = position;
+      this.category = category;
+      this.deviceTopic = deviceTopic;
+    }
+  }
+
+  private final String template;
+  private final boolean perSensor;
+  private final Map<String, DeviceTopics> topics = new HashMap<>();
+
+  public TopicRouter(String template) {
+    this.template = template;
+    this.perSensor = template.contains("{sensor}");
+  }
+
+  public String getTemplate() {
+    return template;
+  }
+
+  // give every (topic, message) of the reading of the device to `publish`
+  public void route(Record record, JsonObject data, BiConsumer<String, JsonObject> publish) {
+    var deviceTopics = topicsOf(record);
+    if (!perSensor) {
+      publish.accept(deviceTopics.deviceTopic, data);
+      return;
+    }
+    var sensors = data.getJsonArray("sensors");
+    if (sensors == null) return;
+    for (int i = 0; i < sensors.size(); i++) {
+      var sensor = sensors.getJsonObject(i);
+      for (var name : sensor.fieldNames()) {
+        var topic = deviceTopics.sensorTopics.computeIfAbsent(name,
+          key -> deviceTopics.deviceTopic.replace("{sensor}", segment(key)));
+        publish.accept(topic, data.copy().put("sensors", new JsonArray().add(sensor)));
+      }
+    }
+  }
+
+  public void invalidate(String id) {
+    topics.remove(id);
+  }
+
+  private DeviceTopics topicsOf(Record record) {
+    var metadata = record.getMetadata();
+    var position = metadata.getString("position", "");
+    var category = metadata.getString("category", "");
+    var deviceTopics = topics.get(record.getName());
+    if (deviceTopics == null
+      || !Objects.equals(deviceTopics.position, position)
+      || !Objects.equals(deviceTopics.category, category)) {
+      // {sensor} is kept in the topic of the device, it is replaced per sensor
+      var deviceTopic = template
+        .replace("{id}", segment(record.getName()))
+        .replace("{position}", segment(position))
+        .replace("{category}", segment(category));
+      deviceTopics = new DeviceTopics(position, category, deviceTopic);
+      topics.put(record.getName(), deviceTopics);
+    }
+    return deviceTopics;
+  }
+
+  private static String segment(String value) {
+    return value.replace('/', '_').replace('+', '_').replace('#', '_');
+  }
+}
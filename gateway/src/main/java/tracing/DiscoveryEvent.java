@@ -0,0 +1,25 @@
+package tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+  JFR event: operation on the discovery backend (Redis or file): lookup, publish or update of a record
+ */
+@Name("smarthome.Discovery")
+@Label("Discovery Operation")
+@Category({"Smart Home", "Gateway"})
+@Description("Lookup, publish or update of a record in the discovery backend")
+public class DiscoveryEvent extends Event {
+  @Label("Device")
+  public String device;
+
+  @Label("Operation")
+  public String operation;
+
+  @Label("Success")
+  public boolean success;
+}
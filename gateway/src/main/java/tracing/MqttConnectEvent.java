@@ -0,0 +1,22 @@
+package tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+  JFR event: connection of an MQTT client of the pool to the broker
+ */
+@Name("smarthome.MqttConnect")
+@Label("MQTT Connect")
+@Category({"Smart Home", "Gateway"})
+@Description("Connection of an MQTT client to the broker")
+public class MqttConnectEvent extends Event {
+  @Label("Client Id")
+  public String clientId;
+
+  @Label("Success")
+  public boolean success;
+}
@@ -0,0 +1,27 @@
+package tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+  JFR event: change detection (hash) and JSON parsing of the response of a device
+ */
+@Name("smarthome.Parse")
+@Label("Reading Parse")
+@Category({"Smart Home", "Gateway"})
+@Description("Change detection and JSON parsing of a device response")
+public class ParseEvent extends Event {
+  @Label("Device")
+  public String device;
+
+  @Label("Size")
+  @DataAmount
+  public int bytes;
+
+  @Label("Changed")
+  public boolean changed;
+}
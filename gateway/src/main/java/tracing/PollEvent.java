@@ -0,0 +1,32 @@
+package tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+  JFR event: HTTP exchange of a poll, from the request to the response of the device
+  (DNS resolution and connection included)
+ */
+@Name("smarthome.Poll")
+@Label("Device Poll")
+@Category({"Smart Home", "Gateway"})
+@Description("HTTP request to a device until its response (DNS, connect and device time included)")
+public class PollEvent extends Event {
+  @Label("Device")
+  public String device;
+
+  @Label("Engine")
+  public String engine;
+
+  @Label("Status Code")
+  public int statusCode;
+
+  @Label("Success")
+  public boolean success;
+
+  @Label("Trace Id")
+  public String traceId;
+}
@@ -0,0 +1,30 @@
+package tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+  JFR event: encoding and write of an MQTT message (the QoS 1 acknowledgement is not waited for)
+ */
+@Name("smarthome.MqttPublish")
+@Label("MQTT Publish")
+@Category({"Smart Home", "Gateway"})
+@Description("Encoding and write of an MQTT message")
+public class PublishEvent extends Event {
+  @Label("Topic")
+  public String topic;
+
+  @Label("Encoding")
+  public String encoding;
+
+  @Label("Size")
+  @DataAmount
+  public int bytes;
+
+  @Label("Client Id")
+  public String clientId;
+}
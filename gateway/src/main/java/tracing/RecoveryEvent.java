@@ -0,0 +1,25 @@
+package tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+  JFR event: recovery attempt of an unhealthy device (see RetryCoordinator)
+ */
+@Name("smarthome.Recovery")
+@Label("Recovery Attempt")
+@Category({"Smart Home", "Gateway"})
+@Description("Request to an unhealthy device during its recovery")
+public class RecoveryEvent extends Event {
+  @Label("Device")
+  public String device;
+
+  @Label("Attempt")
+  public int attempt;
+
+  @Label("Success")
+  public boolean success;
+}
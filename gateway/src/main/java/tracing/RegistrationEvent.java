@@ -0,0 +1,22 @@
+package tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+  JFR event: registration of a device, from the request to the response of the gateway
+ */
+@Name("smarthome.Registration")
+@Label("Device Registration")
+@Category({"Smart Home", "Gateway"})
+@Description("Registration of a device (lookup and publish or update of its record)")
+public class RegistrationEvent extends Event {
+  @Label("Device")
+  public String device;
+
+  @Label("Status Code")
+  public int statusCode;
+}
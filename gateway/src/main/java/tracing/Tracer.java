@@ -0,0 +1,107 @@
+package tracing;
+
+import io.reactivex.Completable;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import shared.SpanWriter;
+
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+  Trace of the polls (TRACING=true)
+  - every sampled poll (TRACE_SAMPLE, fraction of the polls) is a span, its context is sent to the device
+    in a W3C `traceparent` header: the devices with tracing write their own span with the same trace id
+  - the spans are written as JSON lines to TRACE_FILE (./data/traces.jsonl): trace id, span id, name,
+    start (epoch µs), duration (µs) and the attributes of the span (e.g. time of every stage of a poll)
+  - the lines are buffered and appended to the file every second (at most 1 MB pending, see SpanWriter)
+  Disabled, `start` returns null and nothing is allocated
+ */
+public class Tracer {
+  public static class Span {
+    private final String traceId;
+    private final String spanId;
+    private final String name;
+    private final long startMicros = System.currentTimeMillis() * 1_000;
+    private final long startNanos = System.nanoTime();
+    private final JsonObject attributes = new JsonObject();
+
+    Span(String traceId, String spanId, String name) {
+      this.traceId = traceId;
+      this.spanId = spanId;
+      this.name = name;
+    }
+
+    public String getTraceId() {
+      return traceId;
+    }
+
+    // W3C trace context of the span (sampled)
+    public String traceparent() {
+      return "00-" + traceId + "-" + spanId + "-01";
+    }
+
+    public Span put(String key, Object value) {
+      attributes.put(key, value);
+      return this;
+    }
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(Tracer.class);
+  private final boolean enabled;
+  private final double sample;
+  private final SpanWriter writer;
+
+  private Tracer() {
+    this.enabled = false;
+    this.sample = 0;
+    this.writer = null;
+  }
+
+  public Tracer(Vertx vertx, Path path, double sample) {
+    this.enabled = true;
+    this.sample = sample;
+    this.writer = new SpanWriter(vertx, path);
+    logger.info("Tracing: {} of the polls to {}", sample, path);
+  }
+
+  public static Tracer disabled() {
+    return new Tracer();
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  // a new trace (null if tracing is disabled or if the trace is not sampled)
+  public Span start(String name) {
+    if (!enabled) return null;
+    var random = ThreadLocalRandom.current();
+    if (sample < 1 && random.nextDouble() >= sample) return null;
+    return new Span(hex(random.nextLong()) + hex(random.nextLong()), hex(random.nextLong()), name);
+  }
+
+  public void end(Span span) {
+    if (span == null) return;
+    var line = new JsonObject()
+      .put("traceId", span.traceId)
+      .put("spanId", span.spanId)
+      .put("name", span.name)
+      .put("start", span.startMicros)
+      .put("durationMicros", (System.nanoTime() - span.startNanos) / 1_000);
+    span.attributes.forEach(entry -> line.put(entry.getKey(), entry.getValue()));
+    writer.write(line);
+  }
+
+  public Completable rxClose() {
+    if (!enabled) return Completable.complete();
+    return writer.rxClose();
+  }
+
+  private static String hex(long value) {
+    var digits = Long.toHexString(value);
+    return "0".repeat(16 - digits.length()) + digits;
+  }
+}
@@ -0,0 +1,129 @@
+package udp;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/*
+  Compact binary telemetry frame (one UDP datagram, big-endian)
+  [short magic "SH"][byte version][byte flags][int sequence][long time (ms, clock of the device)]
+  [byte length][id][byte length][position][byte length][category]
+  [byte sensor count] then per sensor: [byte code][float value]
+    code 1: temperature (Celsius), 2: humidity (%), 3: eCO2 (ppm),
+    code 0: other sensor, the code is followed by [byte length][name]
+  [16 bytes: HMAC-SHA256 of all the previous bytes with the GATEWAY_TOKEN, truncated]
+  A frame is decoded in the same JSON format as the response of an HTTP device.
+  Not thread-safe (one Mac instance): one TelemetryFrame per event loop.
+ */
+public class TelemetryFrame {
+  public static final short MAGIC = 0x5348;
+  public static final byte VERSION = 1;
+  public static final int HEADER = 16;
+  public static final int SIGNATURE = 16;
+  public static final int MAX_SIZE = 512;
+
+  static final String[] SENSOR_NAMES = {null, "temperature", "humidity", "eCO2"};
+  static final String[] SENSOR_UNITS = {"", "Celsius", "%", "ppm"};
+
+  public static class InvalidFrameException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidFrameException(String message) {
+      super(message, null, false, false);
+    }
+  }
+
+  private final Mac mac;
+  private final byte[] signature = new byte[32];
+
+  public TelemetryFrame(String token) {
+    try {
+      mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(token.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new IllegalStateException("HmacSHA256 not available", e);
+    }
+  }
+
+  // check the signature of the frame (constant time)
+  public boolean authenticate(Buffer frame) {
+    var length = frame.length();
+    if (length < HEADER + SIGNATURE) return false;
+    mac.update(frame.getByteBuf().nioBuffer(0, length - SIGNATURE));
+    try {
+      mac.doFinal(signature, 0);
+    } catch (ShortBufferException e) {
+      return false;
+    }
+    var difference = 0;
+    for (var i = 0; i < SIGNATURE; i++) {
+      difference |= signature[i] ^ frame.getByte(length - SIGNATURE + i);
+    }
+    return difference == 0;
+  }
+
+  public static int sequence(Buffer frame) {
+    return frame.getInt(4);
+  }
+
+  public static long time(Buffer frame) {
+    return frame.getLong(8);
+  }
+
+  // decode an authenticated frame
+  public static JsonObject decode(Buffer frame) throws InvalidFrameException {
+    try {
+      if (frame.getShort(0) != MAGIC) throw new InvalidFrameException("bad magic");
+      if (frame.getByte(2) != VERSION) throw new InvalidFrameException("unknown version");
+      var end = frame.length() - SIGNATURE;
+      var position = HEADER;
+
+      var idLength = frame.getUnsignedByte(position++);
+      var id = frame.getString(position, position + idLength, "UTF-8");
+      position += idLength;
+      var locationLength = frame.getUnsignedByte(position++);
+      var location = frame.getString(position, position + locationLength, "UTF-8");
+      position += locationLength;
+      var categoryLength = frame.getUnsignedByte(position++);
+      var category = frame.getString(position, position + categoryLength, "UTF-8");
+      position += categoryLength;
+
+      var count = frame.getUnsignedByte(position++);
+      var sensors = new JsonArray();
+      for (var i = 0; i < count; i++) {
+        var code = frame.getUnsignedByte(position++);
+        String name;
+        var unit = "";
+        if (code == 0) {
+          var nameLength = frame.getUnsignedByte(position++);
+          name = frame.getString(position, position + nameLength, "UTF-8");
+          position += nameLength;
+        } else if (code < SENSOR_NAMES.length) {
+          name = SENSOR_NAMES[code];
+          unit = SENSOR_UNITS[code];
+        } else {
+          throw new InvalidFrameException("unknown sensor code " + code);
+        }
+        var value = frame.getFloat(position);
+        position += 4;
+        sensors.add(new JsonObject().put(name, new JsonObject().put("unit", unit).put("value", (double) value)));
+      }
+      if (position != end) throw new InvalidFrameException("bad length");
+
+      return new JsonObject()
+        .put("id", id)
+        .put("location", location)
+        .put("category", category)
+        .put("sensors", sensors);
+    } catch (IndexOutOfBoundsException e) {
+      throw new InvalidFrameException("truncated frame");
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package udp;
+
+import io.reactivex.Completable;
+import io.vertx.core.datagram.DatagramSocketOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.datagram.DatagramPacket;
+import io.vertx.reactivex.core.datagram.DatagramSocket;
+import io.vertx.servicediscovery.Record;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/*
+  Ingestion of the readings of the constrained devices over UDP (fire-and-forget, no registration, no polling)
+  - one datagram = one TelemetryFrame, signed with the GATEWAY_TOKEN
+  - the frames with a bad signature, a bad format, or older than the last frame of the device
+    (replayed or reordered: same device clock and sequence) are dropped
+  - the readings go to the same publish pipeline as the polled devices (`sink`: DevicesHealth.ingest)
+  - per packet: one HMAC, one decoding, no response
+ */
+public class UdpIngestion {
+  private static class Sender {
+    long time;
+    int sequence;
+    Record record;
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(UdpIngestion.class);
+  private final TelemetryFrame telemetryFrame = new TelemetryFrame(Optional.ofNullable(System.getenv("GATEWAY_TOKEN")).orElse("secret"));
+  private final BiConsumer<Record, JsonObject> sink;
+  private final Map<String, Sender> senders = new HashMap<>();
+  private DatagramSocket socket;
+
+  private long received = 0;
+  private long accepted = 0;
+  private long unauthenticated = 0;
+  private long malformed = 0;
+  private long replayed = 0;
+
+  public UdpIngestion(BiConsumer<Record, JsonObject> sink) {
+    this.sink = sink;
+  }
+
+  public Completable rxStart(Vertx vertx, int port) {
+    socket = vertx.createDatagramSocket(new DatagramSocketOptions().setReceiveBufferSize(4 << 20));
+    socket.handler(this::handle);
+    return socket.rxListen(port, "0.0.0.0")
+      .doOnSuccess(ok -> logger.info("Gateway: UDP ingestion started on port {}", port))
+      .ignoreElement();
+  }
+
+  public Completable rxStop() {
+    return socket == null ? Completable.complete() : socket.rxClose();
+  }
+
+  private void handle(DatagramPacket packet) {
+    received++;
+    var frame = packet.data().getDelegate();
+    if (frame.length() > TelemetryFrame.MAX_SIZE || !telemetryFrame.authenticate(frame)) {
+      unauthenticated++;
+      return;
+    }
+    JsonObject data;
+    try {
+      data = TelemetryFrame.decode(frame);
+    } catch (TelemetryFrame.InvalidFrameException e) {
+      malformed++;
+      logger.debug("Invalid frame from {}: {}", packet.sender(), e.getMessage());
+      return;
+    }
+
+    var id = data.getString("id");
+    var time = TelemetryFrame.time(frame);
+    var sequence = TelemetryFrame.sequence(frame);
+    var sender = senders.computeIfAbsent(id, key -> new Sender());
+    if (sender.record != null && (time < sender.time || (time == sender.time && sequence <= sender.sequence))) {
+      replayed++;
+      return;
+    }
+    sender.time = time;
+    sender.sequence = sequence;
+    sender.record = recordOf(sender.record, id, data);
+    accepted++;
+    sink.accept(sender.record, data);
+  }
+
+  // record used to route the readings (topics), created again only when the device moves
+  private static Record recordOf(Record record, String id, JsonObject data) {
+    var position = data.getString("location");
+    var category = data.getString("category");
+    if (record != null
+      && Objects.equals(record.getMetadata().getString("position"), position)
+      && Objects.equals(record.getMetadata().getString("category"), category)) {
+      return record;
+    }
+    return new Record()
+      .setName(id)
+      .setType("udp")
+      .setMetadata(new JsonObject().put("position", position).put("category", category));
+  }
+
+  public JsonObject stats() {
+    return new JsonObject()
+      .put("received", received)
+      .put("accepted", accepted)
+      .put("unauthenticated", unauthenticated)
+      .put("malformed", malformed)
+      .put("replayed", replayed)
+      .put("devices", senders.size());
+  }
+}
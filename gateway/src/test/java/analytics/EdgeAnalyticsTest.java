@@ -0,0 +1,68 @@
+package analytics;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.servicediscovery.Record;
+import io.vertx.servicediscovery.Status;
+import mqtt.MqttManager;
+import mqtt.MqttPublisher;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+  A device gone (DOWN, OUT_OF_SERVICE) is forgotten by the rule stage: its active alerts are cleared,
+  a device coming back starts with new states
+ */
+@ExtendWith(VertxExtension.class)
+class EdgeAnalyticsTest {
+
+  private static JsonObject reading(double temperature) {
+    return new JsonObject().put("sensors", new JsonArray()
+      .add(new JsonObject().put("temperature", new JsonObject().put("value", temperature))));
+  }
+
+  @Test
+  void goneDeviceIsCleared(io.vertx.core.Vertx coreVertx) {
+    var vertx = Vertx.newInstance(coreVertx);
+    var alerts = new ArrayList<JsonObject>();
+    var mqttPublisher = new MqttPublisher(vertx, new MqttManager()) {
+      @Override
+      public void publish(Record record, JsonObject data) {
+      }
+
+      @Override
+      public void publish(String topic, JsonObject data) {
+        if (topic.equals("alerts")) alerts.add(data);
+      }
+    };
+    var analytics = new EdgeAnalytics(vertx, mqttPublisher, Rules.parse("temperature>30"));
+    var record = new Record().setName("device-1");
+
+    analytics.accept(record, reading(35));
+    assertEquals(1, analytics.stats().getLong("active"));
+
+    analytics.apply(record.setStatus(Status.DOWN));
+    assertEquals(List.of("raised", "cleared"), states(alerts));
+    assertEquals("DOWN", alerts.get(1).getString("reason"));
+    assertEquals(0, analytics.stats().getLong("active"));
+    // nothing left to clear
+    analytics.apply(record);
+    assertEquals(2, alerts.size());
+
+    analytics.accept(record.setStatus(Status.UP), reading(35));
+    assertEquals(List.of("raised", "cleared", "raised"), states(alerts));
+  }
+
+  private static List<String> states(List<JsonObject> alerts) {
+    var states = new ArrayList<String>();
+    alerts.forEach(alert -> states.add(alert.getString("state")));
+    return states;
+  }
+}
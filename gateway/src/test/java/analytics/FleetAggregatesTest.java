@@ -0,0 +1,64 @@
+package analytics;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.servicediscovery.Record;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/*
+  Groups of the fleet aggregates: a reading with new metadata moves the device, a silent device expires
+ */
+class FleetAggregatesTest {
+
+  private static Record record(String id, String position) {
+    return new Record().setName(id).setMetadata(new JsonObject().put("position", position).put("category", "sensor"));
+  }
+
+  private static JsonObject reading(double temperature) {
+    return new JsonObject().put("sensors", new JsonArray()
+      .add(new JsonObject().put("temperature", new JsonObject().put("value", temperature))));
+  }
+
+  @Test
+  void readingWithNewMetadataRegroups() {
+    var aggregates = new FleetAggregates(60_000);
+    aggregates.accept(record("device-1", "kitchen"), reading(20));
+    aggregates.accept(record("device-2", "kitchen"), reading(22));
+
+    aggregates.accept(record("device-1", "bedroom"), reading(18));
+    var kitchen = aggregates.toJson("position", "kitchen").getJsonObject("temperature");
+    assertEquals(1, kitchen.getLong("count"));
+    assertEquals(22.0, kitchen.getDouble("mean"));
+    var bedroom = aggregates.toJson("position", "bedroom").getJsonObject("temperature");
+    assertEquals(1, bedroom.getLong("count"));
+    assertEquals(18.0, bedroom.getDouble("mean"));
+    assertEquals(2, aggregates.toJson("category", "sensor").getJsonObject("temperature").getLong("count"));
+  }
+
+  @Test
+  void silentDeviceExpires() {
+    var aggregates = new FleetAggregates(1_000);
+    aggregates.accept(record("device-1", "kitchen"), reading(20));
+
+    aggregates.evict(System.currentTimeMillis());
+    assertEquals(1, aggregates.toJson("position", "kitchen").getJsonObject("temperature").getLong("count"));
+    aggregates.evict(System.currentTimeMillis() + 2_000);
+    assertNull(aggregates.toJson("position", "kitchen"));
+    assertNull(aggregates.toJson("category", "sensor"));
+  }
+
+  @Test
+  void meanDoesNotDrift() {
+    var aggregates = new FleetAggregates(60_000);
+    aggregates.accept(record("device-1", "kitchen"), reading(1e9));
+    for (int i = 0; i < 100_000; i++) {
+      aggregates.accept(record("device-2", "kitchen"), reading(0.1 * (i % 10)));
+    }
+    aggregates.accept(record("device-2", "kitchen"), reading(0.1));
+    aggregates.accept(record("device-1", "kitchen"), reading(0.3));
+    assertEquals(0.2, aggregates.toJson("position", "kitchen").getJsonObject("temperature").getDouble("mean"), 1e-12);
+  }
+}
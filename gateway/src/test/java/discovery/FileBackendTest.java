@@ -0,0 +1,124 @@
+package discovery;
+
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.servicediscovery.Record;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/*
+  Log of the file backend, reopened by a new backend on the same file (a restart of the gateway)
+  - a torn entry at the end of the log (crash during an append) is cut, the entries before it are recovered,
+    the next appends follow the last good entry
+  - a log with more garbage than live records is compacted, the last version of every record is kept
+ */
+@ExtendWith(VertxExtension.class)
+class FileBackendTest {
+  private Vertx vertx;
+
+  @BeforeEach
+  void setUp(Vertx vertx) {
+    this.vertx = vertx;
+  }
+
+  private FileBackend open(Path path) {
+    var backend = new FileBackend();
+    backend.init(vertx, new JsonObject().put("path", path.toString()).put("fsync", false));
+    return backend;
+  }
+
+  private static Record record(String name, String position) {
+    return new Record().setName(name).setType("http-endpoint").setMetadata(new JsonObject().put("position", position));
+  }
+
+  private static Record store(FileBackend backend, Record record) throws Exception {
+    var promise = Promise.<Record>promise();
+    backend.store(record, promise);
+    return promise.future().toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+  }
+
+  private static void update(FileBackend backend, Record record) throws Exception {
+    var promise = Promise.<Void>promise();
+    backend.update(record, promise);
+    promise.future().toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS);
+  }
+
+  private static List<String> positions(FileBackend backend) throws Exception {
+    var promise = Promise.<List<Record>>promise();
+    backend.getRecords(promise);
+    return promise.future().toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS).stream()
+      .map(record -> record.getMetadata().getString("position"))
+      .sorted()
+      .collect(Collectors.toList());
+  }
+
+  @Test
+  void tornTailIsCut(@TempDir Path directory) throws Exception {
+    var path = directory.resolve("records.log");
+    var backend = open(path);
+    store(backend, record("device-1", "kitchen"));
+    store(backend, record("device-2", "bedroom"));
+    var size = Files.size(path);
+
+    // the beginning of a third entry: a length and a part of the entry
+    var log = Files.readAllBytes(path);
+    Files.write(path, Arrays.copyOf(log, log.length / 3), StandardOpenOption.APPEND);
+
+    var recovered = open(path);
+    assertEquals(List.of("bedroom", "kitchen"), positions(recovered));
+    assertEquals(size, Files.size(path));
+
+    store(recovered, record("device-3", "garage"));
+    assertEquals(List.of("bedroom", "garage", "kitchen"), positions(open(path)));
+  }
+
+  @Test
+  void garbageIsCompacted(@TempDir Path directory) throws Exception {
+    var path = directory.resolve("records.log");
+    var backend = open(path);
+    store(backend, record("device-1", "kitchen"));
+    var updated = store(backend, record("device-2", "bedroom"));
+    // ~2 MB of old versions of device-2
+    var padding = "x".repeat(8 * 1024);
+    for (int i = 0; i < 256; i++) {
+      updated.getMetadata().put("padding", padding).put("position", "room-" + i);
+      update(backend, updated);
+    }
+    // 2 MB written, compacted every time the log reaches 1 MB
+    await(() -> size(path) < 1 << 20);
+
+    assertEquals(List.of("kitchen", "room-255"), positions(open(path)));
+  }
+
+  private static long size(Path path) {
+    try {
+      return Files.size(path);
+    } catch (Exception e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    var deadline = System.currentTimeMillis() + 5_000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) fail("Timeout");
+      Thread.sleep(5);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package encoding;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/*
+  Dictionary of the schema encoder: the payloads and the published dictionary carry the same id,
+  another encoder (a restarted gateway) has another id
+ */
+class SchemaEncoderTest {
+
+  private static JsonObject reading(String id) {
+    return new JsonObject().put("id", id).put("location", "kitchen").put("category", "sensor")
+      .put("sensors", new JsonArray().add(new JsonObject()
+        .put("temperature", new JsonObject().put("unit", "Celsius").put("value", 20.5))));
+  }
+
+  @Test
+  void payloadsCarryTheDictionaryId() {
+    var encoder = new SchemaEncoder();
+    var single = encoder.encode(reading("device-1"));
+    var batch = encoder.encode(new JsonArray().add(reading("device-2")));
+
+    var dictionary = encoder.dictionary();
+    assertEquals(0x01, single.getByte(0));
+    assertEquals(dictionary.getInteger("id"), single.getInt(1));
+    assertEquals(0x02, batch.getByte(0));
+    assertEquals(dictionary.getInteger("id"), batch.getInt(1));
+    assertEquals(new JsonArray().add("device-1").add("kitchen").add("sensor").add("temperature").add("Celsius").add("device-2"),
+      dictionary.getJsonArray("strings"));
+  }
+
+  @Test
+  void newEncoderNewDictionaryId() {
+    var previous = new SchemaEncoder();
+    previous.encode(reading("device-1"));
+    var restarted = new SchemaEncoder();
+    assertNotEquals(previous.dictionaryId(), restarted.dictionaryId());
+    // same indexes from 0: only the id tells the dictionaries apart
+    assertEquals(previous.encode(reading("device-1")).getInt(1), previous.dictionaryId());
+    assertEquals(restarted.encode(reading("device-1")).getInt(1), restarted.dictionaryId());
+  }
+}
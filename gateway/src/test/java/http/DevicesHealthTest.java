@@ -0,0 +1,224 @@
+package http;
+
+import helpers.GenericCodec;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.reactivex.core.Context;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.http.HttpServer;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import io.vertx.reactivex.servicediscovery.ServiceDiscovery;
+import io.vertx.servicediscovery.Record;
+import io.vertx.servicediscovery.ServiceDiscoveryOptions;
+import io.vertx.servicediscovery.Status;
+import io.vertx.servicediscovery.impl.DefaultServiceDiscoveryBackend;
+import io.vertx.servicediscovery.types.HttpEndpoint;
+import mqtt.MqttManager;
+import mqtt.MqttPublisher;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/*
+  Polling cycles of DevicesHealth against a device served by the test (HTTP server on a random port)
+  - the device answers its reading with an ETag, 304 when the If-None-Match header is its current ETag,
+    or an error status (`statusCode`), or a truncated reading (`truncated`),
+    or the first half of the reading then the connection closed (`partial`, the partial body of the device fault injection)
+  - the readings given to the MQTT publisher are recorded
+  Every cycle runs on the same event loop context, the assertions read the state on this context.
+ */
+@ExtendWith(VertxExtension.class)
+class DevicesHealthTest {
+  private Vertx vertx;
+  private Context context;
+  private DevicesHealth<?> devicesHealth;
+  // state of the device
+  private volatile int version = 1;
+  private volatile int statusCode = 200;
+  private volatile boolean truncated = false;
+  private volatile boolean partial = false;
+  private final List<String> requests = new CopyOnWriteArrayList<>();
+  private final List<JsonObject> published = new CopyOnWriteArrayList<>();
+  private final List<String> unhealthy = new CopyOnWriteArrayList<>();
+  private ServiceDiscovery discovery;
+  private Record record;
+
+  @BeforeEach
+  void setUp(io.vertx.core.Vertx coreVertx) throws Exception {
+    vertx = Vertx.newInstance(coreVertx);
+    context = vertx.getOrCreateContext();
+    vertx.getDelegate().eventBus().registerDefaultCodec(Record.class, new GenericCodec<>(Record.class));
+    // in-memory backend (not the file or Redis backends of the gateway, found on the classpath)
+    discovery = ServiceDiscovery.create(vertx, new ServiceDiscoveryOptions()
+      .setBackendConfiguration(new JsonObject().put("backend-name", DefaultServiceDiscoveryBackend.class.getName())));
+
+    var device = vertx.createHttpServer().requestHandler(request -> {
+      var ifNoneMatch = request.getHeader("If-None-Match");
+      requests.add(String.valueOf(ifNoneMatch));
+      var etag = "\"v" + version + "\"";
+      if (statusCode != 200) {
+        request.response().setStatusCode(statusCode).end();
+      } else if (etag.equals(ifNoneMatch)) {
+        request.response().setStatusCode(304).end();
+      } else {
+        var body = new JsonObject().put("version", version).encode();
+        if (partial) {
+          request.response()
+            .putHeader("Content-Type", "application/json")
+            .putHeader("Content-Length", String.valueOf(body.length()))
+            .write(body.substring(0, body.length() / 2));
+          request.connection().close();
+          return;
+        }
+        request.response()
+          .putHeader("ETag", etag)
+          .putHeader("Content-Type", "application/json")
+          .end(truncated ? body.substring(0, body.length() / 2) : body);
+      }
+    });
+    var port = device.rxListen(0).map(HttpServer::actualPort).blockingGet();
+    record = discovery.rxPublish(HttpEndpoint.createRecord("device-1", "localhost", port, "/",
+      new JsonObject().put("category", "sensor").put("position", "kitchen"))).blockingGet();
+    vertx.eventBus().<Record>consumer("device.unhealthy", message -> unhealthy.add(message.body().getName()));
+
+    var mqttPublisher = new MqttPublisher(vertx, new MqttManager()) {
+      @Override
+      public void publish(Record record, JsonObject data) {
+        published.add(data);
+      }
+    };
+    devicesHealth = new DevicesHealth<>(discovery, WebClient.create(vertx), mqttPublisher, new LeaseManager(discovery, 15_000, 60_000))
+      .setPollInterval(1)
+      .setMaxPollInterval(4)
+      .setPollTimeout(1_000);
+  }
+
+  @Test
+  void conditionalPolls() throws Exception {
+    cycle();
+    assertEquals(List.of("null"), requests);
+    assertEquals(1, published.size());
+    assertEquals("\"v1\"", onContext(() -> devicesHealth.stateOf("device-1").getEtag()));
+
+    // same reading: 304, nothing published, the ETag is kept
+    cycle();
+    assertEquals("\"v1\"", requests.get(1));
+    assertEquals(1, published.size());
+    assertEquals(1, (int) onContext(() -> devicesHealth.stateOf("device-1").getUnchanged()));
+    assertEquals("\"v1\"", onContext(() -> devicesHealth.stateOf("device-1").getEtag()));
+
+    // new reading: published with its new ETag
+    version = 2;
+    cycle();
+    assertEquals("\"v1\"", requests.get(2));
+    assertEquals(2, published.size());
+    assertEquals(2, published.get(1).getInteger("version"));
+    assertEquals("\"v2\"", onContext(() -> devicesHealth.stateOf("device-1").getEtag()));
+    assertEquals(0, (int) onContext(() -> devicesHealth.stateOf("device-1").getUnchanged()));
+    assertEquals(0, (long) onContext(() -> devicesHealth.getPollStats().toJson().getLong("failures")));
+  }
+
+  @Test
+  void errorStatusIsAFailedPoll() throws Exception {
+    statusCode = 503;
+    cycle();
+    assertEquals(0, published.size());
+    assertEquals(1, (int) onContext(() -> devicesHealth.stateOf("device-1").getFailures()));
+    assertEquals(Status.UNKNOWN, onContext(() -> devicesHealth.stateOf("device-1").getStatus()));
+    assertEquals(1, (long) onContext(() -> devicesHealth.getPollStats().toJson().getLong("failures")));
+    // the device is handed to the recovery
+    await(() -> unhealthy.equals(List.of("device-1")));
+  }
+
+  @Test
+  void malformedReadingIsAFailedPoll() throws Exception {
+    truncated = true;
+    cycle();
+    assertEquals(0, published.size());
+    assertEquals(1, (int) onContext(() -> devicesHealth.stateOf("device-1").getFailures()));
+    assertEquals(Status.UNKNOWN, onContext(() -> devicesHealth.stateOf("device-1").getStatus()));
+    assertEquals(1, (long) onContext(() -> devicesHealth.getPollStats().toJson().getLong("failures")));
+    await(() -> unhealthy.equals(List.of("device-1")));
+  }
+
+  @Test
+  void partialBodyIsAFailedPoll() throws Exception {
+    partial = true;
+    cycle();
+    assertEquals(0, published.size());
+    assertEquals(1, (int) onContext(() -> devicesHealth.stateOf("device-1").getFailures()));
+    assertEquals(Status.UNKNOWN, onContext(() -> devicesHealth.stateOf("device-1").getStatus()));
+    assertEquals(1, (long) onContext(() -> devicesHealth.getPollStats().toJson().getLong("failures")));
+    await(() -> unhealthy.equals(List.of("device-1")));
+  }
+
+  @Test
+  void recoveryNeedsASuccessfulResponse() throws Exception {
+    var retryCoordinator = devicesHealth.getRetryCoordinator().setMaxRetries(3).setRetryDelay(10);
+    context.runOnContext(v -> retryCoordinator.start(vertx));
+
+    // 503 at every attempt: OUT_OF_SERVICE after the last retry, nothing published
+    statusCode = 503;
+    context.runOnContext(v -> retryCoordinator.recover(record));
+    await(() -> statusOf("device-1") == Status.OUT_OF_SERVICE);
+    assertEquals(3, requests.size());
+    assertEquals(0, published.size());
+
+    // a truncated reading: still a failed attempt
+    statusCode = 200;
+    truncated = true;
+    requests.clear();
+    context.runOnContext(v -> retryCoordinator.recover(record));
+    await(() -> requests.size() == 3 && onContext(retryCoordinator::inRecovery) == 0);
+    assertEquals(Status.OUT_OF_SERVICE, statusOf("device-1"));
+    assertEquals(0, published.size());
+
+    // a reading: UP, published, polled again every `pollInterval`
+    truncated = false;
+    context.runOnContext(v -> retryCoordinator.recover(record));
+    await(() -> statusOf("device-1") == Status.UP);
+    await(() -> published.size() == 1);
+    assertEquals(0, (int) onContext(retryCoordinator::inRecovery));
+    assertEquals(0, (int) onContext(() -> devicesHealth.stateOf("device-1").getFailures()));
+  }
+
+  private Status statusOf(String id) {
+    return discovery.rxGetRecord(rec -> rec.getName().equals(id), true).blockingGet().getStatus();
+  }
+
+  // one polling cycle: the device is due (tiny intervals), the cycle ends when its response is handled
+  private void cycle() throws Exception {
+    var expected = requests.size() + 1;
+    Thread.sleep(10);
+    context.runOnContext(v -> devicesHealth.handler.handle(0L));
+    await(() -> requests.size() >= expected && onContext(devicesHealth::inFlight) == 0);
+  }
+
+  private <R> R onContext(Supplier<R> action) {
+    var result = new CompletableFuture<R>();
+    context.runOnContext(v -> result.complete(action.get()));
+    try {
+      return result.get(5, TimeUnit.SECONDS);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    var deadline = System.currentTimeMillis() + 5_000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) fail("Timeout");
+      Thread.sleep(5);
+    }
+  }
+}
@@ -0,0 +1,84 @@
+package http;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.http.HttpServer;
+import io.vertx.reactivex.ext.web.Router;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import io.vertx.reactivex.ext.web.handler.BodyHandler;
+import io.vertx.reactivex.servicediscovery.ServiceDiscovery;
+import io.vertx.servicediscovery.Record;
+import io.vertx.servicediscovery.ServiceDiscoveryOptions;
+import io.vertx.servicediscovery.Status;
+import io.vertx.servicediscovery.impl.DefaultServiceDiscoveryBackend;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/*
+  Registration of the devices (POST /register) against an in-memory service discovery
+  - a device registering again with the same identity is already known (409)
+  - a device registering again with a new identity (position, category, host, port) updates its record
+ */
+@ExtendWith(VertxExtension.class)
+class RegistrationTest {
+  private ServiceDiscovery discovery;
+  private WebClient webClient;
+  private int port;
+
+  @BeforeEach
+  void setUp(io.vertx.core.Vertx coreVertx) {
+    var vertx = Vertx.newInstance(coreVertx);
+    // in-memory backend (not the file or Redis backends of the gateway, found on the classpath)
+    discovery = ServiceDiscovery.create(vertx, new ServiceDiscoveryOptions()
+      .setBackendConfiguration(new JsonObject().put("backend-name", DefaultServiceDiscoveryBackend.class.getName())));
+    var registration = new Registration(discovery);
+    var router = Router.router(vertx);
+    router.post("/register").handler(BodyHandler.create());
+    router.post("/register")
+      .handler(registration::validateRegistration)
+      .handler(registration::registerDevice);
+    port = vertx.createHttpServer().requestHandler(router).rxListen(0).map(HttpServer::actualPort).blockingGet();
+    webClient = WebClient.create(vertx);
+  }
+
+  private int register(String position, int devicePort) {
+    return webClient.post(port, "localhost", "/register")
+      .putHeader("smart-token", "secret")
+      .rxSendJsonObject(new JsonObject()
+        .put("id", "device-1")
+        .put("category", "sensor")
+        .put("position", position)
+        .put("host", "localhost")
+        .put("port", devicePort))
+      .blockingGet()
+      .statusCode();
+  }
+
+  private Record record() {
+    return discovery.rxGetRecord(record -> record.getName().equals("device-1"), true).blockingGet();
+  }
+
+  @Test
+  void sameIdentityIsAlreadyRegistered() {
+    assertEquals(200, register("kitchen", 8081));
+    assertEquals(409, register("kitchen", 8081));
+    assertEquals("kitchen", record().getMetadata().getString("position"));
+  }
+
+  @Test
+  void newIdentityUpdatesTheRecord() {
+    assertEquals(200, register("kitchen", 8081));
+
+    assertEquals(200, register("bedroom", 8082));
+    var record = record();
+    assertEquals("bedroom", record.getMetadata().getString("position"));
+    assertEquals("sensor", record.getMetadata().getString("category"));
+    assertEquals(8082, record.getLocation().getInteger("port"));
+    assertEquals(Status.UP, record.getStatus());
+    assertEquals(1, discovery.rxGetRecords(rec -> true, true).blockingGet().size());
+  }
+}
@@ -0,0 +1,117 @@
+package mqtt;
+
+import discovery.RecordIndex;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.reactivex.core.Context;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.core.http.HttpServer;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import io.vertx.reactivex.servicediscovery.ServiceDiscovery;
+import io.vertx.servicediscovery.ServiceDiscoveryOptions;
+import io.vertx.servicediscovery.impl.DefaultServiceDiscoveryBackend;
+import io.vertx.servicediscovery.types.HttpEndpoint;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/*
+  Commands sent to a device served by the test (POST /command), the acks given to the MQTT manager are recorded
+  - a command with a non-numeric `time` is dropped before it reaches the device
+  - a malformed response of the device (bad `rejected` entries) rejects the commands and frees the channel
+    of the device: the next command is sent
+ */
+@ExtendWith(VertxExtension.class)
+class CommandRouterTest {
+  private Context context;
+  private CommandRouter commandRouter;
+  private final List<JsonObject> requests = new CopyOnWriteArrayList<>();
+  private final List<JsonObject> acks = new CopyOnWriteArrayList<>();
+
+  @BeforeEach
+  void setUp(io.vertx.core.Vertx coreVertx) {
+    var vertx = Vertx.newInstance(coreVertx);
+    context = vertx.getOrCreateContext();
+    // in-memory backend (not the file or Redis backends of the gateway, found on the classpath)
+    var discovery = ServiceDiscovery.create(vertx, new ServiceDiscoveryOptions()
+      .setBackendConfiguration(new JsonObject().put("backend-name", DefaultServiceDiscoveryBackend.class.getName())));
+
+    var device = vertx.createHttpServer().requestHandler(request -> request.body(body -> {
+      requests.add(body.result().toJsonObject());
+      request.response()
+        .putHeader("Content-Type", "application/json")
+        .end(new JsonObject()
+          .put("applied", new JsonArray())
+          .put("rejected", new JsonArray().add("setPosition").add(new JsonObject().put("command", 42)))
+          .encode());
+    }));
+    var port = device.rxListen(0).map(HttpServer::actualPort).blockingGet();
+    var recordIndex = new RecordIndex();
+    recordIndex.apply(HttpEndpoint.createRecord("device-1", "localhost", port, "/"));
+
+    var mqttManager = new MqttManager() {
+      @Override
+      public boolean publish(String topic, Buffer payload, boolean retain) {
+        acks.add(payload.toJsonObject());
+        return true;
+      }
+    };
+    commandRouter = new CommandRouter(discovery, WebClient.create(vertx), recordIndex, mqttManager, "commands-ack", 1_000);
+  }
+
+  @Test
+  void malformedCommandsAndResponses() throws Exception {
+    onContext(() -> {
+      commandRouter.accept("device-1", new JsonObject().put("command", "setSampleRate").put("value", 500).put("time", "now"));
+      return null;
+    });
+    assertEquals(0, (long) onContext(() -> commandRouter.stats().getLong("received")));
+
+    onContext(() -> {
+      commandRouter.accept("device-1", new JsonObject().put("command", "setPosition").put("value", "kitchen")
+        .put("time", System.currentTimeMillis()));
+      return null;
+    });
+    await(() -> acks.size() == 1);
+    assertEquals("rejected", acks.get(0).getString("status"));
+    await(() -> onContext(() -> commandRouter.stats().getLong("inFlight")) == 0);
+
+    onContext(() -> {
+      commandRouter.accept("device-1", new JsonObject().put("command", "setSampleRate").put("value", 500));
+      return null;
+    });
+    await(() -> acks.size() == 2);
+    assertEquals(2, requests.size());
+    assertEquals("setSampleRate", requests.get(1).getJsonArray("commands").getJsonObject(0).getString("command"));
+  }
+
+  private <R> R onContext(Supplier<R> action) {
+    var result = new CompletableFuture<R>();
+    context.runOnContext(v -> result.complete(action.get()));
+    try {
+      return result.get(5, TimeUnit.SECONDS);
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    var deadline = System.currentTimeMillis() + 5_000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) fail("Timeout");
+      Thread.sleep(5);
+    }
+  }
+}
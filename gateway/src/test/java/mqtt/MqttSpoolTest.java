@@ -0,0 +1,104 @@
+package mqtt;
+
+import io.reactivex.Completable;
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.mqtt.MqttServerOptions;
+import io.vertx.reactivex.core.Context;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.mqtt.MqttServer;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+  Replay of the MQTT spool against a broker embedded in the test (MqttServer on MQTT_PORT, see the surefire
+  configuration), the broker acknowledges every message a few ms after receiving it
+  - the spool holds more messages than the in-flight window of the connection (MQTT_MAX_INFLIGHT, 10)
+  - every message is received once, in order, the window is never exceeded, the spool is deleted at the end
+  - the readings are encoded again by the publisher (not the payloads of the previous run), the messages published
+    as is are replayed as is, the dictionary of the previous run is not spooled
+ */
+@ExtendWith(VertxExtension.class)
+class MqttSpoolTest {
+  private static final int MESSAGES = 50;
+
+  private Vertx vertx;
+  private Context context;
+  private final List<String> received = new CopyOnWriteArrayList<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  @BeforeEach
+  void setUp(io.vertx.core.Vertx coreVertx) {
+    vertx = Vertx.newInstance(coreVertx);
+    context = vertx.getOrCreateContext();
+    MqttServer.create(vertx, new MqttServerOptions().setPort(18830))
+      .endpointHandler(endpoint -> {
+        endpoint.publishAutoAck(false);
+        endpoint.publishHandler(message -> {
+          received.add(message.topicName() + " " + message.payload().toString());
+          maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+          vertx.setTimer(5, id -> {
+            inFlight.decrementAndGet();
+            endpoint.publishAcknowledge(message.messageId());
+          });
+        });
+        endpoint.accept(false);
+      })
+      .rxListen()
+      .blockingGet();
+  }
+
+  @Test
+  void replayUnderTheInflightLimit(@TempDir Path directory) throws Exception {
+    var path = directory.resolve("mqtt_spool.jsonl");
+    var spool = new MqttSpool(path);
+    var mqttManager = new MqttManager();
+    var mqttPublisher = new MqttPublisher(vertx, mqttManager);
+    var messages = new ArrayList<MqttSpool.Message>();
+    messages.add(new MqttSpool.Message("schema/dictionary", Buffer.buffer("[\"stale\"]"), true, true, null, null));
+    // payloads of the previous run, different from the encoding of their data
+    IntStream.range(0, MESSAGES).forEach(i -> messages.add(
+      new MqttSpool.Message("spool/test", Buffer.buffer("stale " + i), false, true, new JsonObject().put("n", i), null)));
+    messages.add(new MqttSpool.Message("commands-ack/device-1", Buffer.buffer("ack"), false, null));
+
+    onContext(spool.rxSave(vertx, messages)
+      .andThen(mqttManager.startAndConnectMqttClient(vertx).ignoreElement())
+      .andThen(Completable.defer(() -> spool.rxReplay(vertx, mqttManager, mqttPublisher))));
+
+    var expected = IntStream.range(0, MESSAGES)
+      .mapToObj(i -> "spool/test " + new JsonObject().put("n", i).encode())
+      .collect(Collectors.toList());
+    expected.add("commands-ack/device-1 ack");
+    assertEquals(expected, received);
+    assertTrue(maxInFlight.get() <= 10, "in flight: " + maxInFlight.get());
+    assertFalse(Files.exists(path));
+    onContext(Completable.fromAction(() -> assertEquals(0, mqttManager.unacknowledged())));
+    onContext(mqttManager.rxDisconnect());
+  }
+
+  // runs on the context of the test (the manager is used from the event loop only)
+  private void onContext(Completable completable) throws Exception {
+    var done = new CompletableFuture<Void>();
+    context.runOnContext(v -> completable.subscribe(() -> done.complete(null), done::completeExceptionally));
+    done.get(10, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,131 @@
+package shared;
+
+import io.vertx.reactivex.core.Vertx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+
+/*
+  Configuration file watched at runtime (CONFIG_FILE, no file by default)
+  - properties file with the names of the environment variables, e.g. `POLL_INTERVAL=2000` (gateway) or `DEVICE_LOCATION=kitchen` (device):
+    a value of the file overrides the environment variable
+  - the file is checked every CONFIG_SCAN_INTERVAL ms (1000 by default, modification time and size),
+    when it changes, the listeners of the changed keys are called (on the event loop)
+  - a file that cannot be read keeps the previous values, a listener that fails (invalid value)
+    is logged and does not stop the other ones
+  - a key removed from the file goes back to the environment variable
+ */
+public class LiveConfig {
+  private static class Listener {
+    final Set<String> keys;
+    final Runnable action;
+
+    Listener(Set<String> keys, Runnable action) {
+      this.keys = keys;
+      this.action = action;
+    }
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(LiveConfig.class);
+  private final String path;
+  private final List<Listener> listeners = new ArrayList<>();
+  private Map<String, String> values = Map.of();
+  private long lastModified = -1;
+  private long size = -1;
+
+  private LiveConfig(String path) {
+    this.path = path;
+  }
+
+  // the file is read now (the values are available during the start), then watched
+  public static LiveConfig create(Vertx vertx) {
+    var path = Optional.ofNullable(System.getenv("CONFIG_FILE")).orElse("");
+    var scanInterval = Long.parseLong(Optional.ofNullable(System.getenv("CONFIG_SCAN_INTERVAL")).orElse("1000"));
+    var config = new LiveConfig(path);
+    if (path.isEmpty()) return config;
+
+    if (vertx.fileSystem().existsBlocking(path)) {
+      var props = vertx.fileSystem().propsBlocking(path);
+      config.lastModified = props.lastModifiedTime();
+      config.size = props.size();
+      config.values = parse(vertx.fileSystem().readFileBlocking(path).toString());
+    }
+    vertx.setPeriodic(scanInterval, id -> config.scan(vertx));
+    config.logger.info("Configuration: {} ({} values), checked every {} ms", path, config.values.size(), scanInterval);
+    return config;
+  }
+
+  public String get(String key, String defaultValue) {
+    var value = values.get(key);
+    if (value != null) return value;
+    return Optional.ofNullable(System.getenv(key)).orElse(defaultValue);
+  }
+
+  // the action is called when one of the keys changes
+  public LiveConfig watch(Runnable action, String... keys) {
+    listeners.add(new Listener(Set.of(keys), action));
+    return this;
+  }
+
+  private void scan(Vertx vertx) {
+    vertx.fileSystem().rxProps(path)
+      .filter(props -> props.lastModifiedTime() != lastModified || props.size() != size)
+      .flatMapSingleElement(props -> {
+        lastModified = props.lastModifiedTime();
+        size = props.size();
+        return vertx.fileSystem().rxReadFile(path);
+      })
+      .map(buffer -> parse(buffer.toString()))
+      .subscribe(
+        this::apply,
+        error -> {
+          // the file is being replaced, removed or invalid: the previous values are kept (read again at the next scan)
+          if (lastModified != 0) logger.warn("Configuration {} not read: {}", path, error.getMessage());
+          lastModified = 0;
+        });
+  }
+
+  void apply(Map<String, String> newValues) {
+    var changed = new HashSet<String>();
+    newValues.forEach((key, value) -> {
+      if (!value.equals(values.get(key))) changed.add(key);
+    });
+    values.keySet().forEach(key -> {
+      if (!newValues.containsKey(key)) changed.add(key);
+    });
+    values = newValues;
+    if (changed.isEmpty()) return;
+
+    logger.info("Configuration changed: {}", changed);
+    for (var listener : listeners) {
+      if (listener.keys.stream().noneMatch(changed::contains)) continue;
+      try {
+        listener.action.run();
+      } catch (RuntimeException e) {
+        logger.error("Configuration {} not applied: {}", listener.keys, e.getMessage());
+      }
+    }
+  }
+
+  private static Map<String, String> parse(String content) {
+    var properties = new Properties();
+    try {
+      properties.load(new StringReader(content));
+    } catch (IOException | IllegalArgumentException e) {
+      throw new IllegalArgumentException("Invalid configuration: " + e.getMessage());
+    }
+    var result = new HashMap<String, String>();
+    properties.stringPropertyNames().forEach(key -> result.put(key, properties.getProperty(key).trim()));
+    return result;
+  }
+}
@@ -0,0 +1,64 @@
+package shared;
+
+import io.reactivex.Completable;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.core.file.AsyncFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+
+/*
+  Spans written as JSON lines to a file (traces of the gateway and of the devices)
+  - the lines are buffered and appended to the file every second,
+    at most 1 MB pending: then the spans are dropped (and counted in the log)
+  - `rxClose` writes the pending lines and closes the file
+  Not thread safe: use it from the event loop only
+ */
+public class SpanWriter {
+  private static final int MAX_PENDING = 1 << 20;
+
+  private final Logger logger = LoggerFactory.getLogger(SpanWriter.class);
+  private final Vertx vertx;
+  private final AsyncFile file;
+  private final long timer;
+  private Buffer pending = Buffer.buffer();
+  private long dropped = 0;
+
+  public SpanWriter(Vertx vertx, Path path) {
+    this.vertx = vertx;
+    if (path.getParent() != null) {
+      vertx.fileSystem().mkdirsBlocking(path.getParent().toString());
+    }
+    this.file = vertx.fileSystem().openBlocking(path.toString(), new OpenOptions().setAppend(true).setCreate(true));
+    this.timer = vertx.setPeriodic(1_000, id -> flush());
+  }
+
+  public void write(JsonObject span) {
+    if (pending.length() > MAX_PENDING) {
+      dropped++;
+      return;
+    }
+    pending.appendString(span.encode()).appendString("\n");
+  }
+
+  private void flush() {
+    if (pending.length() == 0) return;
+    var buffer = pending;
+    pending = Buffer.buffer();
+    file.write(buffer);
+    if (dropped > 0) {
+      logger.warn("Tracing: {} spans dropped", dropped);
+      dropped = 0;
+    }
+  }
+
+  public Completable rxClose() {
+    vertx.cancelTimer(timer);
+    flush();
+    return file.rxClose();
+  }
+}
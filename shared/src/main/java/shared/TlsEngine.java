@@ -0,0 +1,37 @@
+package shared;
+
+import io.vertx.core.net.JdkSSLEngineOptions;
+import io.vertx.core.net.OpenSSLEngineOptions;
+import io.vertx.core.net.SSLEngineOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+  SSL engine of the HTTPS server of the gateway and of the TLS clients of the devices
+  - "jdk" (default): SSL engine of the JDK, the sessions are cached by the SSL context (resumption)
+  - "openssl": OpenSSL (BoringSSL) engine of netty-tcnative, cheaper handshakes and encryption,
+    with its own session cache (`sessionCache`)
+    netty-tcnative is not a default dependency: build with the `openssl` Maven profile,
+    without it the JDK engine is used (with a warning)
+ */
+public class TlsEngine {
+  private static final Logger logger = LoggerFactory.getLogger(TlsEngine.class);
+
+  public static SSLEngineOptions create(String engine, boolean sessionCache) {
+    if (engine.equals("openssl")) {
+      if (OpenSSLEngineOptions.isAvailable()) {
+        logger.info("TLS engine: OpenSSL (session cache: {})", sessionCache);
+        return new OpenSSLEngineOptions().setSessionCacheEnabled(sessionCache);
+      }
+      logger.warn("OpenSSL is not available (build with the `openssl` profile): TLS engine: JDK");
+    } else if (!engine.equals("jdk")) {
+      throw new IllegalArgumentException("Unknown TLS engine: " + engine + " (jdk or openssl)");
+    }
+    return new JdkSSLEngineOptions();
+  }
+
+  // name of the engine really used
+  public static String name(SSLEngineOptions options) {
+    return options instanceof OpenSSLEngineOptions ? "openssl" : "jdk";
+  }
+}
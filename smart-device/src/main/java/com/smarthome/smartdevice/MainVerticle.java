@@ -1,26 +1,57 @@
 package com.smarthome.smartdevice;
 
+import communications.CommandHandler;
+import communications.FaultInjector;
+import communications.RegistrationManager;
+import communications.Tracing;
+import communications.UdpSender;
 import devices.HttpDevice;
+import devices.UdpDevice;
 import io.reactivex.Completable;
-import io.vertx.core.json.JsonObject;
 import io.vertx.reactivex.core.AbstractVerticle;
+import io.vertx.reactivex.ext.web.handler.BodyHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sensors.NoiseModel;
+import sensors.RecordedDataset;
+import sensors.ReplaySensor;
+import sensors.Sensor;
+import sensors.SimulatedSensor;
+import sensors.TimeBase;
+import sensors.Waveform;
 import sensors.eCO2Sensor;
 import sensors.HumiditySensor;
 import sensors.TemperatureSensor;
+import shared.LiveConfig;
 
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 public class MainVerticle extends AbstractVerticle {
 
+  private static final String DEFAULT_CATEGORY = "Temperature Humidity Environment Sensor";
+  private static final String DEFAULT_SENSORS = "temperature,humidity,eCO2";
   private final Logger logger = LoggerFactory.getLogger(MainVerticle.class);
 
+  RegistrationManager registrationManager;
+  UdpSender udpSender;
+  Tracing deviceTracing;
+
   @Override
   public Completable rxStop() {
     logger.info("Device stopped");
-    return Completable.complete();
+    if (registrationManager != null) {
+      registrationManager.stop();
+    }
+    if (udpSender != null) {
+      udpSender.stop();
+    }
+    // the pending spans are written before the device stops
+    return deviceTracing == null ? Completable.complete() : deviceTracing.rxClose();
   }
 
   @Override
@@ -29,11 +60,28 @@ public class MainVerticle extends AbstractVerticle {
     /*
       Define parameters of the application
       ------------------------------------
-      deviceType, httpPort, deviceLocation, deviceId, gatewayHttPort, domainNameOrIP, ssl
+      deviceType, httpPort, deviceLocation, deviceCategory, deviceId, gatewayHttPort, domainNameOrIP, ssl
+      - Live configuration (CONFIG_FILE, see LiveConfig and `watchConfig`): the values of the file override
+        the environment, the identity, the sensors and the timers of the device follow the changes of the file
+      - Registration:
+        retryBaseDelay, retryMaxDelay, pollTimeout, heartbeatInterval
+      - Simulation:
+        seed, tickMillis, originMillis, periodTicks, waveform, noise, noiseLevel
+      - Sensors:
+        sensors (names of the enabled sensors), sensorSource (simulation or replay), replayFile, replaySpeed
+      - UDP telemetry (DEVICE_TYPE=udp):
+        gatewayUdpPort, udpInterval
+      - Fault injection (HTTP device):
+        faultLatency, faultErrorRate, faultResetRate, faultPartialRate, faultOutage, faultOutageMode, faultSeed
+      - Tracing (trace context sent by the gateway):
+        tracing, traceFile
     */
 
+    var config = LiveConfig.create(vertx);
+
     var deviceType = Optional.ofNullable(System.getenv("DEVICE_TYPE")).orElse("http");
-    var deviceLocation = Optional.ofNullable(System.getenv("DEVICE_LOCATION")).orElse("somewhere");
+    var deviceLocation = config.get("DEVICE_LOCATION", "somewhere");
+    var deviceCategory = config.get("DEVICE_CATEGORY", DEFAULT_CATEGORY);
     var deviceId = Optional.ofNullable(System.getenv("DEVICE_ID")).orElse("something");
 
     if(deviceType.equals("http")) { // HTTP Device
@@ -50,54 +98,88 @@ public class MainVerticle extends AbstractVerticle {
         Initialize the device (new HttpDevice(deviceId))
      */
       var httpDevice = new HttpDevice(deviceId)
-        .setCategory("Temperature Humidity Environment Sensor")
+        .setCategory(deviceCategory)
         .setPosition(deviceLocation)
-        .setPort(httpPort)
-        .setSensors(List.of(
-          new TemperatureSensor(),
-          new HumiditySensor(),
-          new eCO2Sensor()
-        ));
+        .setPort(httpPort);
+
+      configureSimulation(httpDevice, config);
+      httpDevice.setSensors(createSensors(httpDevice, httpDevice.getTimeBase(), config));
 
       /*
-        Create the request for the gateway
-        Send the request to the gateway
-        If the registration fails, call the `setConnectedToGateway(false)` method of the device
-        If the registration succeeds, call the `setConnectedToGateway(true)` method of the device
+        Register the device to the gateway with the registration manager:
+        - if the registration fails, the device is not connected (`setConnectedToGateway(false)`)
+          and the manager tries again with an exponential backoff (with jitter)
+        - if the registration succeeds, the device is connected (`setConnectedToGateway(true)`)
+        - if the gateway stops polling the device, the manager registers the device again
      */
-      var requestToGateway = httpDevice.createRegisterToGatewayRequest(vertx, domainNameOrIP, gatewayHttPort, ssl, authenticationToken);
-
-      var registration = new JsonObject()
-        .put("category",httpDevice.getCategory())
-        .put("id", httpDevice.getId())
-        .put("position", httpDevice.getPosition())
-        .put("host", httpDevice.getHostName())
-        .put("port", httpDevice.getPort());
-
-      logger.info("try connecting to gateway...");
-      requestToGateway.rxSendJsonObject(registration)
-              .subscribe(response -> {
-                if (response.statusCode() != 200) {
-                  logger.warn("Registration failed: " + response.statusCode());
-                  httpDevice.setConnectedToGateway(false);
-                  // try again
-                } else {
-                  httpDevice.setConnectedToGateway(true);
-                  logger.info("Registration succeeded: " + response.statusCode());
-                  logger.info(response.bodyAsJsonObject().encodePrettily());
-                }
-              }, error -> {
-                logger.error("Connection to the Gateway failed: " + error.getMessage());
-                httpDevice.setConnectedToGateway(false);
-              });
+      var retryBaseDelay = Long.parseLong(Optional.ofNullable(System.getenv("REGISTRATION_RETRY_BASE")).orElse("1000"));
+      var retryMaxDelay = Long.parseLong(Optional.ofNullable(System.getenv("REGISTRATION_RETRY_MAX")).orElse("60000"));
+      var pollTimeout = Long.parseLong(Optional.ofNullable(System.getenv("GATEWAY_POLL_TIMEOUT")).orElse("30000"));
+      var heartbeatInterval = Long.parseLong(config.get("HEARTBEAT_INTERVAL", "5000"));
+
+      registrationManager = new RegistrationManager(vertx, httpDevice, domainNameOrIP, gatewayHttPort, ssl, authenticationToken)
+        .setBaseDelay(retryBaseDelay)
+        .setMaxDelay(retryMaxDelay)
+        .setPollTimeout(pollTimeout)
+        .setHeartbeatInterval(heartbeatInterval);
+
+      watchConfig(config, httpDevice, registrationManager::refresh);
+      config.watch(() -> registrationManager.setHeartbeatInterval(Long.parseLong(config.get("HEARTBEAT_INTERVAL", "5000"))),
+        "HEARTBEAT_INTERVAL");
+
       /*
         Define a router
-        Add a route that returns the value of the Device
+        Add a route that returns the value of the Device (with an ETag)
       */
       var router = httpDevice.createRouter(vertx);
 
-      router.get("/").handler(routingContext -> {
-        routingContext.json(httpDevice.jsonValue());
+      /*
+        Fault injection (slow or flaky device), see FaultInjector
+        GET /faults: current faults, PUT /faults: change the faults
+      */
+      var faultInjector = new FaultInjector(vertx, httpDevice::bufferValue);
+
+      /*
+        Tracing: span of the device for every poll traced by the gateway (`traceparent` header), see Tracing
+      */
+      var tracing = Boolean.parseBoolean(Optional.ofNullable(System.getenv("TRACING")).orElse("false"));
+      var traceFile = Optional.ofNullable(System.getenv("TRACE_FILE")).orElse("./data/device_traces.jsonl");
+      deviceTracing = new Tracing(vertx, deviceId, tracing ? Path.of(traceFile) : null);
+
+      router.get("/faults").handler(routingContext -> routingContext.json(faultInjector.toJson()));
+      router.put("/faults").handler(BodyHandler.create());
+      router.put("/faults").handler(routingContext -> {
+        try {
+          faultInjector.configure(routingContext.getBodyAsJson());
+          routingContext.json(faultInjector.toJson());
+        } catch (RuntimeException e) {
+          routingContext.response().setStatusCode(400).end(e.getMessage());
+        }
+      });
+
+      /*
+        Commands sent by the gateway (e.g. setPosition, setSampleRate), see CommandHandler
+      */
+      var commandHandler = new CommandHandler(httpDevice, tickMillis -> changeTick(httpDevice, config, tickMillis));
+      router.post("/command").handler(BodyHandler.create());
+      router.post("/command").handler(commandHandler::handle);
+
+      router.get("/").handler(deviceTracing::handle).handler(faultInjector::handle).handler(routingContext -> {
+        registrationManager.touch();
+        var value = httpDevice.bufferValue();
+        var etag = httpDevice.etag();
+        // conditional GET: the reading did not change since the last poll of the gateway
+        if (etag.equals(routingContext.request().getHeader("If-None-Match"))) {
+          routingContext.response()
+            .setStatusCode(304)
+            .putHeader("ETag", etag)
+            .end();
+        } else {
+          routingContext.response()
+            .putHeader("content-type", "application/json")
+            .putHeader("ETag", etag)
+            .end(value);
+        }
       });
 
       /*
@@ -106,9 +188,39 @@ public class MainVerticle extends AbstractVerticle {
       return httpDevice
               .createHttpServer(vertx, router)
               .rxListen(httpPort)
-              .doOnSuccess(ok -> logger.info("Device: HTTP server started on port {}", httpPort))
+              .doOnSuccess(ok -> {
+                logger.info("Device: HTTP server started on port {}", httpPort);
+                registrationManager.start();
+              })
               .doOnError(err -> logger.error("Woops!, {}", err.getMessage()))
               .ignoreElement();
+    } else if(deviceType.equals("udp")) { // UDP Device (constrained device: no registration, no polling)
+
+      var gatewayUdpPort = Integer.parseInt(Optional.ofNullable(System.getenv("GATEWAY_UDP_PORT")).orElse("9091"));
+      var domainNameOrIP = Optional.ofNullable(System.getenv("GATEWAY_DOMAIN")).orElse("0.0.0.0");
+      var authenticationToken = Optional.ofNullable(System.getenv("GATEWAY_TOKEN")).orElse("secret");
+      var udpInterval = Long.parseLong(config.get("UDP_INTERVAL", "5000"));
+
+      var udpDevice = new UdpDevice(deviceId);
+      udpDevice
+        .setCategory(deviceCategory)
+        .setPosition(deviceLocation);
+
+      configureSimulation(udpDevice, config);
+      udpDevice.setSensors(createSensors(udpDevice, udpDevice.getTimeBase(), config));
+
+      /*
+        Send the readings to the gateway: one signed datagram per reading (fire-and-forget)
+      */
+      udpSender = new UdpSender(vertx, udpDevice, domainNameOrIP, gatewayUdpPort, authenticationToken)
+        .setInterval(udpInterval);
+      udpSender.start();
+
+      // no registration: the next frames carry the new identity
+      watchConfig(config, udpDevice, () -> {});
+      config.watch(() -> udpSender.setInterval(Long.parseLong(config.get("UDP_INTERVAL", "5000"))), "UDP_INTERVAL");
+      return Completable.complete();
+
     } else { // MQTT Device
       // To Be done in the next project
       return Completable.error(NoSuchMethodError::new);
@@ -116,4 +228,109 @@ public class MainVerticle extends AbstractVerticle {
 
   }
 
+  /*
+    Changes of the live configuration
+    - DEVICE_LOCATION, DEVICE_CATEGORY: new identity, `identityChanged` (e.g. register again: the gateway updates the record)
+    - SIMULATION_TICK: new time base (same origin), the sensors are created again
+    - SENSORS, SENSOR_SOURCE, SIMULATION_*, REPLAY_*: new sensors (same seed: the simulated values do not jump)
+    An invalid value is logged and the device keeps its current configuration
+   */
+  private void watchConfig(LiveConfig config, HttpDevice device, Runnable identityChanged) {
+    config.watch(() -> {
+      device
+        .setPosition(config.get("DEVICE_LOCATION", "somewhere"))
+        .setCategory(config.get("DEVICE_CATEGORY", DEFAULT_CATEGORY));
+      identityChanged.run();
+      logger.info("Device: {} in {}", device.getCategory(), device.getPosition());
+    }, "DEVICE_LOCATION", "DEVICE_CATEGORY");
+
+    config.watch(() -> changeTick(device, config, Long.parseLong(config.get("SIMULATION_TICK", "5000"))), "SIMULATION_TICK");
+
+    config.watch(() -> device.replaceSensors(createSensors(device, device.getTimeBase(), config)),
+      "SENSORS", "SENSOR_SOURCE", "REPLAY_FILE", "REPLAY_SPEED",
+      "SIMULATION_PERIOD", "SIMULATION_WAVEFORM", "SIMULATION_NOISE", "SIMULATION_NOISE_LEVEL");
+  }
+
+  // new time base (same origin): the sensors are created again (they keep the time base they were created with)
+  private void changeTick(HttpDevice device, LiveConfig config, long tickMillis) {
+    var timeBase = new TimeBase(device.getTimeBase().getOriginMillis(), tickMillis);
+    device.setTimeBase(timeBase).replaceSensors(createSensors(device, timeBase, config));
+  }
+
+  /*
+    Simulation parameters
+    - DEVICE_SEED: seed of the device, the same seed gives the same values (default: hash of the id)
+    - SIMULATION_TICK: duration of a tick in ms, SIMULATION_ORIGIN: start of the time base (epoch ms)
+   */
+  private void configureSimulation(HttpDevice httpDevice, LiveConfig config) {
+    var tickMillis = Long.parseLong(config.get("SIMULATION_TICK", "5000"));
+    var originMillis = Long.parseLong(Optional.ofNullable(System.getenv("SIMULATION_ORIGIN")).orElse("0"));
+    httpDevice.setTimeBase(new TimeBase(originMillis, tickMillis));
+
+    Optional.ofNullable(System.getenv("DEVICE_SEED"))
+      .ifPresent(seed -> httpDevice.setSeed(Long.parseLong(seed)));
+  }
+
+  /*
+    Create the sensors of the device
+    - SENSORS: names of the enabled sensors (temperature,humidity,eCO2 by default)
+    - SENSOR_SOURCE=simulation (default): simulated values (the defaults give the historical cosine curves)
+      - SIMULATION_PERIOD: number of ticks of a cycle
+      - SIMULATION_WAVEFORM: COSINE, SINE, SQUARE, TRIANGLE, SAWTOOTH, CONSTANT
+      - SIMULATION_NOISE: NONE, UNIFORM, GAUSSIAN, SIMULATION_NOISE_LEVEL: fraction of the amplitude
+    - SENSOR_SOURCE=replay: values replayed from the recorded dataset REPLAY_FILE (CSV or binary)
+      - REPLAY_SPEED: 1 = real time, N = N times faster
+      - the sensors created again (live configuration, setSampleRate) go on with the replay of the current ones
+   */
+  private List<Sensor> createSensors(HttpDevice device, TimeBase timeBase, LiveConfig config) {
+    var sensorSource = config.get("SENSOR_SOURCE", "simulation");
+    var enabled = Set.copyOf(Arrays.asList(config.get("SENSORS", DEFAULT_SENSORS).trim().split("\\s*,\\s*")));
+
+    if (sensorSource.equals("replay")) {
+      var replayFile = config.get("REPLAY_FILE", "dataset.csv");
+      var replaySpeed = Double.parseDouble(config.get("REPLAY_SPEED", "1"));
+      var dataset = RecordedDataset.open(Path.of(replayFile));
+      var now = System.currentTimeMillis();
+      var startMillis = Optional.ofNullable(device.getSensors()).stream()
+        .flatMap(List::stream)
+        .filter(sensor -> sensor instanceof ReplaySensor)
+        .map(sensor -> ((ReplaySensor) sensor).continuedStart(now, replaySpeed))
+        .findFirst()
+        .orElse(now);
+      logger.info("Replay {} at {}x", dataset.getPath(), replaySpeed);
+
+      // every replay sensor holds its own reference to the dataset (released when the sensors are replaced)
+      try {
+        var sensors = List.<Sensor>of(
+          new ReplaySensor("temperature", "Celsius", RecordedDataset.TEMPERATURE, dataset, timeBase, startMillis, replaySpeed),
+          new ReplaySensor("humidity", "%", RecordedDataset.HUMIDITY, dataset, timeBase, startMillis, replaySpeed),
+          new ReplaySensor("eCO2", "ppm", RecordedDataset.ECO2, dataset, timeBase, startMillis, replaySpeed)
+        );
+        sensors.stream().filter(sensor -> !enabled.contains(sensor.getName())).forEach(Sensor::close);
+        return sensors.stream().filter(sensor -> enabled.contains(sensor.getName())).collect(Collectors.toList());
+      } finally {
+        dataset.release();
+      }
+    }
+
+    var periodTicks = Optional.ofNullable(config.get("SIMULATION_PERIOD", null)).map(Long::parseLong);
+    var waveform = Optional.ofNullable(config.get("SIMULATION_WAVEFORM", null)).map(value -> Waveform.valueOf(value.toUpperCase()));
+    var noise = Optional.ofNullable(config.get("SIMULATION_NOISE", null)).map(value -> NoiseModel.valueOf(value.toUpperCase()));
+    var noiseLevel = Double.parseDouble(config.get("SIMULATION_NOISE_LEVEL", "0.05"));
+
+    List<SimulatedSensor> sensors = List.of(
+      new TemperatureSensor(),
+      new HumiditySensor(),
+      new eCO2Sensor()
+    );
+    sensors.forEach(sensor -> {
+      var profile = sensor.getProfile();
+      if (periodTicks.isPresent()) profile = profile.withPeriodTicks(periodTicks.get());
+      if (waveform.isPresent()) profile = profile.withWaveform(waveform.get());
+      if (noise.isPresent()) profile = profile.withNoise(noise.get(), noiseLevel);
+      sensor.setProfile(profile);
+    });
+    return sensors.stream().filter(sensor -> enabled.contains(sensor.getName())).collect(Collectors.toList());
+  }
+
 }
@@ -0,0 +1,74 @@
+package communications;
+
+import devices.HttpDevice;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.LongConsumer;
+
+/*
+  Commands sent by the gateway: POST /command {"commands": [{"command": "setPosition", "value": "kitchen"}, ...]}
+  - setPosition: new position of the device (string)
+  - setSampleRate: duration of a tick of the time base in ms (a new value every tick),
+    applied by `changeTick`: new time base and new sensors (like a change of SIMULATION_TICK)
+  The commands are applied in order, the response gives the applied and the rejected commands:
+  {"applied": ["setPosition"], "rejected": [{"command": "reboot", "reason": "unknown command"}]}
+ */
+public class CommandHandler {
+  private final Logger logger = LoggerFactory.getLogger(CommandHandler.class);
+  private final HttpDevice device;
+  private final LongConsumer changeTick;
+
+  public CommandHandler(HttpDevice device, LongConsumer changeTick) {
+    this.device = device;
+    this.changeTick = changeTick;
+  }
+
+  public void handle(RoutingContext routingContext) {
+    JsonArray commands;
+    try {
+      commands = routingContext.getBodyAsJson().getJsonArray("commands");
+    } catch (RuntimeException e) {
+      commands = null;
+    }
+    if (commands == null) {
+      routingContext.fail(400);
+      return;
+    }
+
+    var applied = new JsonArray();
+    var rejected = new JsonArray();
+    for (int i = 0; i < commands.size(); i++) {
+      var command = commands.getJsonObject(i);
+      var name = command.getString("command", "");
+      try {
+        apply(name, command);
+        applied.add(name);
+      } catch (RuntimeException e) {
+        rejected.add(new JsonObject().put("command", name).put("reason", e.getMessage()));
+      }
+    }
+    logger.info("Commands applied: {}, rejected: {}", applied.encode(), rejected.encode());
+    routingContext.json(new JsonObject().put("applied", applied).put("rejected", rejected));
+  }
+
+  private void apply(String name, JsonObject command) {
+    switch (name) {
+      case "setPosition":
+        var position = command.getString("value");
+        if (position == null || position.isEmpty()) throw new IllegalArgumentException("missing position");
+        device.setPosition(position);
+        break;
+      case "setSampleRate":
+        var tickMillis = command.getLong("value");
+        if (tickMillis == null) throw new IllegalArgumentException("missing sample rate");
+        changeTick.accept(tickMillis);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown command");
+    }
+  }
+}
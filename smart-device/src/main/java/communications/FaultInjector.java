@@ -0,0 +1,267 @@
+package communications;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.function.Supplier;
+
+/*
+  Fault and latency injection on the reading route of the device (to test the gateway against slow or flaky devices)
+  - latency: delay before the response, drawn from a distribution
+    "none", "fixed:50", "uniform:10-200", "normal:100,30", "exponential:50" (mean), "pareto:20,1.5" (scale, shape: heavy tail)
+  - errorRate: fraction of the requests answered with a 503
+  - resetRate: fraction of the requests where the connection is closed without response
+  - partialRate: fraction of the requests where only the first half of the body is sent, then the connection is closed
+  - outage: "period:duration", e.g. "60000:10000": the device is down 10 s every minute
+    outageMode: "hang" (no response until the end of the outage, then the connection is closed),
+    "reset" (connection closed) or "error" (503)
+  - negative durations and rates are rejected
+  The faults are drawn with a seeded random generator (FAULT_SEED): the same seed gives the same faults.
+
+  Environment: FAULT_LATENCY, FAULT_ERROR_RATE, FAULT_RESET_RATE, FAULT_PARTIAL_RATE, FAULT_OUTAGE, FAULT_OUTAGE_MODE, FAULT_SEED
+  Control route: GET /faults (current configuration), PUT /faults (JSON with the same keys as `toJson`, partial update),
+  an immediate outage can be started with {"outageNow": <duration ms>}
+ */
+public class FaultInjector {
+  private static class Distribution {
+    final String name;
+    final double first;
+    final double second;
+
+    Distribution(String name, double first, double second) {
+      this.name = name;
+      this.first = first;
+      this.second = second;
+    }
+  }
+
+  private final Logger logger = LoggerFactory.getLogger(FaultInjector.class);
+  private final Vertx vertx;
+  private final Supplier<Buffer> body;
+  private SplittableRandom random;
+
+  private String latency = "none";
+  private double errorRate = 0;
+  private double resetRate = 0;
+  private double partialRate = 0;
+  private String outage = "";
+  private String outageMode = "hang";
+  private long outageUntil = 0;
+
+  // parsed latency distribution and outage schedule
+  private Distribution distribution = new Distribution("none", 0, 0);
+  private long outagePeriod = 0;
+  private long outageDuration = 0;
+  private final long outageOrigin = System.currentTimeMillis();
+
+  public FaultInjector(Vertx vertx, Supplier<Buffer> body) {
+    this.vertx = vertx;
+    this.body = body;
+    this.random = new SplittableRandom(Long.parseLong(Optional.ofNullable(System.getenv("FAULT_SEED")).orElse("42")));
+    configure(new JsonObject()
+      .put("latency", Optional.ofNullable(System.getenv("FAULT_LATENCY")).orElse("none"))
+      .put("errorRate", Double.parseDouble(Optional.ofNullable(System.getenv("FAULT_ERROR_RATE")).orElse("0")))
+      .put("resetRate", Double.parseDouble(Optional.ofNullable(System.getenv("FAULT_RESET_RATE")).orElse("0")))
+      .put("partialRate", Double.parseDouble(Optional.ofNullable(System.getenv("FAULT_PARTIAL_RATE")).orElse("0")))
+      .put("outage", Optional.ofNullable(System.getenv("FAULT_OUTAGE")).orElse(""))
+      .put("outageMode", Optional.ofNullable(System.getenv("FAULT_OUTAGE_MODE")).orElse("hang")));
+  }
+
+  public boolean isActive() {
+    return !distribution.name.equals("none") || errorRate > 0 || resetRate > 0 || partialRate > 0
+      || outagePeriod > 0 || outageUntil > System.currentTimeMillis();
+  }
+
+  // partial update of the configuration (invalid values are rejected before anything is changed)
+  public void configure(JsonObject configuration) {
+    var newLatency = configuration.getString("latency", latency);
+    var parsedDistribution = parseLatency(newLatency);
+    var newOutage = configuration.getString("outage", outage);
+    var parsedOutage = parseOutage(newOutage);
+    var newOutageMode = configuration.getString("outageMode", outageMode);
+    if (!newOutageMode.matches("hang|reset|error")) {
+      throw new IllegalArgumentException("Invalid outage mode: " + newOutageMode);
+    }
+    var newErrorRate = rate(configuration, "errorRate", errorRate);
+    var newResetRate = rate(configuration, "resetRate", resetRate);
+    var newPartialRate = rate(configuration, "partialRate", partialRate);
+    var outageNow = configuration.getLong("outageNow", 0L);
+    if (outageNow < 0) {
+      throw new IllegalArgumentException("Invalid outageNow: " + outageNow);
+    }
+
+    latency = newLatency;
+    distribution = parsedDistribution;
+    outage = newOutage;
+    outagePeriod = parsedOutage[0];
+    outageDuration = parsedOutage[1];
+    outageMode = newOutageMode;
+    errorRate = newErrorRate;
+    resetRate = newResetRate;
+    partialRate = newPartialRate;
+    if (configuration.containsKey("outageNow")) {
+      outageUntil = System.currentTimeMillis() + outageNow;
+    }
+    if (configuration.containsKey("seed")) {
+      random = new SplittableRandom(configuration.getLong("seed"));
+    }
+    if (isActive()) {
+      logger.warn("Fault injection: {}", toJson().encode());
+    }
+  }
+
+  public JsonObject toJson() {
+    return new JsonObject()
+      .put("latency", latency)
+      .put("errorRate", errorRate)
+      .put("resetRate", resetRate)
+      .put("partialRate", partialRate)
+      .put("outage", outage)
+      .put("outageMode", outageMode)
+      .put("inOutage", inOutage(System.currentTimeMillis()));
+  }
+
+  // handler of the reading route, before the handler of the reading
+  public void handle(RoutingContext routingContext) {
+    var response = routingContext.response();
+
+    var now = System.currentTimeMillis();
+    if (inOutage(now)) {
+      var connection = routingContext.request().connection();
+      switch (outageMode) {
+        case "reset": connection.close(); break;
+        case "error": response.setStatusCode(503).end(); break;
+        // hang: no response, the connection is closed at the end of the outage
+        default: vertx.setTimer(Math.max(1, outageEnd(now) - now), id -> connection.close()); break;
+      }
+      return;
+    }
+
+    var draw = random.nextDouble();
+    if (draw < resetRate) {
+      routingContext.request().connection().close();
+      return;
+    }
+    draw -= resetRate;
+    if (draw < errorRate) {
+      delay(() -> response.setStatusCode(503).end());
+      return;
+    }
+    draw -= errorRate;
+    if (draw < partialRate) {
+      delay(() -> {
+        var value = body.get();
+        response
+          .putHeader("content-type", "application/json")
+          .putHeader("content-length", String.valueOf(value.length()))
+          .write(value.getBuffer(0, value.length() / 2));
+        routingContext.request().connection().close();
+      });
+      return;
+    }
+    delay(routingContext::next);
+  }
+
+  private void delay(Runnable action) {
+    var millis = latency();
+    if (millis <= 0) {
+      action.run();
+    } else {
+      vertx.setTimer(millis, id -> action.run());
+    }
+  }
+
+  // one latency drawn from the distribution, in ms
+  long latency() {
+    var first = distribution.first;
+    var second = distribution.second;
+    switch (distribution.name) {
+      case "fixed": return (long) first;
+      case "uniform": return (long) (first + random.nextDouble() * (second - first));
+      case "normal": return Math.max(0, Math.round(first + nextGaussian() * second));
+      case "exponential": return Math.round(-first * Math.log(1 - random.nextDouble()));
+      case "pareto": return Math.round(first / Math.pow(1 - random.nextDouble(), 1 / second));
+      default: return 0;
+    }
+  }
+
+  private double nextGaussian() {
+    // Box-Muller
+    var u = 1 - random.nextDouble();
+    var v = random.nextDouble();
+    return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * v);
+  }
+
+  private boolean inOutage(long now) {
+    if (now < outageUntil) return true;
+    return outagePeriod > 0 && (now - outageOrigin) % outagePeriod < outageDuration;
+  }
+
+  // end of the current outage (immediate or scheduled)
+  private long outageEnd(long now) {
+    var end = outageUntil;
+    if (outagePeriod > 0 && (now - outageOrigin) % outagePeriod < outageDuration) {
+      end = Math.max(end, now - (now - outageOrigin) % outagePeriod + outageDuration);
+    }
+    return end;
+  }
+
+  private static double rate(JsonObject configuration, String key, double current) {
+    var value = configuration.getDouble(key, current);
+    if (value < 0 || value > 1) {
+      throw new IllegalArgumentException("Invalid " + key + ": " + value + " (0 to 1)");
+    }
+    return value;
+  }
+
+  private static Distribution parseLatency(String value) {
+    try {
+      if (value.isEmpty() || value.equals("none")) return new Distribution("none", 0, 0);
+      var parts = value.split(":", 2);
+      var parameters = parts[1].split("[-,]");
+      Distribution distribution;
+      switch (parts[0]) {
+        case "fixed":
+        case "exponential":
+          distribution = new Distribution(parts[0], Double.parseDouble(parameters[0]), 0);
+          break;
+        case "uniform":
+        case "normal":
+        case "pareto":
+          distribution = new Distribution(parts[0], Double.parseDouble(parameters[0]), Double.parseDouble(parameters[1]));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown latency distribution: " + value);
+      }
+      // "-" is the separator of the uniform bounds: a negative value does not parse
+      if (distribution.name.equals("uniform") && distribution.second < distribution.first
+        || distribution.name.equals("pareto") && (distribution.first <= 0 || distribution.second <= 0)) {
+        throw new IllegalArgumentException("Invalid latency: " + value);
+      }
+      return distribution;
+    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid latency: " + value);
+    }
+  }
+
+  private static long[] parseOutage(String value) {
+    if (value.isEmpty()) return new long[]{0, 0};
+    try {
+      var parts = value.split(":");
+      var period = Long.parseLong(parts[0]);
+      var duration = Long.parseLong(parts[1]);
+      if (period <= 0 || duration < 0 || duration > period) {
+        throw new IllegalArgumentException("Invalid outage: " + value + " (0 <= duration <= period)");
+      }
+      return new long[]{period, duration};
+    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid outage: " + value + " (period:duration)");
+    }
+  }
+}
@@ -22,9 +22,14 @@ public interface Http {
 
   /*
     create an http request to register the device on the gateway
+    (a new WebClient is created, prefer the version with a shared WebClient)
    */
   default HttpRequest<Buffer> createRegisterToGatewayRequest(Vertx vertx, String domainName, int port, boolean ssl, String token) {
-    return WebClient.create(vertx).post(port, domainName, "/register")
+    return createRegisterToGatewayRequest(WebClient.create(vertx), domainName, port, ssl, token);
+  }
+
+  default HttpRequest<Buffer> createRegisterToGatewayRequest(WebClient webClient, String domainName, int port, boolean ssl, String token) {
+    return webClient.post(port, domainName, "/register")
       .putHeader("smart-token", token)
       .ssl(ssl);
   }
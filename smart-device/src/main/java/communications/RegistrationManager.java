@@ -0,0 +1,214 @@
+package communications;
+
+import devices.HttpDevice;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import shared.TlsEngine;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+  Register the device to the gateway and keep it registered
+  - all the requests use the same WebClient (keep-alive connection to the gateway, TLS session resumed
+    on a new connection, see TlsEngine)
+  - a failed registration is retried with an exponential backoff and a "full jitter":
+    the delay is random between 0 and min(maxDelay, baseDelay * 2^attempt),
+    so the devices of a fleet don't retry all at the same time after a gateway restart
+  - the device calls `touch()` every time the gateway polls it,
+    if the gateway stops polling for `pollTimeout` ms, the device registers again
+  - a 409 response means the gateway already knows the device with this identity: the device is registered,
+    a registration with a new identity (`refresh`: position, category) updates the record of the gateway,
+    a refresh during a registration in flight (sent with the previous identity) registers again once it succeeds
+  - once registered, the device sends a tiny heartbeat (POST /heartbeat/:id, no body) every `heartbeatInterval` ms,
+    the gateway uses it to track the liveness of the device (lease),
+    a 404 response means the gateway does not know the device anymore: the device registers again
+ */
+public class RegistrationManager {
+  private final Logger logger = LoggerFactory.getLogger(RegistrationManager.class);
+
+  private final Vertx vertx;
+  private final HttpDevice device;
+  private final WebClient webClient;
+  private final String domainName;
+  private final int port;
+  private final boolean ssl;
+  private final String token;
+
+  private long baseDelay = 1_000;
+  private long maxDelay = 60_000;
+  private long pollTimeout = 30_000;
+  private long heartbeatInterval = 5_000;
+
+  private boolean registering = false;
+  // the identity changed while a registration was in flight
+  private boolean refreshed = false;
+  private long lastPollMillis = 0;
+  private long watchdogTimer = -1;
+  private long retryTimer = -1;
+  private long heartbeatTimer = -1;
+
+  public RegistrationManager(Vertx vertx, HttpDevice device, String domainName, int port, boolean ssl, String token) {
+    this.vertx = vertx;
+    this.device = device;
+    this.domainName = domainName;
+    this.port = port;
+    this.ssl = ssl;
+    this.token = token;
+    var options = new WebClientOptions().setKeepAlive(true);
+    if (ssl) {
+      // TLS_ENGINE (jdk or openssl), TLS_SESSION_CACHE: see TlsEngine
+      options.setSslEngineOptions(TlsEngine.create(
+        Optional.ofNullable(System.getenv("TLS_ENGINE")).orElse("jdk"),
+        Boolean.parseBoolean(Optional.ofNullable(System.getenv("TLS_SESSION_CACHE")).orElse("true"))));
+    }
+    this.webClient = WebClient.create(vertx, options);
+  }
+
+  public WebClient getWebClient() {
+    return webClient;
+  }
+
+  public RegistrationManager setBaseDelay(long value) {
+    baseDelay = value;
+    return this;
+  }
+
+  public RegistrationManager setMaxDelay(long value) {
+    maxDelay = value;
+    return this;
+  }
+
+  public RegistrationManager setPollTimeout(long value) {
+    pollTimeout = value;
+    return this;
+  }
+
+  // 0 disables the heartbeats (changed at runtime: the next heartbeat follows the new interval)
+  public RegistrationManager setHeartbeatInterval(long value) {
+    heartbeatInterval = value;
+    if (watchdogTimer != -1) {
+      vertx.cancelTimer(heartbeatTimer);
+      scheduleHeartbeats();
+    }
+    return this;
+  }
+
+  public void start() {
+    register(0);
+    watchdogTimer = vertx.setPeriodic(Math.max(1_000, pollTimeout / 2), id -> checkPolling());
+    scheduleHeartbeats();
+  }
+
+  private void scheduleHeartbeats() {
+    heartbeatTimer = heartbeatInterval > 0 ? vertx.setPeriodic(heartbeatInterval, id -> sendHeartbeat()) : -1;
+  }
+
+  public void stop() {
+    vertx.cancelTimer(watchdogTimer);
+    vertx.cancelTimer(retryTimer);
+    vertx.cancelTimer(heartbeatTimer);
+    webClient.close();
+  }
+
+  // the gateway polled the device
+  public void touch() {
+    lastPollMillis = System.currentTimeMillis();
+  }
+
+  // register again (e.g. the gateway does not know the device anymore)
+  public void reRegister() {
+    if (device.isConnectedToGateway()) {
+      device.setConnectedToGateway(false);
+      scheduleRetry(0);
+    }
+  }
+
+  // the identity of the device changed (position, category): the registration updates the record on the gateway
+  public void refresh() {
+    if (!device.isConnectedToGateway()) return;
+    if (registering) {
+      refreshed = true;
+      return;
+    }
+    register(0);
+  }
+
+  // full jitter: random delay in [0, min(maxDelay, baseDelay * 2^attempt)]
+  long delay(int attempt) {
+    var ceiling = Math.min(maxDelay, baseDelay << Math.min(attempt, 30));
+    return ThreadLocalRandom.current().nextLong(ceiling + 1);
+  }
+
+  private void checkPolling() {
+    if (device.isConnectedToGateway() && System.currentTimeMillis() - lastPollMillis > pollTimeout) {
+      logger.warn("The gateway stopped polling the device, register again");
+      reRegister();
+    }
+  }
+
+  private void sendHeartbeat() {
+    if (!device.isConnectedToGateway()) return;
+    webClient.post(port, domainName, "/heartbeat/" + device.getId())
+      .putHeader("smart-token", token)
+      .ssl(ssl)
+      .rxSend()
+      .subscribe(response -> {
+        if (response.statusCode() == 404) {
+          logger.warn("The gateway does not know the device, register again");
+          reRegister();
+        }
+        // any other failure: the lease lapses on the gateway side
+      }, error -> logger.warn("Heartbeat failed: {}", error.getMessage()));
+  }
+
+  private void scheduleRetry(int attempt) {
+    if (registering) return;
+    registering = true;
+    var delay = delay(attempt);
+    logger.info("Registration attempt {} in {} ms", attempt + 1, delay);
+    retryTimer = vertx.setTimer(Math.max(1, delay), id -> {
+      registering = false;
+      register(attempt);
+    });
+  }
+
+  private void register(int attempt) {
+    if (registering) return;
+    registering = true;
+
+    refreshed = false;
+    var registration = new JsonObject()
+      .put("category", device.getCategory())
+      .put("id", device.getId())
+      .put("position", device.getPosition())
+      .put("host", device.getHostName())
+      .put("port", device.getPort());
+
+    logger.info("try connecting to gateway...");
+    device.createRegisterToGatewayRequest(webClient, domainName, port, ssl, token)
+      .rxSendJsonObject(registration)
+      .subscribe(response -> {
+        registering = false;
+        if (response.statusCode() == 200 || response.statusCode() == 409) {
+          device.setConnectedToGateway(true);
+          touch();
+          logger.info("Registration succeeded: " + response.statusCode());
+          if (refreshed) register(0);
+        } else {
+          logger.warn("Registration failed: " + response.statusCode());
+          device.setConnectedToGateway(false);
+          scheduleRetry(attempt + 1);
+        }
+      }, error -> {
+        registering = false;
+        logger.error("Connection to the Gateway failed: " + error.getMessage());
+        device.setConnectedToGateway(false);
+        scheduleRetry(attempt + 1);
+      });
+  }
+}
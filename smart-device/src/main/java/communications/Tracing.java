@@ -0,0 +1,63 @@
+package communications;
+
+import io.reactivex.Completable;
+import io.vertx.core.json.JsonObject;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.ext.web.RoutingContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import shared.SpanWriter;
+
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+  Trace of the readings requested by the gateway (TRACING=true)
+  - the gateway sends the context of its poll in a W3C `traceparent` header ("00-<trace id>-<span id>-<flags>"),
+    the device writes its own span (same trace id, parent: the span of the gateway) when the response is sent
+  - JSON lines in TRACE_FILE (./data/device_traces.jsonl), appended every second (at most 1 MB pending, see SpanWriter),
+    the pending lines are written when the device stops (`rxClose`)
+  - the duration of the span includes the injected faults (see FaultInjector),
+    a connection closed without response has no span
+  Disabled, the handler only calls the next one
+ */
+public class Tracing {
+  private final Logger logger = LoggerFactory.getLogger(Tracing.class);
+  private final String device;
+  private final SpanWriter writer;
+
+  public Tracing(Vertx vertx, String device, Path path) {
+    this.device = device;
+    if (path == null) {
+      this.writer = null;
+      return;
+    }
+    this.writer = new SpanWriter(vertx, path);
+    logger.info("Tracing to {}", path);
+  }
+
+  public void handle(RoutingContext routingContext) {
+    var traceparent = writer == null ? null : routingContext.request().getHeader("traceparent");
+    var parts = traceparent == null ? null : traceparent.split("-");
+    if (parts == null || parts.length != 4 || parts[1].length() != 32 || parts[2].length() != 16) {
+      routingContext.next();
+      return;
+    }
+    var startMicros = System.currentTimeMillis() * 1_000;
+    var startNanos = System.nanoTime();
+    routingContext.addBodyEndHandler(v -> writer.write(new JsonObject()
+      .put("traceId", parts[1])
+      .put("spanId", Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE))
+      .put("parentId", parts[2])
+      .put("name", "device.reading")
+      .put("device", device)
+      .put("start", startMicros)
+      .put("durationMicros", (System.nanoTime() - startNanos) / 1_000)
+      .put("statusCode", routingContext.response().getStatusCode())));
+    routingContext.next();
+  }
+
+  public Completable rxClose() {
+    return writer == null ? Completable.complete() : writer.rxClose();
+  }
+}
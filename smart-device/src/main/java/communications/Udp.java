@@ -0,0 +1,69 @@
+package communications;
+
+import devices.Device;
+import io.vertx.core.buffer.Buffer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+/*
+  UDP telemetry: the device pushes its readings to the gateway (no registration, no polling)
+  Frame (see udp.TelemetryFrame in the gateway, big-endian):
+  [short magic "SH"][byte version][byte flags][int sequence][long time]
+  [byte length][id][byte length][position][byte length][category]
+  [byte sensor count] then per sensor: [byte code][float value] (code 0: followed by [byte length][name])
+  [16 bytes: HMAC-SHA256 of all the previous bytes with the GATEWAY_TOKEN, truncated]
+ */
+public interface Udp {
+  List<String> SENSOR_CODES = List.of("", "temperature", "humidity", "eCO2");
+
+  default String getProtocol() {
+    return "udp";
+  }
+
+  default Mac createMac(String token) {
+    try {
+      var mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(token.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+      return mac;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("HmacSHA256 not available", e);
+    }
+  }
+
+  // signed frame of the reading of the device at the tick `t`
+  default Buffer createTelemetryFrame(Device device, long t, int sequence, long time, Mac mac) {
+    var frame = Buffer.buffer(128)
+      .appendShort((short) 0x5348)
+      .appendByte((byte) 1)
+      .appendByte((byte) 0)
+      .appendInt(sequence)
+      .appendLong(time);
+    appendString(frame, device.getId());
+    appendString(frame, device.getPosition());
+    appendString(frame, device.getCategory());
+    frame.appendByte((byte) device.getSensors().size());
+    for (var sensor : device.getSensors()) {
+      var code = SENSOR_CODES.indexOf(sensor.getName());
+      if (code > 0) {
+        frame.appendByte((byte) code);
+      } else {
+        frame.appendByte((byte) 0);
+        appendString(frame, sensor.getName());
+      }
+      frame.appendFloat((float) sensor.getLevel(t));
+    }
+    mac.update(frame.getBytes());
+    var signature = mac.doFinal();
+    return frame.appendBytes(signature, 0, 16);
+  }
+
+  private static void appendString(Buffer frame, String value) {
+    var bytes = value.getBytes(StandardCharsets.UTF_8);
+    var length = Math.min(bytes.length, 255);
+    frame.appendByte((byte) length).appendBytes(bytes, 0, length);
+  }
+}
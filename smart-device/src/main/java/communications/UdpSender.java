@@ -0,0 +1,64 @@
+package communications;
+
+import devices.UdpDevice;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.core.datagram.DatagramSocket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+
+/*
+  Send the readings of a UdpDevice to the gateway every `interval` ms (fire-and-forget)
+  - one signed datagram per reading (see Udp), with a sequence number and the clock of the device:
+    the gateway drops the replayed and the reordered frames
+ */
+public class UdpSender {
+  private final Logger logger = LoggerFactory.getLogger(UdpSender.class);
+  private final Vertx vertx;
+  private final UdpDevice device;
+  private final String gatewayHost;
+  private final int gatewayPort;
+  private final Mac mac;
+  private final DatagramSocket socket;
+  private long interval = 5_000;
+  private int sequence = 0;
+  private long timer = -1;
+
+  public UdpSender(Vertx vertx, UdpDevice device, String gatewayHost, int gatewayPort, String token) {
+    this.vertx = vertx;
+    this.device = device;
+    this.gatewayHost = gatewayHost;
+    this.gatewayPort = gatewayPort;
+    this.mac = device.createMac(token);
+    this.socket = vertx.createDatagramSocket();
+  }
+
+  // changed at runtime: the next frame follows the new interval
+  public UdpSender setInterval(long value) {
+    interval = value;
+    if (timer != -1) {
+      vertx.cancelTimer(timer);
+      timer = vertx.setPeriodic(interval, id -> send());
+    }
+    return this;
+  }
+
+  public void start() {
+    send();
+    timer = vertx.setPeriodic(interval, id -> send());
+    logger.info("Device: UDP telemetry to {}:{} every {} ms", gatewayHost, gatewayPort, interval);
+  }
+
+  public void stop() {
+    vertx.cancelTimer(timer);
+    socket.close();
+  }
+
+  private void send() {
+    var frame = device.createTelemetryFrame(device, device.getTimeBase().tick(), sequence++, System.currentTimeMillis(), mac);
+    socket.rxSend(Buffer.newInstance(frame), gatewayPort, gatewayHost)
+      .subscribe(() -> {}, error -> logger.warn("UDP telemetry not sent: {}", error.getMessage()));
+  }
+}
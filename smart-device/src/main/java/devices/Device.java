@@ -1,9 +1,12 @@
 package devices;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import sensors.Sensor;
+import sensors.TimeBase;
 
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -20,12 +23,14 @@ public interface Device {
   String getCategory();
   Device setCategory(String value);
 
+  TimeBase getTimeBase();
 
   default JsonObject jsonValue() {
+    var t = getTimeBase().tick();
 
     var jsonSensorsArray = getSensors()
       .stream()
-      .map(Sensor::jsonValue)
+      .map(sensor -> sensor.jsonValue(t))
       .collect(Collectors.toList());
 
     return new JsonObject()
@@ -34,4 +39,21 @@ public interface Device {
       .put("category", getCategory())
       .put("sensors", new JsonArray(jsonSensorsArray));
   }
+
+  /*
+    Write the same value as `jsonValue` directly with a Jackson generator
+    `t` is the tick of the time base given to every sensor
+   */
+  default void writeJson(JsonGenerator generator, long t) throws IOException {
+    generator.writeStartObject();
+    generator.writeStringField("id", getId());
+    generator.writeStringField("location", getPosition());
+    generator.writeStringField("category", getCategory());
+    generator.writeArrayFieldStart("sensors");
+    for (Sensor sensor : getSensors()) {
+      sensor.writeJson(generator, t);
+    }
+    generator.writeEndArray();
+    generator.writeEndObject();
+  }
 }
@@ -1,7 +1,11 @@
 package devices;
 
 import communications.Http;
+import io.vertx.reactivex.core.buffer.Buffer;
 import sensors.Sensor;
+import sensors.SimulatedSensor;
+import sensors.SimulationEngine;
+import sensors.TimeBase;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -13,6 +17,9 @@ public class HttpDevice implements Device, Http {
   private LinkedList<Sensor> sensors = null;
   private String category = "thingy";
   private int port = 0;
+  private SimulationEngine simulationEngine;
+  private TimeBase timeBase = new TimeBase(0L, 5_000L);
+  private final ValueCache valueCache = new ValueCache();
 
   @Override
   public boolean isConnectedToGateway() {
@@ -34,6 +41,7 @@ public class HttpDevice implements Device, Http {
   @Override
   public HttpDevice setPosition(String value) {
     position = value;
+    valueCache.invalidate();
     return this;
   }
 
@@ -45,6 +53,7 @@ public class HttpDevice implements Device, Http {
   @Override
   public HttpDevice setCategory(String value) {
     category = value;
+    valueCache.invalidate();
     return this;
   }
 
@@ -66,24 +75,78 @@ public class HttpDevice implements Device, Http {
 
   @Override
   public HttpDevice setSensors(List<Sensor> sensors) {
+    sensors.forEach(this::attachEngine);
     this.sensors.addAll(sensors);
+    valueCache.invalidate();
     return this;
   }
 
+  // new sensors of the device (e.g. configuration changed at runtime), the next reading uses them,
+  // the previous sensors are closed
+  public HttpDevice replaceSensors(List<Sensor> sensors) {
+    sensors.forEach(this::attachEngine);
+    var previous = this.sensors;
+    this.sensors = new LinkedList<>(sensors);
+    valueCache.invalidate();
+    if (previous != null) previous.forEach(Sensor::close);
+    return this;
+  }
+
+  @Override
+  public TimeBase getTimeBase() {
+    return timeBase;
+  }
+
+  public HttpDevice setTimeBase(TimeBase value) {
+    timeBase = value;
+    valueCache.invalidate();
+    return this;
+  }
+
+  public SimulationEngine getSimulationEngine() {
+    return simulationEngine;
+  }
+
+  // the seed makes the simulated values of the device reproducible
+  public HttpDevice setSeed(long seed) {
+    simulationEngine = new SimulationEngine(seed);
+    sensors.forEach(this::attachEngine);
+    valueCache.invalidate();
+    return this;
+  }
+
+  private void attachEngine(Sensor sensor) {
+    if (sensor instanceof SimulatedSensor) {
+      ((SimulatedSensor) sensor).setEngine(simulationEngine);
+    }
+  }
+
   @Override
   public String getId() {
     return id;
   }
 
+  // encoded value of the device, computed once per time bucket
+  public Buffer bufferValue() {
+    return valueCache.get(this, timeBase.tick());
+  }
+
+  // ETag of the last value returned by `bufferValue`
+  public String etag() {
+    return valueCache.getEtag();
+  }
+
   public HttpDevice(String id, String position) {
     this.position = position;
     this.id = id;
     this.sensors = new LinkedList<Sensor>();
+    this.simulationEngine = new SimulationEngine(id.hashCode());
   }
 
   public HttpDevice(String id) {
     this.id = id;
     this.sensors = new LinkedList<Sensor>();
+    this.simulationEngine = new SimulationEngine(id.hashCode());
   }
 
 }
@@ -0,0 +1,16 @@
+package devices;
+
+import communications.Udp;
+
+// simulated device sending its readings over UDP (see UdpSender) instead of being polled over HTTP
+public class UdpDevice extends HttpDevice implements Udp {
+
+  public UdpDevice(String id) {
+    super(id);
+  }
+
+  @Override
+  public String getProtocol() {
+    return Udp.super.getProtocol();
+  }
+}
@@ -0,0 +1,54 @@
+package devices;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import io.vertx.reactivex.core.buffer.Buffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.CRC32;
+
+/*
+  Keep the encoded JSON value of a device for the current time bucket
+  - the value is computed and encoded only once per bucket (a tick of the time base of the device)
+  - the same read-only buffer is served to every caller of the bucket
+  - the device calls `invalidate()` when its position, its category or its sensors change
+  - the ETag is a hash of the encoded value: it only changes when the reading changes,
+    so the gateway can use a conditional GET (If-None-Match)
+ */
+public class ValueCache {
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+  private final CRC32 crc = new CRC32();
+  private Buffer value = null;
+  private String etag = null;
+  private long bucket = Long.MIN_VALUE;
+
+  public Buffer get(Device device, long t) {
+    if (value == null || bucket != t) {
+      bytes.reset();
+      try (var generator = jsonFactory.createGenerator(bytes)) {
+        device.writeJson(generator, t);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      var encoded = bytes.toByteArray();
+      crc.reset();
+      crc.update(encoded);
+      value = Buffer.buffer(encoded);
+      etag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(encoded.length) + "\"";
+      bucket = t;
+    }
+    return value;
+  }
+
+  // ETag of the last value returned by `get`
+  public String getEtag() {
+    return etag;
+  }
+
+  public void invalidate() {
+    value = null;
+  }
+}
@@ -0,0 +1,137 @@
+package sensors;
+
+import java.time.Instant;
+
+/*
+  A reader of a `RecordedDataset`
+  The cursor reads the samples as a stream (one sample at a time) through the shared mapping
+  A cursor is not thread safe: use one cursor per reader
+ */
+public class DatasetCursor {
+  private final RecordedDataset dataset;
+  private final StringBuilder field = new StringBuilder(32);
+  private final double[] values = new double[RecordedDataset.COLUMNS];
+  private long position = -1;
+  private long nextPosition = -1;
+  private long timestamp = Long.MIN_VALUE;
+
+  DatasetCursor(RecordedDataset dataset) {
+    this.dataset = dataset;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public double getValue(int column) {
+    return values[column];
+  }
+
+  // go to the first sample
+  public boolean rewind() {
+    return read(dataset.dataStart());
+  }
+
+  // go to the next sample, return false at the end of the dataset
+  public boolean next() {
+    return nextPosition >= 0 && read(nextPosition);
+  }
+
+  /*
+    Move to the last sample with a timestamp <= target
+    - the cursor moves forward sample by sample (sequential reading)
+    - on a binary dataset, a jump backward or a big jump forward uses a binary search
+   */
+  public void advanceTo(long target) {
+    if (position < 0 || target < timestamp) {
+      if (dataset.isBinary()) {
+        search(target);
+        return;
+      }
+      rewind();
+    }
+    var from = position;
+    while (nextPosition >= 0 && nextPosition < dataset.size()) {
+      if (dataset.isBinary() && nextPosition - from > 64L * RecordedDataset.RECORD_SIZE) {
+        search(target);
+        return;
+      }
+      var previous = position;
+      if (!read(nextPosition)) {
+        read(previous);
+        return;
+      }
+      if (timestamp > target) {
+        read(previous);
+        return;
+      }
+    }
+  }
+
+  private void search(long target) {
+    long low = 0;
+    long high = dataset.recordCount() - 1;
+    while (low < high) {
+      var middle = (low + high + 1) >>> 1;
+      if (dataset.getLong(RecordedDataset.HEADER_SIZE + middle * RecordedDataset.RECORD_SIZE) <= target) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
+    }
+    read(RecordedDataset.HEADER_SIZE + low * RecordedDataset.RECORD_SIZE);
+  }
+
+  boolean read(long at) {
+    return dataset.isBinary() ? readRecord(at) : readLine(at);
+  }
+
+  private boolean readRecord(long at) {
+    if (at + RecordedDataset.RECORD_SIZE > dataset.size()) return false;
+    timestamp = dataset.getLong(at);
+    for (int column = 0; column < RecordedDataset.COLUMNS; column++) {
+      values[column] = dataset.getDouble(at + 8 + column * 8L);
+    }
+    position = at;
+    nextPosition = at + RecordedDataset.RECORD_SIZE;
+    return true;
+  }
+
+  private boolean readLine(long at) {
+    var size = dataset.size();
+    // skip the empty lines
+    while (at < size && (dataset.get(at) == '\n' || dataset.get(at) == '\r')) at++;
+    if (at >= size) return false;
+
+    var cursor = at;
+    var column = -1;
+    long lineTimestamp = 0;
+    field.setLength(0);
+    while (true) {
+      var end = cursor >= size;
+      var character = end ? '\n' : (char) dataset.get(cursor);
+      if (character == ',' || character == '\n') {
+        var text = field.toString().trim();
+        if (column < 0) {
+          lineTimestamp = parseTimestamp(text);
+        } else if (column < RecordedDataset.COLUMNS) {
+          values[column] = Double.parseDouble(text);
+        }
+        column++;
+        field.setLength(0);
+        if (character == '\n') break;
+      } else if (character != '\r') {
+        field.append(character);
+      }
+      cursor++;
+    }
+    timestamp = lineTimestamp;
+    position = at;
+    nextPosition = Math.min(cursor + 1, size);
+    return true;
+  }
+
+  private static long parseTimestamp(String text) {
+    return text.indexOf('T') > 0 ? Instant.parse(text).toEpochMilli() : Long.parseLong(text);
+  }
+}
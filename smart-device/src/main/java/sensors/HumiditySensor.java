@@ -1,6 +1,11 @@
 package sensors;
 
-public class HumiditySensor implements Sensor {
+public class HumiditySensor extends SimulatedSensor {
+
+  public HumiditySensor() {
+    super(new SensorProfile(1.0, 100.0));
+  }
+
   @Override
   public String getName() {
     return "humidity";
@@ -10,11 +15,4 @@ public class HumiditySensor implements Sensor {
   public String getUnit() {
     return "%";
   }
-
-  @Override
-  public double getLevel(int t) {
-    var minHumidity = 1.0;
-    var maxHumidity= 100.0;
-    return simulate(t,minHumidity, maxHumidity);
-  }
 }
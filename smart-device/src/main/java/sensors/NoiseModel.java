@@ -0,0 +1,33 @@
+package sensors;
+
+/*
+  Noise added to a simulated signal
+  `sample(hash)` turns 64 random bits into a unit noise value:
+  - UNIFORM: in [-1, 1]
+  - GAUSSIAN: standard normal distribution (Box-Muller with the two 32 bits halves of the hash)
+ */
+public enum NoiseModel {
+  NONE {
+    @Override
+    public double sample(long hash) {
+      return 0.0;
+    }
+  },
+  UNIFORM {
+    @Override
+    public double sample(long hash) {
+      return 2.0 * SimulationEngine.unit(hash) - 1.0;
+    }
+  },
+  GAUSSIAN {
+    @Override
+    public double sample(long hash) {
+      // (0, 1] to avoid log(0)
+      var u1 = ((hash >>> 32) + 1) / 4294967296.0;
+      var u2 = (hash & 0xFFFFFFFFL) / 4294967296.0;
+      return Math.sqrt(-2.0 * Math.log(u1)) * Math.cos(2 * Math.PI * u2);
+    }
+  };
+
+  public abstract double sample(long hash);
+}
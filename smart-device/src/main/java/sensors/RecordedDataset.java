@@ -0,0 +1,195 @@
+package sensors;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+  A file of recorded readings (timestamp, temperature, humidity, eCO2)
+  - the file is memory-mapped read-only, nothing is parsed on the heap at startup
+    (only the first and the last samples are read to know the time span)
+  - a dataset is shared by every device of the JVM: `open(path)` returns the same instance while it is used,
+    every reader gets its own `DatasetCursor` over the same mapping
+  - the dataset is reference counted (`open` and `retain` take a reference, `release` gives it back):
+    released by its last user (e.g. REPLAY_FILE changed), it leaves the cache and its mapping is freed
+    by the GC (there is no explicit unmap on Java 11)
+  - large files are mapped by regions of 1 GB
+
+  Two formats are supported:
+  - CSV: one sample per line, `timestamp,temperature,humidity,eCO2`
+    the timestamp is in epoch ms or ISO-8601 (2022-03-01T10:15:30Z), an optional header line is skipped
+  - binary: a 32 bytes header starting with "SHDS", then fixed records of 32 bytes
+    (long timestamp in epoch ms, double temperature, double humidity, double eCO2)
+    use `toBinary` to convert a CSV file
+ */
+public class RecordedDataset {
+  public static final int TEMPERATURE = 0;
+  public static final int HUMIDITY = 1;
+  public static final int ECO2 = 2;
+  public static final int COLUMNS = 3;
+
+  static final byte[] MAGIC = "SHDS".getBytes(StandardCharsets.US_ASCII);
+  static final int HEADER_SIZE = 32;
+  static final int RECORD_SIZE = 32;
+
+  private static final int REGION_BITS = 30;
+  private static final long REGION_SIZE = 1L << REGION_BITS;
+  private static final Map<Path, RecordedDataset> datasets = new ConcurrentHashMap<>();
+
+  private final Path path;
+  // guarded by `datasets` (compute)
+  private int references = 0;
+  private final long size;
+  private final MappedByteBuffer[] regions;
+  private final boolean binary;
+  private final long dataStart;
+  private final long firstTimestamp;
+  private final long lastTimestamp;
+
+  // get the shared dataset of the file (the file is mapped only once per JVM), with a reference to release
+  public static RecordedDataset open(Path path) {
+    return datasets.compute(path.toAbsolutePath().normalize(), (key, dataset) -> {
+      var shared = dataset == null ? new RecordedDataset(key) : dataset;
+      shared.references++;
+      return shared;
+    });
+  }
+
+  // one more reference (the caller already holds one)
+  public RecordedDataset retain() {
+    datasets.computeIfPresent(path, (key, dataset) -> {
+      dataset.references++;
+      return dataset;
+    });
+    return this;
+  }
+
+  // give a reference back: the last one removes the dataset from the cache
+  public void release() {
+    datasets.computeIfPresent(path, (key, dataset) -> --dataset.references == 0 ? null : dataset);
+  }
+
+  private RecordedDataset(Path path) {
+    this.path = path;
+    try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      size = channel.size();
+      regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) >>> REGION_BITS)];
+      for (int i = 0; i < regions.length; i++) {
+        var offset = (long) i << REGION_BITS;
+        regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(REGION_SIZE, size - offset));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to map " + path, e);
+    }
+    binary = hasMagic();
+    dataStart = binary ? HEADER_SIZE : csvDataStart();
+
+    var cursor = cursor();
+    if (!cursor.read(dataStart)) {
+      throw new IllegalArgumentException(path + " does not contain any sample");
+    }
+    firstTimestamp = cursor.getTimestamp();
+    cursor.read(lastSamplePosition());
+    lastTimestamp = cursor.getTimestamp();
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public boolean isBinary() {
+    return binary;
+  }
+
+  public long getFirstTimestamp() {
+    return firstTimestamp;
+  }
+
+  public long getLastTimestamp() {
+    return lastTimestamp;
+  }
+
+  public DatasetCursor cursor() {
+    return new DatasetCursor(this);
+  }
+
+  long size() {
+    return size;
+  }
+
+  long dataStart() {
+    return dataStart;
+  }
+
+  byte get(long position) {
+    return regions[(int) (position >>> REGION_BITS)].get((int) (position & (REGION_SIZE - 1)));
+  }
+
+  // the binary records never cross a region (the header and the records are 32 bytes long)
+  long getLong(long position) {
+    return regions[(int) (position >>> REGION_BITS)].getLong((int) (position & (REGION_SIZE - 1)));
+  }
+
+  double getDouble(long position) {
+    return regions[(int) (position >>> REGION_BITS)].getDouble((int) (position & (REGION_SIZE - 1)));
+  }
+
+  long recordCount() {
+    return (size - HEADER_SIZE) / RECORD_SIZE;
+  }
+
+  private boolean hasMagic() {
+    if (size < HEADER_SIZE) return false;
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (get(i) != MAGIC[i]) return false;
+    }
+    return true;
+  }
+
+  // skip the header line of a CSV file if the first character is not a number
+  private long csvDataStart() {
+    if (size == 0) return 0;
+    var first = get(0);
+    if ((first >= '0' && first <= '9') || first == '-') return 0;
+    long position = 0;
+    while (position < size && get(position) != '\n') position++;
+    return Math.min(position + 1, size);
+  }
+
+  private long lastSamplePosition() {
+    if (binary) {
+      return HEADER_SIZE + (recordCount() - 1) * RECORD_SIZE;
+    }
+    var position = size - 1;
+    while (position > dataStart && (get(position) == '\n' || get(position) == '\r')) position--;
+    while (position > dataStart && get(position - 1) != '\n') position--;
+    return position;
+  }
+
+  /*
+    Convert a CSV dataset to the binary format
+    The CSV file is read as a stream through its mapping
+   */
+  public static void toBinary(Path csv, Path output) throws IOException {
+    var cursor = open(csv).cursor();
+    try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output), 1 << 16))) {
+      out.write(MAGIC);
+      out.write(new byte[HEADER_SIZE - MAGIC.length]);
+      for (var ok = cursor.rewind(); ok; ok = cursor.next()) {
+        out.writeLong(cursor.getTimestamp());
+        for (int column = 0; column < COLUMNS; column++) {
+          out.writeDouble(cursor.getValue(column));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package sensors;
+
+/*
+  A sensor that replays a column of a `RecordedDataset` instead of simulating values
+  - the replay starts at `startMillis` with the first sample of the dataset
+  - `speed` is the replay speed: 1 = real time, N = N times faster
+  - at the end of the dataset the replay loops to the first sample
+  - the sensor holds a reference to the dataset, released by `close`
+ */
+public class ReplaySensor implements Sensor {
+  private final String name;
+  private final String unit;
+  private final int column;
+  private final RecordedDataset dataset;
+  private final DatasetCursor cursor;
+  private final TimeBase timeBase;
+  private final long startMillis;
+  private final double speed;
+
+  public ReplaySensor(String name, String unit, int column, RecordedDataset dataset, TimeBase timeBase, long startMillis, double speed) {
+    if (speed <= 0) {
+      throw new IllegalArgumentException("speed must be > 0");
+    }
+    this.name = name;
+    this.unit = unit;
+    this.column = column;
+    this.dataset = dataset.retain();
+    this.cursor = dataset.cursor();
+    this.timeBase = timeBase;
+    this.startMillis = startMillis;
+    this.speed = speed;
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String getUnit() {
+    return unit;
+  }
+
+  // start of a replay at `speed` going on from the position of this replay at `nowMillis`
+  public long continuedStart(long nowMillis, double speed) {
+    return nowMillis - (long) ((nowMillis - startMillis) * (this.speed / speed));
+  }
+
+  @Override
+  public void close() {
+    dataset.release();
+  }
+
+  @Override
+  public double getLevel(long t) {
+    var elapsed = (long) ((timeBase.millisOf(t) - startMillis) * speed);
+    var span = dataset.getLastTimestamp() - dataset.getFirstTimestamp() + 1;
+    cursor.advanceTo(dataset.getFirstTimestamp() + Math.floorMod(elapsed, span));
+    return cursor.getValue(column);
+  }
+}
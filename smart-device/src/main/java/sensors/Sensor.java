@@ -1,36 +1,29 @@
 package sensors;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import io.vertx.core.json.JsonObject;
 
-import java.time.LocalTime;
+import java.io.IOException;
 
 /*
-The sine and cosine functions can be used to model fluctuations in temperature data throughout the year.
-An equation that can be used to model these data is of the form:
-
-  y = A cos B(x - C) + D,
-
-where A,B,C,D, are constants, y is the temperature in °C and x is the month (1–12).
-
-A = amplitude = (ymax - ymin)/2
-B = 2π/12
-C = units translated to the right
-D = ymin + amplitude = units translated up
+  A sensor returns a level for a tick of the time base of its device (see `TimeBase`)
+  The simulated sensors get their values from a `SimulationEngine`
 */
 
 public interface Sensor {
 
   String getName();
   String getUnit();
-  double getLevel(int t);
+  double getLevel(long t);
+
+  // the sensor is not used anymore (e.g. replaced): release its resources
+  default void close() {
+  }
 
   /*
-    Call the `simulate` method and return a Json Onject
+    Call the `getLevel` method and return a Json Object
    */
-  default JsonObject jsonValue() {
-    var localTime = LocalTime.now();
-    var t = localTime.getSecond()  / 5 + 1;
-
+  default JsonObject jsonValue(long t) {
     return new JsonObject()
       .put(getName(), new JsonObject()
         .put("unit", getUnit())
@@ -39,14 +32,16 @@ public interface Sensor {
     );
   }
 
-  default double simulate(int t, double minValue, double maxValue) {
-    var amplitude = (maxValue - minValue) / 2;
-    var unitsTranslatedUp = minValue + amplitude;
-    var minBound = 1;
-    var maxBound = 5;
-    var unitsTranslatedToTheRight = Math.floor(Math.random()*(maxBound-minBound+1)) + minBound;
-
-    return amplitude * Math.cos((t-unitsTranslatedToTheRight) * Math.PI/6) + unitsTranslatedUp;
+  /*
+    Write the same value as `jsonValue` directly with a Jackson generator
+    (no intermediate JsonObject)
+   */
+  default void writeJson(JsonGenerator generator, long t) throws IOException {
+    generator.writeStartObject();
+    generator.writeObjectFieldStart(getName());
+    generator.writeStringField("unit", getUnit());
+    generator.writeNumberField("value", getLevel(t));
+    generator.writeEndObject();
+    generator.writeEndObject();
   }
 }
-
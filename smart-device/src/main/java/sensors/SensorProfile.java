@@ -0,0 +1,70 @@
+package sensors;
+
+/*
+  Description of a simulated signal:
+  - the signal moves between `min` and `max` with the given waveform
+  - a full cycle lasts `periodTicks` ticks
+  - `noiseLevel` is the noise amplitude as a fraction of the signal amplitude
+  The profile is immutable, use the `with...` methods to derive a new one
+ */
+public class SensorProfile {
+  private final double min;
+  private final double max;
+  private final long periodTicks;
+  private final Waveform waveform;
+  private final NoiseModel noise;
+  private final double noiseLevel;
+
+  public SensorProfile(double min, double max) {
+    // a cycle of 12 ticks (1 minute with the default 5 seconds tick), no noise
+    this(min, max, 12, Waveform.COSINE, NoiseModel.NONE, 0.0);
+  }
+
+  public SensorProfile(double min, double max, long periodTicks, Waveform waveform, NoiseModel noise, double noiseLevel) {
+    if (periodTicks <= 0) {
+      throw new IllegalArgumentException("periodTicks must be > 0");
+    }
+    this.min = min;
+    this.max = max;
+    this.periodTicks = periodTicks;
+    this.waveform = waveform;
+    this.noise = noise;
+    this.noiseLevel = noiseLevel;
+  }
+
+  public double getMin() {
+    return min;
+  }
+
+  public double getMax() {
+    return max;
+  }
+
+  public long getPeriodTicks() {
+    return periodTicks;
+  }
+
+  public Waveform getWaveform() {
+    return waveform;
+  }
+
+  public NoiseModel getNoise() {
+    return noise;
+  }
+
+  public double getNoiseLevel() {
+    return noiseLevel;
+  }
+
+  public SensorProfile withPeriodTicks(long value) {
+    return new SensorProfile(min, max, value, waveform, noise, noiseLevel);
+  }
+
+  public SensorProfile withWaveform(Waveform value) {
+    return new SensorProfile(min, max, periodTicks, value, noise, noiseLevel);
+  }
+
+  public SensorProfile withNoise(NoiseModel value, double level) {
+    return new SensorProfile(min, max, periodTicks, waveform, value, level);
+  }
+}
@@ -0,0 +1,38 @@
+package sensors;
+
+/*
+  A sensor whose values come from a `SimulationEngine`
+  - the profile describes the signal (range, waveform, noise)
+  - the engine is given by the device (it holds the seed of the device)
+ */
+public abstract class SimulatedSensor implements Sensor {
+  private SimulationEngine engine = new SimulationEngine(0L);
+  private SensorProfile profile;
+
+  protected SimulatedSensor(SensorProfile profile) {
+    this.profile = profile;
+  }
+
+  public SimulationEngine getEngine() {
+    return engine;
+  }
+
+  public SimulatedSensor setEngine(SimulationEngine engine) {
+    this.engine = engine;
+    return this;
+  }
+
+  public SensorProfile getProfile() {
+    return profile;
+  }
+
+  public SimulatedSensor setProfile(SensorProfile profile) {
+    this.profile = profile;
+    return this;
+  }
+
+  @Override
+  public double getLevel(long t) {
+    return engine.level(profile, getName().hashCode(), t);
+  }
+}
@@ -0,0 +1,91 @@
+package sensors;
+
+/*
+The sine and cosine functions can be used to model fluctuations in temperature data throughout the year.
+An equation that can be used to model these data is of the form:
+
+  y = A cos B(x - C) + D,
+
+where A,B,C,D, are constants, y is the temperature in °C and x is the month (1–12).
+
+A = amplitude = (ymax - ymin)/2
+B = 2π/period
+C = units translated to the right (the phase)
+D = ymin + amplitude = units translated up
+
+The engine is deterministic and stateless:
+- every value is a pure function of (seed, channel, tick), so a reading can be reproduced at any time
+- the phase C of a channel is derived from the seed, the noise from (seed, channel, tick)
+- there is no shared generator (no `Math.random()`), an engine can be used from any thread
+A channel identifies a sensor of a device (the hash of the sensor name).
+*/
+public class SimulationEngine {
+  private final long seed;
+
+  public SimulationEngine(long seed) {
+    this.seed = seed;
+  }
+
+  public long getSeed() {
+    return seed;
+  }
+
+  public double level(SensorProfile profile, long channel, long tick) {
+    return level(seed, profile, channel, tick);
+  }
+
+  // fill `out` with the values of one channel for the ticks [fromTick, fromTick + out.length)
+  public void fill(SensorProfile profile, long channel, long fromTick, double[] out) {
+    for (int i = 0; i < out.length; i++) {
+      out[i] = level(seed, profile, channel, fromTick + i);
+    }
+  }
+
+  /*
+    Fill `out` with the values of many devices (one seed per device) and many sensors at the same tick
+    out[device * profiles.length + sensor] = value of the sensor of the device
+   */
+  public static void fill(long tick, long[] seeds, SensorProfile[] profiles, long[] channels, double[] out) {
+    if (profiles.length != channels.length) {
+      throw new IllegalArgumentException("profiles and channels must have the same length");
+    }
+    if (out.length < seeds.length * profiles.length) {
+      throw new IllegalArgumentException("out is too small");
+    }
+    var index = 0;
+    for (long seed : seeds) {
+      for (int s = 0; s < profiles.length; s++) {
+        out[index++] = level(seed, profiles[s], channels[s], tick);
+      }
+    }
+  }
+
+  public static double level(long seed, SensorProfile profile, long channel, long tick) {
+    var amplitude = (profile.getMax() - profile.getMin()) / 2;
+    var unitsTranslatedUp = profile.getMin() + amplitude;
+    var channelSeed = mix(seed ^ mix(channel));
+
+    // phase in [0, 1): position in the cycle + constant shift of the channel
+    var period = profile.getPeriodTicks();
+    var phase = (Math.floorMod(tick, period) / (double) period + unit(channelSeed)) % 1.0;
+    var value = amplitude * profile.getWaveform().at(phase) + unitsTranslatedUp;
+
+    if (profile.getNoiseLevel() != 0.0) {
+      value += amplitude * profile.getNoiseLevel() * profile.getNoise().sample(mix(channelSeed ^ mix(tick)));
+    }
+    return Math.max(profile.getMin(), Math.min(profile.getMax(), value));
+  }
+
+  // SplitMix64 finalizer: a good 64 bits hash
+  static long mix(long z) {
+    z += 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  // 53 bits of the hash as a double in [0, 1)
+  static double unit(long hash) {
+    return (hash >>> 11) * 0x1.0p-53;
+  }
+}
@@ -1,6 +1,10 @@
 package sensors;
 
-public class TemperatureSensor implements Sensor {
+public class TemperatureSensor extends SimulatedSensor {
+
+  public TemperatureSensor() {
+    super(new SensorProfile(-3.0, 25.0));
+  }
 
   @Override
   public String getName() {
@@ -11,11 +15,4 @@ public class TemperatureSensor implements Sensor {
   public String getUnit() {
     return "Celsius";
   }
-
-  @Override
-  public double getLevel(int t) {
-    var minTemperature = -3.0;
-    var maxTemperature= 25.0;
-    return simulate(t,minTemperature, maxTemperature);
-  }
 }
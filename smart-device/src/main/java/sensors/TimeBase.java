@@ -0,0 +1,41 @@
+package sensors;
+
+/*
+  Time base of the simulation
+  A tick is a period of `tickMillis` milliseconds counted from `originMillis` (epoch millis)
+  The tick never wraps, so two devices with the same origin and the same period
+  see the same tick at the same time
+ */
+public class TimeBase {
+  private final long originMillis;
+  private final long tickMillis;
+
+  public TimeBase(long originMillis, long tickMillis) {
+    if (tickMillis <= 0) {
+      throw new IllegalArgumentException("tickMillis must be > 0");
+    }
+    this.originMillis = originMillis;
+    this.tickMillis = tickMillis;
+  }
+
+  public long getOriginMillis() {
+    return originMillis;
+  }
+
+  public long getTickMillis() {
+    return tickMillis;
+  }
+
+  public long tick() {
+    return tick(System.currentTimeMillis());
+  }
+
+  public long tick(long epochMillis) {
+    return Math.floorDiv(epochMillis - originMillis, tickMillis);
+  }
+
+  // epoch millis of the beginning of the tick
+  public long millisOf(long tick) {
+    return originMillis + tick * tickMillis;
+  }
+}
@@ -0,0 +1,46 @@
+package sensors;
+
+/*
+  Shape of a simulated signal
+  `at(phase)` returns a value in [-1, 1] for a phase in [0, 1)
+ */
+public enum Waveform {
+  COSINE {
+    @Override
+    public double at(double phase) {
+      return Math.cos(2 * Math.PI * phase);
+    }
+  },
+  SINE {
+    @Override
+    public double at(double phase) {
+      return Math.sin(2 * Math.PI * phase);
+    }
+  },
+  SQUARE {
+    @Override
+    public double at(double phase) {
+      return phase < 0.5 ? 1.0 : -1.0;
+    }
+  },
+  TRIANGLE {
+    @Override
+    public double at(double phase) {
+      return 1.0 - 4.0 * Math.abs(phase - 0.5);
+    }
+  },
+  SAWTOOTH {
+    @Override
+    public double at(double phase) {
+      return 2.0 * phase - 1.0;
+    }
+  },
+  CONSTANT {
+    @Override
+    public double at(double phase) {
+      return 0.0;
+    }
+  };
+
+  public abstract double at(double phase);
+}
@@ -1,6 +1,11 @@
 package sensors;
 // eCO2：400-60000 ppm
-public class eCO2Sensor implements Sensor {
+public class eCO2Sensor extends SimulatedSensor {
+
+  public eCO2Sensor() {
+    super(new SensorProfile(400.0, 60000.0));
+  }
+
   @Override
   public String getName() {
     return "eCO2";
@@ -10,13 +15,4 @@ public class eCO2Sensor implements Sensor {
   public String getUnit() {
     return "ppm";
   }
-
-  @Override
-  public double getLevel(int t) {
-    var minQuality = 400.0;
-    var maxQuality= 60000.0;
-    return simulate(t,minQuality, maxQuality);
-
-
-  }
 }
@@ -0,0 +1,96 @@
+package communications;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.junit5.VertxExtension;
+import io.vertx.reactivex.core.Vertx;
+import io.vertx.reactivex.core.buffer.Buffer;
+import io.vertx.reactivex.core.http.HttpServer;
+import io.vertx.reactivex.ext.web.Router;
+import io.vertx.reactivex.ext.web.client.WebClient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/*
+  Fault injection
+  - configuration: the invalid values are rejected and nothing is changed
+  - on the reading route (router served by the test): the rate of the 503, the partial bodies (the connection
+    is closed before the announced content length, the client gets an error and no reading)
+ */
+@ExtendWith(VertxExtension.class)
+class FaultInjectorTest {
+
+  @Test
+  void negativeValuesAreRejected(io.vertx.core.Vertx coreVertx) {
+    var faultInjector = new FaultInjector(Vertx.newInstance(coreVertx), Buffer::buffer);
+    faultInjector.configure(new JsonObject().put("latency", "fixed:50").put("outage", "60000:10000"));
+
+    for (var configuration : new JsonObject[]{
+      new JsonObject().put("latency", "fixed:-50"),
+      new JsonObject().put("latency", "exponential:-50"),
+      new JsonObject().put("latency", "normal:100,-30"),
+      new JsonObject().put("latency", "uniform:200-10"),
+      new JsonObject().put("latency", "pareto:0,1.5"),
+      new JsonObject().put("outage", "-60000:10000"),
+      new JsonObject().put("outage", "60000:-10000"),
+      new JsonObject().put("outage", "10000:60000"),
+      new JsonObject().put("outageNow", -1),
+      new JsonObject().put("errorRate", -0.1)}) {
+      assertThrows(IllegalArgumentException.class, () -> faultInjector.configure(configuration), configuration.encode());
+    }
+    assertEquals("fixed:50", faultInjector.toJson().getString("latency"));
+    assertEquals("60000:10000", faultInjector.toJson().getString("outage"));
+    assertEquals(50, faultInjector.latency());
+  }
+
+  private static final Buffer READING = Buffer.buffer(new JsonObject().put("id", "device-1").put("value", 21.5).encode());
+
+  // the reading route of the device: the fault injector, then the reading
+  private static int serve(Vertx vertx, FaultInjector faultInjector) {
+    var router = Router.router(vertx);
+    router.get("/").handler(faultInjector::handle);
+    router.get("/").handler(routingContext -> routingContext.response()
+      .putHeader("content-type", "application/json")
+      .end(READING));
+    return vertx.createHttpServer().requestHandler(router).rxListen(0).map(HttpServer::actualPort).blockingGet();
+  }
+
+  @Test
+  void errorRateOnTheRoute(io.vertx.core.Vertx coreVertx) {
+    var vertx = Vertx.newInstance(coreVertx);
+    var faultInjector = new FaultInjector(vertx, () -> READING);
+    faultInjector.configure(new JsonObject().put("errorRate", 0.3).put("seed", 1));
+    var port = serve(vertx, faultInjector);
+    var webClient = WebClient.create(vertx);
+
+    int errors = 0;
+    for (int i = 0; i < 200; i++) {
+      var response = webClient.get(port, "localhost", "/").rxSend().blockingGet();
+      if (response.statusCode() == 503) {
+        errors++;
+      } else {
+        assertEquals(200, response.statusCode());
+        assertEquals(READING.toString(), response.bodyAsString());
+      }
+    }
+    assertTrue(errors > 40 && errors < 80, "503: " + errors + " / 200");
+  }
+
+  @Test
+  void partialBodyIsNoReading(io.vertx.core.Vertx coreVertx) {
+    var vertx = Vertx.newInstance(coreVertx);
+    var faultInjector = new FaultInjector(vertx, () -> READING);
+    faultInjector.configure(new JsonObject().put("partialRate", 1.0));
+    var port = serve(vertx, faultInjector);
+
+    // the gateway polls with a WebClient: the closed connection fails the request (a failed poll)
+    var result = WebClient.create(vertx).get(port, "localhost", "/").rxSend()
+      .map(response -> "status " + response.statusCode() + ": " + response.bodyAsString())
+      .onErrorReturn(error -> "failed")
+      .blockingGet();
+    assertEquals("failed", result);
+  }
+}
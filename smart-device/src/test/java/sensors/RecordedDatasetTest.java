@@ -0,0 +1,39 @@
+package sensors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/*
+  Shared datasets: one mapping per file while it is used, released with the last replay sensor
+ */
+class RecordedDatasetTest {
+
+  @Test
+  void releasedWithTheLastSensor(@TempDir Path directory) throws Exception {
+    var path = Files.writeString(directory.resolve("house.csv"), "timestamp,temperature,humidity,eCO2\n0,20,40,400\n1000,21,41,410\n");
+    var timeBase = new TimeBase(0, 1_000);
+
+    var dataset = RecordedDataset.open(path);
+    var temperature = new ReplaySensor("temperature", "Celsius", RecordedDataset.TEMPERATURE, dataset, timeBase, 0, 1);
+    var humidity = new ReplaySensor("humidity", "%", RecordedDataset.HUMIDITY, dataset, timeBase, 0, 1);
+    dataset.release();
+    assertSame(dataset, reopen(path));
+
+    temperature.close();
+    assertSame(dataset, reopen(path));
+    humidity.close();
+    assertNotSame(dataset, reopen(path));
+  }
+
+  private static RecordedDataset reopen(Path path) {
+    var dataset = RecordedDataset.open(path);
+    dataset.release();
+    return dataset;
+  }
+}